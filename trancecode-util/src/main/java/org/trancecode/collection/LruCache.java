@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.collection;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.trancecode.api.ReturnsNullable;
+
+/**
+ * Thread-safe cache that evicts the least recently used entries once the total
+ * weight of its entries exceeds a maximum weight.
+ * <p>
+ * Values are computed outside of any lock, so that a slow computation does not
+ * block other threads. As a consequence the value for a given key may be
+ * computed more than once if several threads miss at the same time, in which
+ * case the first computed value is kept.
+ * 
+ * @author Herve Quiroz
+ */
+public final class LruCache<K, V>
+{
+    private static final Function<Object, Integer> UNIT_WEIGHER = Functions.constant(1);
+
+    private final long maximumWeight;
+    private final Function<? super V, Integer> weigher;
+    private final Map<K, WeightedValue<V>> entries = new LinkedHashMap<K, WeightedValue<V>>(16, 0.75f, true);
+    private long weight;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private static final class WeightedValue<V>
+    {
+        private final V value;
+        private final int weight;
+
+        public WeightedValue(final V value, final int weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Returns a cache holding at most {@code maximumSize} entries.
+     */
+    public static <K, V> LruCache<K, V> newCache(final int maximumSize)
+    {
+        return new LruCache<K, V>(maximumSize, UNIT_WEIGHER);
+    }
+
+    /**
+     * Returns a cache whose entries have a total weight of at most
+     * {@code maximumWeight}, the weight of each entry being computed by the
+     * specified function when it is added to the cache.
+     */
+    public static <K, V> LruCache<K, V> newWeightedCache(final long maximumWeight,
+            final Function<? super V, Integer> weigher)
+    {
+        return new LruCache<K, V>(maximumWeight, weigher);
+    }
+
+    private LruCache(final long maximumWeight, final Function<? super V, Integer> weigher)
+    {
+        Preconditions.checkArgument(maximumWeight >= 0, "maximumWeight = %s", maximumWeight);
+        this.maximumWeight = maximumWeight;
+        this.weigher = Preconditions.checkNotNull(weigher);
+    }
+
+    @ReturnsNullable
+    public V getIfPresent(final K key)
+    {
+        Preconditions.checkNotNull(key);
+        final WeightedValue<V> entry;
+        synchronized (entries)
+        {
+            entry = entries.get(key);
+        }
+
+        if (entry == null)
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Returns the value associated with the key, computing it with the
+     * specified function and caching it if needed.
+     */
+    public V get(final K key, final Function<? super K, ? extends V> loader)
+    {
+        final V cachedValue = getIfPresent(key);
+        if (cachedValue != null)
+        {
+            return cachedValue;
+        }
+
+        final V value = loader.apply(key);
+        Preconditions.checkState(value != null, "null value computed for %s", key);
+        return put(key, value, false);
+    }
+
+    public void put(final K key, final V value)
+    {
+        put(key, value, true);
+    }
+
+    private V put(final K key, final V value, final boolean replace)
+    {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        final int valueWeight = weigher.apply(value);
+        Preconditions.checkState(valueWeight >= 0, "negative weight for %s: %s", key, valueWeight);
+
+        synchronized (entries)
+        {
+            final WeightedValue<V> existingEntry = entries.get(key);
+            if (existingEntry != null)
+            {
+                if (!replace)
+                {
+                    return existingEntry.value;
+                }
+
+                entries.remove(key);
+                weight -= existingEntry.weight;
+            }
+
+            if (valueWeight > maximumWeight)
+            {
+                return value;
+            }
+
+            entries.put(key, new WeightedValue<V>(value, valueWeight));
+            weight += valueWeight;
+
+            final Iterator<WeightedValue<V>> eldestEntries = entries.values().iterator();
+            while (weight > maximumWeight)
+            {
+                weight -= eldestEntries.next().weight;
+                eldestEntries.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        return value;
+    }
+
+    public void invalidate(final K key)
+    {
+        synchronized (entries)
+        {
+            final WeightedValue<V> entry = entries.remove(key);
+            if (entry != null)
+            {
+                weight -= entry.weight;
+            }
+        }
+    }
+
+    public void invalidateAll()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public long getWeight()
+    {
+        synchronized (entries)
+        {
+            return weight;
+        }
+    }
+
+    public long getMaximumWeight()
+    {
+        return maximumWeight;
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[size=%s ; weight=%s/%s ; hits=%s ; misses=%s ; evictions=%s]", getClass()
+                .getSimpleName(), size(), getWeight(), maximumWeight, getHitCount(), getMissCount(),
+                getEvictionCount());
+    }
+}
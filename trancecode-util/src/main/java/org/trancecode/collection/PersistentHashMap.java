@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.collection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.trancecode.api.Immutable;
+import org.trancecode.api.ReturnsNullable;
+
+/**
+ * An immutable {@link Map} that shares its structure with the maps it is
+ * derived from.
+ * <p>
+ * The entries are stored in a hash array mapped trie, so that
+ * {@link #plus(Object, Object)} and {@link #minus(Object)} only copy the path
+ * to the modified entry and run in {@code O(log32(n))}. Null keys and values
+ * are not supported.
+ * 
+ * @author Herve Quiroz
+ */
+@Immutable
+public final class PersistentHashMap<K, V> extends AbstractMap<K, V>
+{
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentHashMap<Object, Object> EMPTY = new PersistentHashMap<Object, Object>(
+            BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+    private Set<Entry<K, V>> entrySet;
+
+    /**
+     * A node of the trie. Entries are stored in an array of key/value pairs,
+     * with a {@code null} key for the pairs whose value is a child node.
+     */
+    private abstract static class Node
+    {
+        protected final Object[] array;
+
+        protected Node(final Object[] array)
+        {
+            this.array = array;
+        }
+
+        @ReturnsNullable
+        public abstract Object get(Object key, int hash, int shift);
+
+        public abstract Node plus(Object key, Object value, int hash, int shift, boolean[] added);
+
+        /**
+         * Returns {@code null} if the node would be empty.
+         */
+        @ReturnsNullable
+        public abstract Node minus(Object key, int hash, int shift);
+    }
+
+    private static final class BitmapNode extends Node
+    {
+        private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+
+        public BitmapNode(final int bitmap, final Object[] array)
+        {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        private int index(final int bit)
+        {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object get(final Object key, final int hash, final int shift)
+        {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+            {
+                return null;
+            }
+
+            final int index = 2 * index(bit);
+            final Object existingKey = array[index];
+            final Object existingValue = array[index + 1];
+            if (existingKey == null)
+            {
+                return ((Node) existingValue).get(key, hash, shift + BITS);
+            }
+
+            return key.equals(existingKey) ? existingValue : null;
+        }
+
+        @Override
+        public Node plus(final Object key, final Object value, final int hash, final int shift, final boolean[] added)
+        {
+            final int bit = bit(hash, shift);
+            final int index = 2 * index(bit);
+            if ((bitmap & bit) == 0)
+            {
+                final Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = key;
+                newArray[index + 1] = value;
+                System.arraycopy(array, index, newArray, index + 2, array.length - index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            final Object existingKey = array[index];
+            final Object existingValue = array[index + 1];
+            if (existingKey == null)
+            {
+                final Node child = (Node) existingValue;
+                final Node newChild = child.plus(key, value, hash, shift + BITS, added);
+                if (newChild == child)
+                {
+                    return this;
+                }
+                return new BitmapNode(bitmap, copyAndSet(array, index + 1, newChild));
+            }
+
+            if (key.equals(existingKey))
+            {
+                if (value.equals(existingValue))
+                {
+                    return this;
+                }
+                return new BitmapNode(bitmap, copyAndSet(array, index + 1, value));
+            }
+
+            added[0] = true;
+            final Node child = newNode(shift + BITS, existingKey, existingValue, key, value, hash);
+            final Object[] newArray = copyAndSet(array, index, null);
+            newArray[index + 1] = child;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        public Node minus(final Object key, final int hash, final int shift)
+        {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+            {
+                return this;
+            }
+
+            final int index = 2 * index(bit);
+            final Object existingKey = array[index];
+            final Object existingValue = array[index + 1];
+            if (existingKey == null)
+            {
+                final Node child = (Node) existingValue;
+                final Node newChild = child.minus(key, hash, shift + BITS);
+                if (newChild == child)
+                {
+                    return this;
+                }
+                if (newChild != null)
+                {
+                    return new BitmapNode(bitmap, copyAndSet(array, index + 1, newChild));
+                }
+            }
+            else if (!key.equals(existingKey))
+            {
+                return this;
+            }
+
+            if (bitmap == bit)
+            {
+                return null;
+            }
+
+            return new BitmapNode(bitmap ^ bit, copyAndRemovePair(array, index));
+        }
+    }
+
+    /**
+     * Holds the entries whose keys have the same hash code.
+     */
+    private static final class CollisionNode extends Node
+    {
+        private final int hash;
+
+        public CollisionNode(final int hash, final Object[] array)
+        {
+            super(array);
+            this.hash = hash;
+        }
+
+        private int indexOf(final Object key)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                if (key.equals(array[i]))
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        @Override
+        public Object get(final Object key, final int hash, final int shift)
+        {
+            final int index = indexOf(key);
+            return index < 0 ? null : array[index + 1];
+        }
+
+        @Override
+        public Node plus(final Object key, final Object value, final int hash, final int shift, final boolean[] added)
+        {
+            if (hash != this.hash)
+            {
+                return new BitmapNode(bit(this.hash, shift), new Object[] { null, this }).plus(key, value, hash,
+                        shift, added);
+            }
+
+            final int index = indexOf(key);
+            if (index < 0)
+            {
+                final Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                newArray[array.length] = key;
+                newArray[array.length + 1] = value;
+                added[0] = true;
+                return new CollisionNode(hash, newArray);
+            }
+
+            if (value.equals(array[index + 1]))
+            {
+                return this;
+            }
+
+            return new CollisionNode(hash, copyAndSet(array, index + 1, value));
+        }
+
+        @Override
+        public Node minus(final Object key, final int hash, final int shift)
+        {
+            final int index = indexOf(key);
+            if (index < 0)
+            {
+                return this;
+            }
+
+            if (array.length == 2)
+            {
+                return null;
+            }
+
+            return new CollisionNode(hash, copyAndRemovePair(array, index));
+        }
+    }
+
+    private static int hash(final Object key)
+    {
+        final int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int bit(final int hash, final int shift)
+    {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static Object[] copyAndSet(final Object[] array, final int index, final Object value)
+    {
+        final Object[] newArray = array.clone();
+        newArray[index] = value;
+        return newArray;
+    }
+
+    private static Object[] copyAndRemovePair(final Object[] array, final int index)
+    {
+        final Object[] newArray = new Object[array.length - 2];
+        System.arraycopy(array, 0, newArray, 0, index);
+        System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+        return newArray;
+    }
+
+    private static Node newNode(final int shift, final Object key1, final Object value1, final Object key2,
+            final Object value2, final int hash2)
+    {
+        final int hash1 = hash(key1);
+        if (hash1 == hash2)
+        {
+            return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+        }
+
+        final boolean[] added = new boolean[1];
+        return BitmapNode.EMPTY.plus(key1, value1, hash1, shift, added).plus(key2, value2, hash2, shift, added);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> of()
+    {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Returns the specified map if it is already a {@link PersistentHashMap},
+     * or a new map with the same entries.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> copyOf(final Map<? extends K, ? extends V> map)
+    {
+        if (map instanceof PersistentHashMap)
+        {
+            return (PersistentHashMap<K, V>) map;
+        }
+
+        return PersistentHashMap.<K, V> of().plusAll(map);
+    }
+
+    private PersistentHashMap(final Node root, final int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns a map with the same entries as this map, plus the specified
+     * entry which replaces any existing entry with the same key.
+     */
+    public PersistentHashMap<K, V> plus(final K key, final V value)
+    {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+
+        final boolean[] added = new boolean[1];
+        final Node newRoot = root.plus(key, value, hash(key), 0, added);
+        if (newRoot == root)
+        {
+            return this;
+        }
+
+        return new PersistentHashMap<K, V>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map with the same entries as this map, plus the entries of the
+     * specified map which replace any existing entries with the same keys.
+     */
+    public PersistentHashMap<K, V> plusAll(final Map<? extends K, ? extends V> map)
+    {
+        if (isEmpty() && map instanceof PersistentHashMap)
+        {
+            return copyOf(map);
+        }
+
+        PersistentHashMap<K, V> result = this;
+        for (final Entry<? extends K, ? extends V> entry : map.entrySet())
+        {
+            result = result.plus(entry.getKey(), entry.getValue());
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a map with the same entries as this map, minus the entry for the
+     * specified key.
+     */
+    public PersistentHashMap<K, V> minus(final Object key)
+    {
+        Preconditions.checkNotNull(key);
+
+        final Node newRoot = root.minus(key, hash(key), 0);
+        if (newRoot == root)
+        {
+            return this;
+        }
+
+        if (newRoot == null)
+        {
+            return of();
+        }
+
+        return new PersistentHashMap<K, V>(newRoot, size - 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key)
+    {
+        if (key == null)
+        {
+            return null;
+        }
+
+        return (V) root.get(key, hash(key), 0);
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        if (entrySet == null)
+        {
+            entrySet = new AbstractSet<Entry<K, V>>()
+            {
+                @Override
+                public Iterator<Entry<K, V>> iterator()
+                {
+                    return new EntryIterator<K, V>(root);
+                }
+
+                @Override
+                public int size()
+                {
+                    return size;
+                }
+            };
+        }
+
+        return entrySet;
+    }
+
+    /**
+     * Walks the trie depth-first.
+     */
+    private static final class EntryIterator<K, V> extends AbstractIterator<Entry<K, V>>
+    {
+        // the trie is at most 7 levels deep, plus the collision nodes
+        private final Object[][] arrays = new Object[8][];
+        private final int[] indexes = new int[8];
+        private int depth;
+
+        public EntryIterator(final Node root)
+        {
+            arrays[0] = root.array;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Entry<K, V> computeNext()
+        {
+            while (depth >= 0)
+            {
+                final Object[] array = arrays[depth];
+                final int index = indexes[depth];
+                if (index >= array.length)
+                {
+                    depth--;
+                    continue;
+                }
+
+                indexes[depth] = index + 2;
+                final Object key = array[index];
+                final Object value = array[index + 1];
+                if (key == null)
+                {
+                    depth++;
+                    arrays[depth] = ((Node) value).array;
+                    indexes[depth] = 0;
+                    continue;
+                }
+
+                return Maps.immutableEntry((K) key, (V) value);
+            }
+
+            return endOfData();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.concurrent;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A channel through which a producer thread hands elements over to a single
+ * consumer thread.
+ * <p>
+ * Once {@link #setBounded(boolean) bounded}, the producer is blocked as long as
+ * the consumer has not taken elements out of the channel, so that at most
+ * {@code capacity} elements are held in memory. An unbounded channel buffers
+ * all the elements that have not been consumed yet. Errors reported by the
+ * producer with {@link #fail(Throwable)} are thrown to the consumer once all
+ * the elements produced before have been consumed.
+ * 
+ * @author Herve Quiroz
+ */
+public final class BoundedChannel<E>
+{
+    private final int capacity;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Queue<E> elements = new ArrayDeque<E>();
+    private boolean bounded;
+    private boolean closed;
+    private boolean discarded;
+    private boolean consumed;
+    private Throwable error;
+
+    public static <E> BoundedChannel<E> newChannel(final int capacity)
+    {
+        return new BoundedChannel<E>(capacity);
+    }
+
+    private BoundedChannel(final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0, "capacity = %s", capacity);
+        this.capacity = capacity;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Hands an element over to the consumer, waiting for some room in the
+     * channel if it is bounded and full. Elements put into a discarded channel
+     * are dropped.
+     */
+    public void put(final E element)
+    {
+        Preconditions.checkNotNull(element);
+        lock.lock();
+        try
+        {
+            Preconditions.checkState(!closed, "channel is closed");
+            while (bounded && !discarded && elements.size() >= capacity)
+            {
+                notFull.await();
+            }
+
+            if (!discarded)
+            {
+                elements.add(element);
+                notEmpty.signalAll();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            throw new RuntimeInterruptedException(e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signals that the producer will not put any more elements.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the channel with an error to be thrown to the consumer.
+     */
+    public void fail(final Throwable error)
+    {
+        Preconditions.checkNotNull(error);
+        lock.lock();
+        try
+        {
+            this.error = error;
+            closed = true;
+            notEmpty.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets whether the producer should wait for the consumer when the channel
+     * is full.
+     */
+    public void setBounded(final boolean bounded)
+    {
+        lock.lock();
+        try
+        {
+            this.bounded = bounded;
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all the pending elements as well as the elements to be put later
+     * on, so that the producer never gets blocked again.
+     */
+    public void discard()
+    {
+        lock.lock();
+        try
+        {
+            discarded = true;
+            elements.clear();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed()
+    {
+        lock.lock();
+        try
+        {
+            return closed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over the elements of the channel, blocking until
+     * elements are available or the channel is closed. The elements can be
+     * consumed only once.
+     */
+    public Iterator<E> consume()
+    {
+        lock.lock();
+        try
+        {
+            Preconditions.checkState(!consumed, "channel has already been consumed");
+            consumed = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return new AbstractIterator<E>()
+        {
+            @Override
+            protected E computeNext()
+            {
+                lock.lock();
+                try
+                {
+                    while (elements.isEmpty() && !closed)
+                    {
+                        notEmpty.await();
+                    }
+
+                    final E element = elements.poll();
+                    if (element != null)
+                    {
+                        notFull.signalAll();
+                        return element;
+                    }
+
+                    if (error != null)
+                    {
+                        throw Throwables.propagate(error);
+                    }
+
+                    return endOfData();
+                }
+                catch (final InterruptedException e)
+                {
+                    throw new RuntimeInterruptedException(e);
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        lock.lock();
+        try
+        {
+            return getClass().getSimpleName() + "[" + elements.size() + "/" + capacity + (bounded ? "" : " unbounded")
+                    + (closed ? " closed" : "") + "]";
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
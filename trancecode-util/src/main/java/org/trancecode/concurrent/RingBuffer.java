@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.concurrent;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.trancecode.api.ReturnsNullable;
+
+/**
+ * A bounded buffer backed by a preallocated array, through which any number of
+ * producer threads hand elements over to a consumer thread.
+ * <p>
+ * Producers are blocked while the buffer is full. Putting or taking an element
+ * does not allocate any memory.
+ * 
+ * @author Herve Quiroz
+ */
+public final class RingBuffer<E>
+{
+    private final Object[] slots;
+    private final int mask;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // sequence numbers of the next slots to be read and written
+    private long head;
+    private long tail;
+
+    /**
+     * Creates a new ring buffer which can hold at least {@code capacity}
+     * elements. The actual capacity is rounded up to a power of two.
+     */
+    public static <E> RingBuffer<E> newRingBuffer(final int capacity)
+    {
+        return new RingBuffer<E>(capacity);
+    }
+
+    private RingBuffer(final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "capacity = %s", capacity);
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Object[Math.max(1, size)];
+        mask = slots.length - 1;
+    }
+
+    public int getCapacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Puts an element in the buffer, waiting for some room if the buffer is
+     * full.
+     */
+    public void put(final E element)
+    {
+        Preconditions.checkNotNull(element);
+        lock.lock();
+        try
+        {
+            while (tail - head == slots.length)
+            {
+                notFull.await();
+            }
+
+            slots[(int) (tail++ & mask)] = element;
+            notEmpty.signal();
+        }
+        catch (final InterruptedException e)
+        {
+            throw new RuntimeInterruptedException(e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest element out of the buffer, waiting for an element to be
+     * put if the buffer is empty.
+     */
+    public E take()
+    {
+        lock.lock();
+        try
+        {
+            while (tail == head)
+            {
+                notEmpty.await();
+            }
+
+            return dequeue();
+        }
+        catch (final InterruptedException e)
+        {
+            throw new RuntimeInterruptedException(e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest element out of the buffer, waiting at most the
+     * specified time for an element to be put if the buffer is empty.
+     * 
+     * @return the element, or {@code null} if the buffer is still empty.
+     */
+    @ReturnsNullable
+    public E poll(final long timeout, final TimeUnit unit)
+    {
+        lock.lock();
+        try
+        {
+            long nanos = unit.toNanos(timeout);
+            while (tail == head)
+            {
+                if (nanos <= 0)
+                {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+
+            return dequeue();
+        }
+        catch (final InterruptedException e)
+        {
+            throw new RuntimeInterruptedException(e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private E dequeue()
+    {
+        final int index = (int) (head++ & mask);
+        @SuppressWarnings("unchecked")
+        final E element = (E) slots[index];
+        slots[index] = null;
+        notFull.signalAll();
+        return element;
+    }
+
+    public int size()
+    {
+        lock.lock();
+        try
+        {
+            return (int) (tail - head);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + size() + "/" + slots.length + "]";
+    }
+}
@@ -17,13 +17,17 @@
  */
 package org.trancecode.concurrent;
 
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Lock;
@@ -166,6 +170,103 @@ public final class TaskExecutors
         }
     }
 
+    /**
+     * Returns a {@link TaskExecutor} that runs tasks concurrently on a pool of
+     * {@link Runtime#availableProcessors()} daemon threads.
+     * 
+     * @see #workStealingExecutor(int)
+     */
+    public static TaskExecutor workStealingExecutor()
+    {
+        return workStealingExecutor(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns a {@link TaskExecutor} that runs tasks concurrently on a pool of
+     * daemon threads.
+     * <p>
+     * Joins are cooperative: when {@link Future#get()} is invoked on a task
+     * that no worker has started yet, the calling thread steals the task and
+     * runs it itself. A task waiting for other tasks therefore never waits for
+     * a task stuck in the queue, which means that nested submissions (such as
+     * compound steps running subpipelines) cannot starve the pool and deadlock,
+     * whatever the number of threads.
+     */
+    public static TaskExecutor workStealingExecutor(final int parallelism)
+    {
+        Preconditions.checkArgument(parallelism > 0, "parallelism = %s", parallelism);
+        final ExecutorService workers = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("tubular-worker-%d").build());
+        return workStealingExecutor(workers);
+    }
+
+    /**
+     * Returns a {@link TaskExecutor} that runs tasks concurrently on the
+     * specified workers, with cooperative joins. The caller owns the workers
+     * and is responsible for shutting them down.
+     * 
+     * @see #workStealingExecutor(int)
+     */
+    public static TaskExecutor workStealingExecutor(final ExecutorService workers)
+    {
+        return new WorkStealingTaskExecutor(workers);
+    }
+
+    private static final class WorkStealingTaskExecutor implements TaskExecutor
+    {
+        private final ExecutorService workers;
+
+        public WorkStealingTaskExecutor(final ExecutorService workers)
+        {
+            this.workers = Preconditions.checkNotNull(workers);
+        }
+
+        @Override
+        public <T> Future<T> submit(final Callable<T> task)
+        {
+            final StealableFutureTask<T> future = new StealableFutureTask<T>(task);
+            workers.execute(future);
+            return future;
+        }
+    }
+
+    /**
+     * {@link FutureTask} that gets executed by the thread waiting for its
+     * result if no worker thread has picked it up yet. {@link FutureTask#run()}
+     * does nothing once the task has been started by another thread, so the
+     * task is guaranteed to be executed only once.
+     */
+    private static final class StealableFutureTask<T> extends FutureTask<T>
+    {
+        public StealableFutureTask(final Callable<T> task)
+        {
+            super(task);
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException
+        {
+            if (!isDone())
+            {
+                run();
+            }
+
+            return super.get();
+        }
+
+        @Override
+        public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException
+        {
+            if (!isDone())
+            {
+                run();
+            }
+
+            return super.get(timeout, unit);
+        }
+    }
+
     private TaskExecutors()
     {
         // No instantiation
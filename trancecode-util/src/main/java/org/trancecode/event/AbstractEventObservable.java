@@ -106,10 +106,28 @@ public abstract class AbstractEventObservable<T extends Event> implements EventD
         observers = TcSets.immutableSetWithout(observers, observer);
     }
 
+    @Override
+    public boolean hasObservers()
+    {
+        return !Iterables.isEmpty(observers);
+    }
+
     @Override
     public void notify(final T event)
     {
-        final Iterable<Callable<Object>> notificationTasks = Iterables.transform(observers,
+        final Iterable<EventObserver<T>> currentObservers = observers;
+        if (Iterables.isEmpty(currentObservers))
+        {
+            return;
+        }
+
+        if (blockingNotification && executor == TaskExecutors.directExecutor())
+        {
+            notifyObservers(currentObservers, event);
+            return;
+        }
+
+        final Iterable<Callable<Object>> notificationTasks = Iterables.transform(currentObservers,
                 new Function<EventObserver<T>, Callable<Object>>()
                 {
                     @Override
@@ -120,14 +138,7 @@ public abstract class AbstractEventObservable<T extends Event> implements EventD
                             @Override
                             public Void call()
                             {
-                                try
-                                {
-                                    observer.notify(event);
-                                }
-                                catch (final Throwable error)
-                                {
-                                    notificationFailurePolicy.notificationFailure(observer, event, error);
-                                }
+                                notifyObserver(observer, event);
                                 return null;
                             }
                         };
@@ -154,4 +165,36 @@ public abstract class AbstractEventObservable<T extends Event> implements EventD
             }
         }
     }
+
+    /**
+     * Returns the currently registered observers.
+     */
+    protected final Iterable<EventObserver<T>> getObservers()
+    {
+        return observers;
+    }
+
+    private void notifyObservers(final Iterable<EventObserver<T>> observers, final T event)
+    {
+        for (final EventObserver<T> observer : observers)
+        {
+            notifyObserver(observer, event);
+        }
+    }
+
+    /**
+     * Notifies a single observer from the calling thread, applying the
+     * notification failure policy if it fails.
+     */
+    protected final void notifyObserver(final EventObserver<T> observer, final T event)
+    {
+        try
+        {
+            observer.notify(event);
+        }
+        catch (final Throwable error)
+        {
+            notificationFailurePolicy.notificationFailure(observer, event, error);
+        }
+    }
 }
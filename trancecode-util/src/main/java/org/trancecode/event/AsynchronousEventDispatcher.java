@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.event;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.trancecode.concurrent.RingBuffer;
+import org.trancecode.concurrent.RuntimeInterruptedException;
+import org.trancecode.logging.Logger;
+
+/**
+ * An event dispatcher that hands the events over to a consumer thread through
+ * a {@link RingBuffer}, so that observers are notified without delaying the
+ * threads firing the events.
+ * <p>
+ * Events are only buffered while some observers are registered. Threads
+ * firing events are blocked only if the buffer is full. The consumer thread
+ * stops after a minute without events. Notification failures
+ * cannot be thrown to the thread that fired the event, so they are logged and
+ * the other observers are still notified.
+ * 
+ * @author Herve Quiroz
+ */
+public final class AsynchronousEventDispatcher<T extends Event> extends AbstractEventObservable<T>
+{
+    private static final Logger LOG = Logger.getLogger(AsynchronousEventDispatcher.class);
+    private static final long IDLE_TIMEOUT = 60000;
+    private static final ThreadFactory CONSUMERS = new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("event-dispatcher-%d").build();
+
+    private final RingBuffer<T> events;
+    private final Object deliveryLock = new Object();
+    private long publishedCount;
+    private long deliveredCount;
+    private Thread consumer;
+
+    public AsynchronousEventDispatcher(final int capacity)
+    {
+        this(capacity, alwaysFail());
+    }
+
+    public AsynchronousEventDispatcher(final int capacity, final NotificationFailurePolicy notificationFailurePolicy)
+    {
+        super(notificationFailurePolicy);
+        events = RingBuffer.newRingBuffer(capacity);
+    }
+
+    @Override
+    public void notify(final T event)
+    {
+        if (!hasObservers())
+        {
+            return;
+        }
+
+        synchronized (deliveryLock)
+        {
+            if (consumer == null)
+            {
+                consumer = CONSUMERS.newThread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        consume();
+                    }
+                });
+                consumer.start();
+            }
+            publishedCount++;
+        }
+
+        events.put(event);
+    }
+
+    private void consume()
+    {
+        while (true)
+        {
+            final T event = events.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (event == null)
+            {
+                synchronized (deliveryLock)
+                {
+                    if (deliveredCount == publishedCount)
+                    {
+                        // a new consumer is started with the next event
+                        consumer = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            try
+            {
+                for (final EventObserver<T> observer : getObservers())
+                {
+                    try
+                    {
+                        notifyObserver(observer, event);
+                    }
+                    catch (final Throwable error)
+                    {
+                        LOG.warn("error while notifying event {} to {}: {}", event, observer, error);
+                    }
+                }
+            }
+            finally
+            {
+                synchronized (deliveryLock)
+                {
+                    deliveredCount++;
+                    deliveryLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all the events fired so far have been delivered to the
+     * observers.
+     */
+    public void flush()
+    {
+        synchronized (deliveryLock)
+        {
+            final long targetCount = publishedCount;
+            while (deliveredCount < targetCount)
+            {
+                try
+                {
+                    deliveryLock.wait();
+                }
+                catch (final InterruptedException e)
+                {
+                    throw new RuntimeInterruptedException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + events + "]";
+    }
+}
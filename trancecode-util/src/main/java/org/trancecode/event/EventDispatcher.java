@@ -22,4 +22,9 @@ package org.trancecode.event;
  */
 public interface EventDispatcher<T extends Event> extends EventObservable<T>, EventObserver<T>
 {
+    /**
+     * Returns whether any observer is registered, so that callers can skip
+     * creating events nobody listens to.
+     */
+    boolean hasObservers();
 }
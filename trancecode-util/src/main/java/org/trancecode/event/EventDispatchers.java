@@ -64,6 +64,17 @@ public final class EventDispatchers
         return new InternalEventDispatcher<T>(blockingNotification, executor, notificationFailurePolicy);
     }
 
+    /**
+     * Returns a new event dispatcher that notifies the observers from a
+     * separate thread, buffering up to {@code capacity} events.
+     * 
+     * @see AsynchronousEventDispatcher
+     */
+    public static <T extends Event> AsynchronousEventDispatcher<T> newAsynchronousEventDispatcher(final int capacity)
+    {
+        return new AsynchronousEventDispatcher<T>(capacity);
+    }
+
     private EventDispatchers()
     {
         // No instantiation
@@ -40,7 +40,10 @@ import org.apache.http.util.ByteArrayBuffer;
 
 /**
  * @author Emmanuel Tourdot
+ * @deprecated buffers each body part in memory; use {@link MultipartStream}
+ *             instead
  */
+@Deprecated
 public class BodypartResponseParser
 {
     private InputStream stream;
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.http;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.ParseException;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.message.HeaderGroup;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.logging.Logger;
+
+/**
+ * Reads the body parts of a multipart message one after the other, without
+ * buffering their content.
+ * <p>
+ * Each part is exposed as an {@link InputStream} which ends at the next
+ * boundary delimiter. Only a fixed-size window of the message is held in
+ * memory, whatever the size of the parts.
+ * 
+ * @author Herve Quiroz
+ * @see <a href="http://tools.ietf.org/html/rfc2046#section-5.1">RFC 2046 -
+ *      Multipart Media Type</a>
+ */
+public final class MultipartStream
+{
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final Logger LOG = Logger.getLogger(MultipartStream.class);
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte DASH = '-';
+
+    private final InputStream stream;
+    // CRLF--boundary
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int head;
+    private int tail;
+    private boolean endOfStream;
+    private boolean lastPart;
+    private Part currentPart;
+
+    /**
+     * A body part, whose content must be read before moving to the next part.
+     */
+    public final class Part
+    {
+        private final HeaderGroup headers;
+        private final InputStream content = new PartInputStream();
+
+        private Part(final HeaderGroup headers)
+        {
+            this.headers = headers;
+        }
+
+        public HeaderGroup getHeaders()
+        {
+            return headers;
+        }
+
+        @ReturnsNullable
+        public String getHeaderValue(final String name)
+        {
+            final Header header = headers.getFirstHeader(name);
+            if (header == null)
+            {
+                return null;
+            }
+
+            return header.getValue();
+        }
+
+        /**
+         * Returns the content of the part, which ends at the next boundary
+         * delimiter. Closing the stream skips the rest of the part.
+         */
+        public InputStream getContent()
+        {
+            return content;
+        }
+    }
+
+    private final class PartInputStream extends InputStream
+    {
+        private boolean endOfPart;
+
+        @Override
+        public int read() throws IOException
+        {
+            final byte[] singleByte = new byte[1];
+            final int read = read(singleByte, 0, 1);
+            if (read <= 0)
+            {
+                return -1;
+            }
+
+            return singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException
+        {
+            if (endOfPart)
+            {
+                return -1;
+            }
+
+            if (length == 0)
+            {
+                return 0;
+            }
+
+            while (true)
+            {
+                final int delimiterIndex = indexOfDelimiter();
+                final int available;
+                if (delimiterIndex >= 0)
+                {
+                    available = delimiterIndex - head;
+                    if (available == 0)
+                    {
+                        head += delimiter.length;
+                        endOfPart = true;
+                        return -1;
+                    }
+                }
+                else if (endOfStream)
+                {
+                    // missing close delimiter
+                    available = tail - head;
+                    if (available == 0)
+                    {
+                        LOG.trace("{@method} unexpected end of multipart stream");
+                        endOfPart = true;
+                        lastPart = true;
+                        return -1;
+                    }
+                }
+                else
+                {
+                    // keep what may be the beginning of the delimiter
+                    available = tail - head - delimiter.length + 1;
+                    if (available <= 0)
+                    {
+                        fill();
+                        continue;
+                    }
+                }
+
+                final int read = Math.min(length, available);
+                System.arraycopy(buffer, head, bytes, offset, read);
+                head += read;
+                return read;
+            }
+        }
+
+        @Override
+        public int available()
+        {
+            if (endOfPart)
+            {
+                return 0;
+            }
+
+            final int delimiterIndex = indexOfDelimiter();
+            if (delimiterIndex >= 0)
+            {
+                return delimiterIndex - head;
+            }
+
+            return Math.max(0, tail - head - delimiter.length + 1);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            final byte[] skipBuffer = new byte[DEFAULT_BUFFER_SIZE];
+            while (read(skipBuffer, 0, skipBuffer.length) >= 0)
+            {
+                // skip
+            }
+        }
+    }
+
+    public MultipartStream(final InputStream stream, final String boundary)
+    {
+        this(stream, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MultipartStream(final InputStream stream, final String boundary, final int bufferSize)
+    {
+        this.stream = Preconditions.checkNotNull(stream);
+        Preconditions.checkArgument(!StringUtils.isEmpty(boundary), "boundary = %s", boundary);
+        try
+        {
+            delimiter = ("\r\n--" + boundary).getBytes("US-ASCII");
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        Preconditions.checkArgument(bufferSize > delimiter.length * 2, "bufferSize = %s", bufferSize);
+        buffer = new byte[bufferSize];
+
+        // the first delimiter may not be preceded by a line break
+        buffer[0] = CR;
+        buffer[1] = LF;
+        tail = 2;
+    }
+
+    /**
+     * Returns the next body part, or {@code null} if there are no more parts.
+     * The content of the previous part is skipped if it has not been read
+     * entirely.
+     */
+    @ReturnsNullable
+    public Part nextPart() throws IOException
+    {
+        if (currentPart == null)
+        {
+            // skip the preamble
+            new PartInputStream().close();
+        }
+        else
+        {
+            currentPart.getContent().close();
+        }
+
+        if (lastPart || !readDelimiterSuffix())
+        {
+            currentPart = null;
+            return null;
+        }
+
+        currentPart = new Part(readHeaders());
+        return currentPart;
+    }
+
+    /**
+     * Reads what follows a delimiter: either "--" for the close delimiter or
+     * the end of the line.
+     * 
+     * @return {@code false} if this was the close delimiter.
+     */
+    private boolean readDelimiterSuffix() throws IOException
+    {
+        ensureAvailable(2);
+        if (tail - head >= 2 && buffer[head] == DASH && buffer[head + 1] == DASH)
+        {
+            lastPart = true;
+            return false;
+        }
+
+        // transport padding
+        readLine();
+        return !(endOfStream && head == tail);
+    }
+
+    private HeaderGroup readHeaders() throws IOException
+    {
+        final HeaderGroup headers = new HeaderGroup();
+        while (true)
+        {
+            final String line = readLine();
+            if (StringUtils.isBlank(line))
+            {
+                return headers;
+            }
+
+            try
+            {
+                headers.addHeader(BasicLineParser.parseHeader(line, null));
+            }
+            catch (final ParseException e)
+            {
+                LOG.trace("{@method} invalid header: {} ; {}", line, e);
+            }
+        }
+    }
+
+    @ReturnsNullable
+    private String readLine() throws IOException
+    {
+        final StringBuilder line = new StringBuilder();
+        while (true)
+        {
+            if (head == tail)
+            {
+                fill();
+                if (head == tail)
+                {
+                    return line.length() == 0 ? null : line.toString();
+                }
+            }
+
+            final byte next = buffer[head++];
+            if (next == LF)
+            {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == CR)
+                {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+
+            // headers are US-ASCII
+            line.append((char) (next & 0xff));
+        }
+    }
+
+    private int indexOfDelimiter()
+    {
+        final int last = tail - delimiter.length;
+        for (int i = head; i <= last; i++)
+        {
+            if (buffer[i] != delimiter[0])
+            {
+                continue;
+            }
+
+            int j = 1;
+            while (j < delimiter.length && buffer[i + j] == delimiter[j])
+            {
+                j++;
+            }
+            if (j == delimiter.length)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void ensureAvailable(final int length) throws IOException
+    {
+        while (tail - head < length && !endOfStream)
+        {
+            fill();
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the beginning of the buffer and reads more
+     * bytes from the underlying stream.
+     */
+    private void fill() throws IOException
+    {
+        if (endOfStream)
+        {
+            return;
+        }
+
+        if (head > 0)
+        {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+
+        final int read = stream.read(buffer, tail, buffer.length - tail);
+        if (read < 0)
+        {
+            endOfStream = true;
+        }
+        else
+        {
+            tail += read;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.io;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.trancecode.logging.Logger;
+
+/**
+ * A buffered {@link OutputStream} to a temporary file that replaces the target
+ * file only once it has been closed, so that readers never see a partially
+ * written file.
+ * <p>
+ * The temporary file is created in the same directory as the target file so
+ * that it can be renamed rather than copied. The rename is atomic on POSIX
+ * file systems. Where the target file cannot be replaced by a rename, it is
+ * deleted first.
+ * 
+ * @author Herve Quiroz
+ */
+public final class AtomicFileOutputStream extends FilterOutputStream
+{
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger LOG = Logger.getLogger(AtomicFileOutputStream.class);
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private final File file;
+    private final File temporaryFile;
+    private boolean closed;
+
+    public AtomicFileOutputStream(final File file) throws IOException
+    {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AtomicFileOutputStream(final File file, final int bufferSize) throws IOException
+    {
+        this(file, File.createTempFile("." + file.getName() + ".", TEMPORARY_FILE_SUFFIX, file.getAbsoluteFile()
+                .getParentFile()), bufferSize);
+    }
+
+    private AtomicFileOutputStream(final File file, final File temporaryFile, final int bufferSize)
+            throws IOException
+    {
+        super(new BufferedOutputStream(new FileOutputStream(temporaryFile), bufferSize));
+        this.file = Preconditions.checkNotNull(file);
+        this.temporaryFile = temporaryFile;
+        LOG.trace("{@method} file = {} ; temporaryFile = {}", file, temporaryFile);
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException
+    {
+        // FilterOutputStream writes byte per byte
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * Flushes the buffered bytes and replaces the target file with the
+     * temporary file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        closed = true;
+        try
+        {
+            out.close();
+        }
+        catch (final IOException e)
+        {
+            deleteTemporaryFile();
+            throw e;
+        }
+
+        if (!temporaryFile.renameTo(file) && !(file.delete() && temporaryFile.renameTo(file)))
+        {
+            deleteTemporaryFile();
+            throw new IOException("cannot rename " + temporaryFile + " to " + file);
+        }
+    }
+
+    /**
+     * Discards the bytes written so far and leaves the target file unchanged.
+     */
+    public void abort()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        closed = true;
+        try
+        {
+            out.close();
+        }
+        catch (final IOException e)
+        {
+            LOG.trace("{@method} {}", e);
+        }
+        deleteTemporaryFile();
+    }
+
+    private void deleteTemporaryFile()
+    {
+        if (!temporaryFile.delete())
+        {
+            LOG.warn("cannot delete temporary file {}", temporaryFile);
+        }
+    }
+}
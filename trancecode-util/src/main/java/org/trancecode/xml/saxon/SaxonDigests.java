@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import com.google.common.base.Charsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+
+/**
+ * Computes digests of Saxon trees, for instance to identify documents with the
+ * same content in caches.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonDigests
+{
+    private static final String ALGORITHM = "SHA-1";
+    private static final byte SEPARATOR = 0;
+
+    private SaxonDigests()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Returns a hexadecimal SHA-1 digest of the structure and content of the
+     * tree rooted at the specified node: node kinds, names, namespaces,
+     * attributes and text content. Base URIs are not taken into account.
+     */
+    public static String digest(final XdmNode node)
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(ALGORITHM, e);
+        }
+
+        update(digest, node);
+        return toHexString(digest.digest());
+    }
+
+    private static void update(final MessageDigest digest, final XdmNode node)
+    {
+        final XdmNodeKind nodeKind = node.getNodeKind();
+        digest.update((byte) nodeKind.ordinal());
+        switch (nodeKind)
+        {
+            case DOCUMENT:
+                updateChildren(digest, node);
+                break;
+
+            case ELEMENT:
+                update(digest, node.getNodeName().getClarkName());
+                for (final XdmNode namespace : SaxonAxis.namespaces(node))
+                {
+                    update(digest, namespace);
+                }
+                for (final XdmNode attribute : SaxonAxis.attributes(node))
+                {
+                    update(digest, attribute);
+                }
+                updateChildren(digest, node);
+                break;
+
+            case ATTRIBUTE:
+            case NAMESPACE:
+            case PROCESSING_INSTRUCTION:
+                update(digest, node.getNodeName() == null ? "" : node.getNodeName().getClarkName());
+                update(digest, node.getStringValue());
+                break;
+
+            default:
+                update(digest, node.getStringValue());
+                break;
+        }
+        digest.update(SEPARATOR);
+    }
+
+    private static void updateChildren(final MessageDigest digest, final XdmNode node)
+    {
+        for (final XdmNode child : SaxonAxis.childNodesNoAttributes(node))
+        {
+            update(digest, child);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value)
+    {
+        digest.update(value.getBytes(Charsets.UTF_8));
+        digest.update(SEPARATOR);
+    }
+
+    private static String toHexString(final byte[] bytes)
+    {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -19,15 +19,21 @@ package org.trancecode.xml.saxon;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
 
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.type.Type;
 import org.trancecode.api.Nullable;
 import org.trancecode.logging.Logger;
 
@@ -39,6 +45,12 @@ import org.trancecode.logging.Logger;
  * href="http://markmail.org/message/cy6n4zffsh3zw5mz"/>saxon-help email
  * thread</a> for more information).
  * </p>
+ * <p>
+ * Simple patterns such as {@code *}, {@code foo}, {@code @bar}, {@code a/b}
+ * or {@code text()} are matched by checking the kind and the name of the
+ * nodes directly. Other patterns are evaluated with an {@link XPathSelector}
+ * that is reused by each thread.
+ * </p>
  * 
  * @see XPathCompiler#compilePattern(String)
  * @author Romain Deltour
@@ -48,7 +60,67 @@ public class SaxonPatternMatcher implements Predicate<XdmNode>
 {
     private static final Logger LOG = Logger.getLogger(SaxonPatternMatcher.class);
 
-    private XPathExecutable xpathExec;
+    private static final String NCNAME = "[\\p{L}_][\\p{L}\\p{N}_.\\-]*";
+    private static final Pattern NAME_TEST = Pattern.compile("(?:(" + NCNAME + "|\\*):)?(" + NCNAME + "|\\*)");
+    private static final String ANY = "*";
+
+    private final XPathExecutable xpathExec;
+    private final NodeTest nodeTest;
+    private final ThreadLocal<XPathSelector> selector = new ThreadLocal<XPathSelector>()
+    {
+        @Override
+        protected XPathSelector initialValue()
+        {
+            return xpathExec.load();
+        }
+    };
+
+    /**
+     * Tests the kind and the name of a node, and optionally its parent.
+     */
+    private static final class NodeTest
+    {
+        private final int nodeKind;
+        private final String namespaceUri;
+        private final String localName;
+        private final NodeTest parentTest;
+
+        public NodeTest(final int nodeKind, @Nullable final String namespaceUri, @Nullable final String localName,
+                @Nullable final NodeTest parentTest)
+        {
+            this.nodeKind = nodeKind;
+            this.namespaceUri = namespaceUri;
+            this.localName = localName;
+            this.parentTest = parentTest;
+        }
+
+        public boolean matches(final NodeInfo node)
+        {
+            if (node.getNodeKind() != nodeKind)
+            {
+                return false;
+            }
+
+            if (localName != null && !localName.equals(node.getLocalPart()))
+            {
+                return false;
+            }
+
+            if (namespaceUri != null && !namespaceUri.equals(node.getURI()))
+            {
+                return false;
+            }
+
+            // a pattern step only matches nodes that have a parent
+            final NodeInfo parent = node.getParent();
+            if (parent == null)
+            {
+                return false;
+            }
+
+            return parentTest == null || parentTest.matches(parent);
+        }
+    }
 
     /**
      * Creates a new matcher for the given XSLT match pattern.
@@ -87,11 +159,13 @@ public class SaxonPatternMatcher implements Predicate<XdmNode>
         Preconditions.checkNotNull(pattern);
 
         final XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        final Map<String, String> namespaces = Maps.newHashMap();
         if (namespaceContext != null)
         {
             for (final Entry<String, String> namespace : SaxonNamespaces.namespaceSequence(namespaceContext))
             {
                 xpathCompiler.declareNamespace(namespace.getKey(), namespace.getValue());
+                namespaces.put(namespace.getKey(), namespace.getValue());
             }
         }
         try
@@ -102,6 +176,149 @@ public class SaxonPatternMatcher implements Predicate<XdmNode>
         {
             throw new IllegalArgumentException(e.getMessage(), e);
         }
+
+        nodeTest = parseSimplePattern(pattern.trim(), namespaces);
+        LOG.trace("{@method} pattern = {} ; simple = {}", pattern, nodeTest != null);
+    }
+
+    /**
+     * Returns a {@link NodeTest} equivalent to the pattern, or {@code null} if
+     * the pattern is not simple enough.
+     */
+    @Nullable
+    private static NodeTest parseSimplePattern(final String pattern, final Map<String, String> namespaces)
+    {
+        final String[] steps = pattern.split("/", -1);
+        if (steps.length == 1)
+        {
+            return parseStep(steps[0], namespaces, null);
+        }
+
+        if (steps.length == 2)
+        {
+            final NodeTest parentTest = parseElementTest(steps[0], namespaces, null);
+            if (parentTest == null)
+            {
+                return null;
+            }
+            return parseStep(steps[1], namespaces, parentTest);
+        }
+
+        return null;
+    }
+
+    @Nullable
+    private static NodeTest parseStep(final String step, final Map<String, String> namespaces,
+            @Nullable final NodeTest parentTest)
+    {
+        if (step.equals("text()"))
+        {
+            return new NodeTest(Type.TEXT, null, null, parentTest);
+        }
+
+        if (step.equals("comment()"))
+        {
+            return new NodeTest(Type.COMMENT, null, null, parentTest);
+        }
+
+        if (step.equals("processing-instruction()"))
+        {
+            return new NodeTest(Type.PROCESSING_INSTRUCTION, null, null, parentTest);
+        }
+
+        if (step.startsWith("@"))
+        {
+            final Matcher matcher = NAME_TEST.matcher(step.substring(1));
+            if (!matcher.matches())
+            {
+                return null;
+            }
+
+            final String prefix = matcher.group(1);
+            final String namespaceUri;
+            if (prefix == null)
+            {
+                // unprefixed attribute names are never in a namespace
+                namespaceUri = ANY.equals(matcher.group(2)) ? null : "";
+            }
+            else
+            {
+                namespaceUri = resolvePrefix(prefix, namespaces);
+                if (namespaceUri == null && !ANY.equals(prefix))
+                {
+                    return null;
+                }
+            }
+
+            return new NodeTest(Type.ATTRIBUTE, namespaceUri, getLocalName(matcher), parentTest);
+        }
+
+        return parseElementTest(step, namespaces, parentTest);
+    }
+
+    @Nullable
+    private static NodeTest parseElementTest(final String step, final Map<String, String> namespaces,
+            @Nullable final NodeTest parentTest)
+    {
+        final Matcher matcher = NAME_TEST.matcher(step);
+        if (!matcher.matches())
+        {
+            return null;
+        }
+
+        final String prefix = matcher.group(1);
+        final String namespaceUri;
+        if (prefix == null)
+        {
+            if (ANY.equals(matcher.group(2)))
+            {
+                namespaceUri = null;
+            }
+            else
+            {
+                // leave unprefixed names in a default element namespace to
+                // the XPath engine
+                final String defaultNamespaceUri = namespaces.get("");
+                if (defaultNamespaceUri != null && defaultNamespaceUri.length() > 0)
+                {
+                    return null;
+                }
+                namespaceUri = "";
+            }
+        }
+        else
+        {
+            namespaceUri = resolvePrefix(prefix, namespaces);
+            if (namespaceUri == null && !ANY.equals(prefix))
+            {
+                return null;
+            }
+        }
+
+        return new NodeTest(Type.ELEMENT, namespaceUri, getLocalName(matcher), parentTest);
+    }
+
+    @Nullable
+    private static String resolvePrefix(final String prefix, final Map<String, String> namespaces)
+    {
+        if (ANY.equals(prefix))
+        {
+            return null;
+        }
+
+        return namespaces.get(prefix);
+    }
+
+    @Nullable
+    private static String getLocalName(final Matcher nameTestMatcher)
+    {
+        final String localName = nameTestMatcher.group(2);
+        if (ANY.equals(localName))
+        {
+            return null;
+        }
+
+        return localName;
     }
 
     /**
@@ -115,9 +332,14 @@ public class SaxonPatternMatcher implements Predicate<XdmNode>
     {
         Preconditions.checkNotNull(node);
 
+        if (nodeTest != null)
+        {
+            return nodeTest.matches(node.getUnderlyingNode());
+        }
+
         try
         {
-            final XPathSelector s = xpathExec.load();
+            final XPathSelector s = selector.get();
             s.setContextItem(node);
             return s.effectiveBooleanValue();
         }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Exposes Saxon trees as SAX event streams, so that they can be consumed by
+ * SAX-based APIs (JAXP validation for instance) without being serialized and
+ * parsed again.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonSources
+{
+    private static final String FEATURE_NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+    private SaxonSources()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Sends the SAX events describing the specified node to the content
+     * handler.
+     */
+    public static void writeEvents(final XdmNode node, final ContentHandler handler) throws SAXException
+    {
+        try
+        {
+            node.getProcessor().writeXdmValue(node, new SAXDestination(handler));
+        }
+        catch (final SaxonApiException e)
+        {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+            {
+                if (cause instanceof SAXException)
+                {
+                    throw (SAXException) cause;
+                }
+            }
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Returns a {@link SAXSource} whose {@link XMLReader} replays the events of
+     * the specified node, with the base URI of the node as system identifier.
+     */
+    public static SAXSource newSAXSource(final XdmNode node)
+    {
+        final InputSource inputSource = new InputSource();
+        if (node.getBaseURI() != null)
+        {
+            inputSource.setSystemId(node.getBaseURI().toString());
+        }
+
+        return new SAXSource(new NodeXMLReader(node), inputSource);
+    }
+
+    private static final class NodeXMLReader implements XMLReader
+    {
+        private final XdmNode node;
+        private final Map<String, Boolean> features = Maps.newHashMap();
+        private final Map<String, Object> properties = Maps.newHashMap();
+        private ContentHandler contentHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+
+        public NodeXMLReader(final XdmNode node)
+        {
+            this.node = Preconditions.checkNotNull(node);
+            features.put(FEATURE_NAMESPACES, true);
+        }
+
+        @Override
+        public boolean getFeature(final String name)
+        {
+            final Boolean value = features.get(name);
+            return value != null && value;
+        }
+
+        @Override
+        public void setFeature(final String name, final boolean value)
+        {
+            features.put(name, value);
+        }
+
+        @Override
+        public Object getProperty(final String name)
+        {
+            return properties.get(name);
+        }
+
+        @Override
+        public void setProperty(final String name, final Object value)
+        {
+            properties.put(name, value);
+        }
+
+        @Override
+        public void setEntityResolver(final EntityResolver resolver)
+        {
+            entityResolver = resolver;
+        }
+
+        @Override
+        public EntityResolver getEntityResolver()
+        {
+            return entityResolver;
+        }
+
+        @Override
+        public void setDTDHandler(final DTDHandler handler)
+        {
+            dtdHandler = handler;
+        }
+
+        @Override
+        public DTDHandler getDTDHandler()
+        {
+            return dtdHandler;
+        }
+
+        @Override
+        public void setContentHandler(final ContentHandler handler)
+        {
+            contentHandler = handler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler()
+        {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(final ErrorHandler handler)
+        {
+            errorHandler = handler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler()
+        {
+            return errorHandler;
+        }
+
+        @Override
+        public void parse(final InputSource input) throws SAXException
+        {
+            parse((String) null);
+        }
+
+        @Override
+        public void parse(final String systemId) throws SAXException
+        {
+            Preconditions.checkState(contentHandler != null, "no content handler");
+            writeEvents(node, contentHandler);
+        }
+    }
+}
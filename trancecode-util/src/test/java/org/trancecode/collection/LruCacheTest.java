@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.collection;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link LruCache}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class LruCacheTest extends AbstractTest
+{
+    private static final Function<String, Integer> LENGTH = new Function<String, Integer>()
+    {
+        @Override
+        public Integer apply(final String value)
+        {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void getComputesOnce()
+    {
+        final LruCache<Integer, String> cache = LruCache.newCache(10);
+        final Function<Object, String> loader = Functions.toStringFunction();
+        Assert.assertEquals(cache.get(1, loader), "1");
+        Assert.assertEquals(cache.get(1, Functions.constant("other")), "1");
+        Assert.assertEquals(cache.getHitCount(), 1);
+        Assert.assertEquals(cache.getMissCount(), 1);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed()
+    {
+        final LruCache<Integer, String> cache = LruCache.newCache(2);
+        cache.put(1, "1");
+        cache.put(2, "2");
+        Assert.assertEquals(cache.getIfPresent(1), "1");
+        cache.put(3, "3");
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertNull(cache.getIfPresent(2));
+        Assert.assertEquals(cache.getIfPresent(1), "1");
+        Assert.assertEquals(cache.getIfPresent(3), "3");
+        Assert.assertEquals(cache.getEvictionCount(), 1);
+    }
+
+    @Test
+    public void evictByWeight()
+    {
+        final LruCache<Integer, String> cache = LruCache.newWeightedCache(10, LENGTH);
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+        cache.put(3, "cccc");
+        Assert.assertEquals(cache.getWeight(), 8);
+        Assert.assertNull(cache.getIfPresent(1));
+
+        cache.put(4, "this value is too heavy to be cached");
+        Assert.assertNull(cache.getIfPresent(4));
+        Assert.assertEquals(cache.getWeight(), 8);
+    }
+
+    @Test
+    public void invalidate()
+    {
+        final LruCache<Integer, String> cache = LruCache.newWeightedCache(10, LENGTH);
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+        cache.invalidate(1);
+        Assert.assertNull(cache.getIfPresent(1));
+        Assert.assertEquals(cache.getWeight(), 4);
+        cache.invalidateAll();
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getWeight(), 0);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.collection;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link PersistentHashMap}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PersistentHashMapTest extends AbstractTest
+{
+    /**
+     * A key whose hash code is shared by many instances.
+     */
+    private static final class CollidingKey
+    {
+        private final int value;
+
+        public CollidingKey(final int value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            return o instanceof CollidingKey && ((CollidingKey) o).value == value;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return value % 3;
+        }
+    }
+
+    @Test
+    public void plusAndMinus()
+    {
+        final Random random = new Random(42);
+        final Map<Integer, String> expected = Maps.newHashMap();
+        PersistentHashMap<Integer, String> map = PersistentHashMap.of();
+        for (int i = 0; i < 10000; i++)
+        {
+            final int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0)
+            {
+                expected.remove(key);
+                map = map.minus(key);
+            }
+            else
+            {
+                expected.put(key, "value" + i);
+                map = map.plus(key, "value" + i);
+            }
+        }
+
+        Assert.assertEquals(map.size(), expected.size());
+        Assert.assertEquals(map, expected);
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(map.hashCode(), expected.hashCode());
+    }
+
+    @Test
+    public void structuralSharing()
+    {
+        final PersistentHashMap<String, String> map1 = PersistentHashMap.<String, String> of().plus("a", "1")
+                .plus("b", "2");
+        final PersistentHashMap<String, String> map2 = map1.plus("c", "3");
+        final PersistentHashMap<String, String> map3 = map2.minus("a");
+
+        Assert.assertEquals(map1.size(), 2);
+        Assert.assertNull(map1.get("c"));
+        Assert.assertEquals(map2.size(), 3);
+        Assert.assertEquals(map2.get("a"), "1");
+        Assert.assertEquals(map3.size(), 2);
+        Assert.assertFalse(map3.containsKey("a"));
+        Assert.assertSame(map2.plus("c", "3"), map2);
+        Assert.assertSame(map2.minus("d"), map2);
+        Assert.assertSame(PersistentHashMap.copyOf(map2), map2);
+    }
+
+    @Test
+    public void collisions()
+    {
+        PersistentHashMap<CollidingKey, Integer> map = PersistentHashMap.of();
+        for (int i = 0; i < 100; i++)
+        {
+            map = map.plus(new CollidingKey(i), i);
+        }
+        Assert.assertEquals(map.size(), 100);
+        Assert.assertEquals(map.get(new CollidingKey(42)), Integer.valueOf(42));
+
+        for (int i = 0; i < 100; i += 2)
+        {
+            map = map.minus(new CollidingKey(i));
+        }
+        Assert.assertEquals(map.size(), 50);
+        Assert.assertNull(map.get(new CollidingKey(42)));
+        Assert.assertEquals(map.get(new CollidingKey(43)), Integer.valueOf(43));
+        Assert.assertEquals(map.entrySet().size(), 50);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void put()
+    {
+        PersistentHashMap.<String, String> of().put("a", "1");
+    }
+}
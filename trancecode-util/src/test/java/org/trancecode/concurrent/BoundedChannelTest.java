@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.concurrent;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link BoundedChannel}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class BoundedChannelTest extends AbstractTest
+{
+    private static Thread startProducer(final BoundedChannel<Integer> channel, final int count,
+            final AtomicInteger produced)
+    {
+        final Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    channel.put(i);
+                    produced.incrementAndGet();
+                }
+                channel.close();
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+        return producer;
+    }
+
+    @Test(timeOut = 10000)
+    public void consumeInOrder() throws Exception
+    {
+        final BoundedChannel<Integer> channel = BoundedChannel.newChannel(4);
+        channel.setBounded(true);
+        startProducer(channel, 100, new AtomicInteger());
+        final List<Integer> elements = ImmutableList.copyOf(channel.consume());
+        Assert.assertEquals(elements.size(), 100);
+        for (int i = 0; i < 100; i++)
+        {
+            Assert.assertEquals(elements.get(i).intValue(), i);
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void backPressure() throws Exception
+    {
+        final BoundedChannel<Integer> channel = BoundedChannel.newChannel(2);
+        channel.setBounded(true);
+        final AtomicInteger produced = new AtomicInteger();
+        final Thread producer = startProducer(channel, 10, produced);
+        final Iterator<Integer> iterator = channel.consume();
+        Assert.assertEquals(iterator.next().intValue(), 0);
+        Thread.sleep(200);
+        Assert.assertTrue(produced.get() <= 3, "produced = " + produced.get());
+
+        channel.setBounded(false);
+        producer.join(5000);
+        Assert.assertEquals(produced.get(), 10);
+        Assert.assertEquals(ImmutableList.copyOf(iterator).size(), 9);
+    }
+
+    @Test(timeOut = 10000)
+    public void discardUnblocksProducer() throws Exception
+    {
+        final BoundedChannel<Integer> channel = BoundedChannel.newChannel(1);
+        channel.setBounded(true);
+        final AtomicInteger produced = new AtomicInteger();
+        final Thread producer = startProducer(channel, 10, produced);
+        Thread.sleep(100);
+        channel.discard();
+        producer.join(5000);
+        Assert.assertEquals(produced.get(), 10);
+        Assert.assertFalse(channel.consume().hasNext());
+    }
+
+    @Test(timeOut = 10000)
+    public void failure() throws Exception
+    {
+        final BoundedChannel<Integer> channel = BoundedChannel.newChannel(4);
+        final CountDownLatch failed = new CountDownLatch(1);
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                channel.put(1);
+                channel.fail(new IllegalArgumentException("error"));
+                failed.countDown();
+            }
+        }.start();
+        Assert.assertTrue(failed.await(5, TimeUnit.SECONDS));
+
+        final Iterator<Integer> iterator = channel.consume();
+        Assert.assertEquals(iterator.next().intValue(), 1);
+        try
+        {
+            iterator.hasNext();
+            Assert.fail();
+        }
+        catch (final IllegalArgumentException e)
+        {
+            Assert.assertEquals(e.getMessage(), "error");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void consumeOnlyOnce()
+    {
+        final BoundedChannel<Integer> channel = BoundedChannel.newChannel(4);
+        channel.consume();
+        channel.consume();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link RingBuffer}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class RingBufferTest extends AbstractTest
+{
+    @Test
+    public void capacity()
+    {
+        Assert.assertEquals(RingBuffer.newRingBuffer(1).getCapacity(), 1);
+        Assert.assertEquals(RingBuffer.newRingBuffer(4).getCapacity(), 4);
+        Assert.assertEquals(RingBuffer.newRingBuffer(5).getCapacity(), 8);
+    }
+
+    @Test
+    public void poll()
+    {
+        final RingBuffer<Integer> buffer = RingBuffer.newRingBuffer(2);
+        Assert.assertNull(buffer.poll(0, TimeUnit.MILLISECONDS));
+        buffer.put(1);
+        buffer.put(2);
+        Assert.assertEquals(buffer.size(), 2);
+        Assert.assertEquals(buffer.poll(0, TimeUnit.MILLISECONDS).intValue(), 1);
+        Assert.assertEquals(buffer.take().intValue(), 2);
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test(timeOut = 10000)
+    public void concurrentProducers() throws Exception
+    {
+        final RingBuffer<Integer> buffer = RingBuffer.newRingBuffer(4);
+        final int producerCount = 4;
+        final int elementsPerProducer = 1000;
+        final AtomicInteger produced = new AtomicInteger();
+        for (int i = 0; i < producerCount; i++)
+        {
+            final Thread producer = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < elementsPerProducer; j++)
+                    {
+                        buffer.put(j);
+                        produced.incrementAndGet();
+                    }
+                }
+            };
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        long sum = 0;
+        for (int i = 0; i < producerCount * elementsPerProducer; i++)
+        {
+            // producers never get more than the capacity ahead
+            Assert.assertTrue(produced.get() - i <= buffer.getCapacity() + producerCount);
+            sum += buffer.take();
+        }
+        Assert.assertEquals(sum, (long) producerCount * elementsPerProducer * (elementsPerProducer - 1) / 2);
+        Assert.assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2010 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.concurrent;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link TaskExecutors}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class TaskExecutorsTest extends AbstractTest
+{
+    private static Callable<Integer> newNestedTask(final TaskExecutor executor, final int depth, final int width)
+    {
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call() throws Exception
+            {
+                if (depth == 0)
+                {
+                    return 1;
+                }
+
+                final List<Future<Integer>> children = Lists.newArrayList();
+                for (int i = 0; i < width; i++)
+                {
+                    children.add(executor.submit(newNestedTask(executor, depth - 1, width)));
+                }
+
+                int count = 1;
+                for (final Future<Integer> child : children)
+                {
+                    count += child.get();
+                }
+
+                return count;
+            }
+        };
+    }
+
+    @Test(timeOut = 10000)
+    public void workStealingExecutorNestedTasksWithSingleThread() throws Exception
+    {
+        final TaskExecutor executor = TaskExecutors.workStealingExecutor(1);
+        Assert.assertEquals(executor.submit(newNestedTask(executor, 4, 3)).get().intValue(), 1 + 3 + 9 + 27 + 81);
+    }
+
+    @Test(timeOut = 10000)
+    public void workStealingExecutorNestedTasks() throws Exception
+    {
+        final TaskExecutor executor = TaskExecutors.workStealingExecutor(4);
+        Assert.assertEquals(executor.submit(newNestedTask(executor, 4, 3)).get().intValue(), 1 + 3 + 9 + 27 + 81);
+    }
+
+    @Test(timeOut = 10000)
+    public void workStealingExecutorRunsTasksConcurrently() throws Exception
+    {
+        final int parallelism = 3;
+        final TaskExecutor executor = TaskExecutors.workStealingExecutor(parallelism);
+        final CountDownLatch started = new CountDownLatch(parallelism);
+        final List<Future<Boolean>> results = Lists.newArrayList();
+        for (int i = 0; i < parallelism; i++)
+        {
+            results.add(executor.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws Exception
+                {
+                    started.countDown();
+                    return started.await(5, TimeUnit.SECONDS);
+                }
+            }));
+        }
+
+        for (final Future<Boolean> result : results)
+        {
+            Assert.assertTrue(result.get());
+        }
+    }
+
+    @Test
+    public void workStealingExecutorRunsTaskOnce() throws Exception
+    {
+        final TaskExecutor executor = TaskExecutors.workStealingExecutor(2);
+        final AtomicInteger count = new AtomicInteger();
+        final List<Future<Integer>> results = Lists.newArrayList();
+        for (int i = 0; i < 100; i++)
+        {
+            results.add(executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                {
+                    return count.incrementAndGet();
+                }
+            }));
+        }
+
+        for (final Future<Integer> result : results)
+        {
+            result.get();
+        }
+
+        Assert.assertEquals(count.get(), 100);
+    }
+}
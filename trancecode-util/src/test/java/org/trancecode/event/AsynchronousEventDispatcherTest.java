@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.event;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link AsynchronousEventDispatcher}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class AsynchronousEventDispatcherTest extends AbstractTest
+{
+    private static final class TestEvent implements Event
+    {
+        private final int id;
+
+        public TestEvent(final int id)
+        {
+            this.id = id;
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void deliverInOrder()
+    {
+        final AsynchronousEventDispatcher<TestEvent> dispatcher = EventDispatchers.newAsynchronousEventDispatcher(4);
+        Assert.assertFalse(dispatcher.hasObservers());
+        // not buffered
+        dispatcher.notify(new TestEvent(-1));
+
+        final List<Integer> received = Collections.synchronizedList(Lists.<Integer> newArrayList());
+        final Thread producer = Thread.currentThread();
+        dispatcher.addObserver(new EventObserver<TestEvent>()
+        {
+            @Override
+            public void notify(final TestEvent event)
+            {
+                Assert.assertNotSame(Thread.currentThread(), producer);
+                received.add(event.id);
+            }
+        });
+        Assert.assertTrue(dispatcher.hasObservers());
+
+        for (int i = 0; i < 100; i++)
+        {
+            dispatcher.notify(new TestEvent(i));
+        }
+        dispatcher.flush();
+
+        Assert.assertEquals(received.size(), 100);
+        for (int i = 0; i < 100; i++)
+        {
+            Assert.assertEquals(received.get(i).intValue(), i);
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void observerFailure()
+    {
+        final AsynchronousEventDispatcher<TestEvent> dispatcher = EventDispatchers.newAsynchronousEventDispatcher(1);
+        final List<Integer> received = Collections.synchronizedList(Lists.<Integer> newArrayList());
+        final List<Integer> receivedByOther = Collections.synchronizedList(Lists.<Integer> newArrayList());
+        dispatcher.addObserver(new EventObserver<TestEvent>()
+        {
+            @Override
+            public void notify(final TestEvent event)
+            {
+                received.add(event.id);
+                if (event.id == 0)
+                {
+                    throw new IllegalStateException();
+                }
+            }
+        });
+        dispatcher.addObserver(new EventObserver<TestEvent>()
+        {
+            @Override
+            public void notify(final TestEvent event)
+            {
+                receivedByOther.add(event.id);
+            }
+        });
+
+        dispatcher.notify(new TestEvent(0));
+        dispatcher.notify(new TestEvent(1));
+        dispatcher.flush();
+        Assert.assertEquals(received.size(), 2);
+        // whatever the order of the observers
+        Assert.assertEquals(receivedByOther.size(), 2);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link MultipartStream}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class MultipartStreamTest extends AbstractTest
+{
+    @Test
+    public void readParts() throws Exception
+    {
+        // small buffer so that delimiters span several reads
+        for (final int bufferSize : new int[] { 64, MultipartStream.DEFAULT_BUFFER_SIZE })
+        {
+            final InputStream stream = getClass().getClassLoader().getResourceAsStream("fixed-multipart");
+            final MultipartStream multipart = new MultipartStream(stream, "=-=-=-=-=", bufferSize);
+
+            final MultipartStream.Part html = multipart.nextPart();
+            Assert.assertEquals(html.getHeaderValue(HttpHeaders.CONTENT_TYPE), "text/html");
+            Assert.assertEquals(IOUtils.toByteArray(html.getContent()).length, 206);
+
+            final MultipartStream.Part png = multipart.nextPart();
+            Assert.assertEquals(png.getHeaderValue(HttpHeaders.CONTENT_TYPE), "image/png");
+            Assert.assertEquals(IOUtils.toByteArray(png.getContent()).length, 12791);
+
+            Assert.assertNull(multipart.nextPart());
+        }
+    }
+
+    @Test
+    public void skipUnreadParts() throws Exception
+    {
+        final InputStream stream = getClass().getClassLoader().getResourceAsStream("fixed-multipart");
+        final MultipartStream multipart = new MultipartStream(stream, "=-=-=-=-=");
+        Assert.assertNotNull(multipart.nextPart());
+        final MultipartStream.Part png = multipart.nextPart();
+        Assert.assertEquals(png.getHeaderValue(HttpHeaders.CONTENT_LENGTH), "12791");
+        Assert.assertNull(multipart.nextPart());
+    }
+
+    @Test
+    public void preambleAndEpilogue() throws Exception
+    {
+        final String message = "preamble\r\n--b\r\nX-Test: 1\r\n\r\nfirst\r\n--b\r\n\r\nsecond\n--b-\r\n--b--\r\n"
+                + "epilogue";
+        final MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(message.getBytes("US-ASCII")),
+                "b");
+
+        final MultipartStream.Part first = multipart.nextPart();
+        Assert.assertEquals(first.getHeaderValue("X-Test"), "1");
+        Assert.assertEquals(IOUtils.toString(first.getContent(), "US-ASCII"), "first");
+
+        final MultipartStream.Part second = multipart.nextPart();
+        Assert.assertNull(second.getHeaderValue("X-Test"));
+        Assert.assertEquals(IOUtils.toString(second.getContent(), "US-ASCII"), "second\n--b-");
+
+        Assert.assertNull(multipart.nextPart());
+    }
+}
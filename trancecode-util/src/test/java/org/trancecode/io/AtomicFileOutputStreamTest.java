@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.io;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link AtomicFileOutputStream}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class AtomicFileOutputStreamTest extends AbstractTest
+{
+    private static File newDirectory() throws IOException
+    {
+        final File directory = File.createTempFile(AtomicFileOutputStreamTest.class.getSimpleName(), "");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdir());
+        return directory;
+    }
+
+    @Test
+    public void replaceOnClose() throws IOException
+    {
+        final File directory = newDirectory();
+        final File file = new File(directory, "file.txt");
+        com.google.common.io.Files.write("old", file, Charsets.UTF_8);
+
+        final AtomicFileOutputStream out = new AtomicFileOutputStream(file, 4);
+        out.write("new content".getBytes("UTF-8"));
+        Assert.assertEquals(com.google.common.io.Files.toString(file, Charsets.UTF_8), "old");
+        out.close();
+        out.close();
+
+        Assert.assertEquals(com.google.common.io.Files.toString(file, Charsets.UTF_8), "new content");
+        Assert.assertEquals(directory.list().length, 1);
+    }
+
+    @Test
+    public void abort() throws IOException
+    {
+        final File directory = newDirectory();
+        final File file = new File(directory, "file.txt");
+
+        final AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        out.write("partial".getBytes("UTF-8"));
+        out.abort();
+        out.close();
+
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(directory.list().length, 0);
+    }
+}
@@ -71,6 +71,41 @@ public class SaxonPatternMatcherTest extends AbstractTest
         Assert.assertFalse(matcher.match(node));
     }
 
+    @Test
+    public void matchSimplePatterns() throws Exception
+    {
+        final XdmNode doc = Saxon.parse("<doc xmlns:x='urn:x'><a><b attr='value'>text</b></a><x:c/></doc>", processor);
+        final XdmNode b = select("/doc/a/b", doc);
+        final XdmNode attribute = select("/doc/a/b/@attr", doc);
+        final XdmNode text = select("/doc/a/b/text()", doc);
+        final XdmNode c = select("/doc/*[2]", doc);
+        final XdmNode namespaceContext = select("/doc", doc);
+
+        Assert.assertTrue(new SaxonPatternMatcher(processor, "*").match(b));
+        Assert.assertFalse(new SaxonPatternMatcher(processor, "*").match(attribute));
+        Assert.assertFalse(new SaxonPatternMatcher(processor, "*").match(doc));
+        Assert.assertTrue(new SaxonPatternMatcher(processor, "a/b").match(b));
+        Assert.assertFalse(new SaxonPatternMatcher(processor, "doc/b").match(b));
+        Assert.assertTrue(new SaxonPatternMatcher(processor, "@attr").match(attribute));
+        Assert.assertTrue(new SaxonPatternMatcher(processor, "b/@*").match(attribute));
+        Assert.assertFalse(new SaxonPatternMatcher(processor, "@attr").match(b));
+        Assert.assertTrue(new SaxonPatternMatcher(processor, "text()").match(text));
+        Assert.assertFalse(new SaxonPatternMatcher(processor, "text()").match(b));
+        Assert.assertTrue(new SaxonPatternMatcher(processor, "x:c", namespaceContext).match(c));
+        Assert.assertTrue(new SaxonPatternMatcher(processor, "x:*", namespaceContext).match(c));
+        Assert.assertFalse(new SaxonPatternMatcher(processor, "c", namespaceContext).match(c));
+    }
+
+    @Test
+    public void matchComplexPattern() throws Exception
+    {
+        final XdmNode doc = Saxon.parse("<doc><elem id='1'/><elem id='2'/></doc>", processor);
+        final SaxonPatternMatcher matcher = new SaxonPatternMatcher(processor, "elem[@id = '2']");
+        Assert.assertFalse(matcher.match(select("/doc/elem[1]", doc)));
+        Assert.assertTrue(matcher.match(select("/doc/elem[2]", doc)));
+        Assert.assertFalse(matcher.match(select("/doc/elem[1]", doc)));
+    }
+
     private XdmNode select(final String select, final XdmNode xpathContext)
     {
         try
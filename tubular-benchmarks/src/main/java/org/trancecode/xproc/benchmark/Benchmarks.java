@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.benchmark;
+
+import com.google.common.collect.Iterables;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineConfiguration;
+import org.trancecode.xproc.PipelineProcessor;
+import org.trancecode.xproc.RunnablePipeline;
+import org.trancecode.xproc.port.XProcPorts;
+
+/**
+ * Utility methods to build the pipelines and documents used by benchmarks.
+ * 
+ * @author Herve Quiroz
+ */
+public final class Benchmarks
+{
+    private static final String PIPELINE_BASE_URI = "file:///benchmark/";
+
+    private Benchmarks()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Returns the serialization of a document with the specified number of
+     * {@code item} elements.
+     */
+    public static String newDocument(final int items)
+    {
+        final StringBuilder document = new StringBuilder("<doc>");
+        for (int i = 0; i < items; i++)
+        {
+            document.append("<item id=\"").append(i).append("\" type=\"").append(i % 3 == 0 ? "a" : "b")
+                    .append("\"><name>item ").append(i).append("</name><value>").append(i * 7 % 100)
+                    .append("</value></item>");
+        }
+        return document.append("</doc>").toString();
+    }
+
+    /**
+     * Returns the serialization of a {@code p:pipeline} with the specified
+     * subpipeline.
+     */
+    public static String newPipeline(final String subpipeline)
+    {
+        return "<p:pipeline name=\"pipeline\" version=\"1.0\" xmlns:p=\"http://www.w3.org/ns/xproc\""
+                + " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\""
+                + " xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">" + subpipeline + "</p:pipeline>";
+    }
+
+    public static PipelineProcessor newPipelineProcessor(final int parallelism)
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setParallelism(parallelism);
+        return new PipelineProcessor(configuration);
+    }
+
+    public static PipelineProcessor newPipelineProcessor()
+    {
+        return newPipelineProcessor(1);
+    }
+
+    public static Pipeline buildPipeline(final PipelineProcessor pipelineProcessor, final String name,
+            final String pipeline)
+    {
+        return pipelineProcessor.buildPipeline(new StreamSource(new StringReader(pipeline), PIPELINE_BASE_URI + name
+                + ".xpl"));
+    }
+
+    /**
+     * Parses a document with the same Saxon configuration as the pipelines
+     * built by the specified processor.
+     */
+    public static XdmNode parse(final PipelineProcessor pipelineProcessor, final String document)
+    {
+        try
+        {
+            return pipelineProcessor.getPipelineContext().getProcessor().newDocumentBuilder()
+                    .build(new StreamSource(new StringReader(document)));
+        }
+        catch (final SaxonApiException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs the pipeline with the specified document on its {@code source} port
+     * and returns the document from its {@code result} port.
+     */
+    public static XdmNode run(final Pipeline pipeline, final XdmNode source)
+    {
+        final RunnablePipeline runnablePipeline = pipeline.load();
+        runnablePipeline.bindSourcePort(XProcPorts.SOURCE, source.asSource());
+        return Iterables.getOnlyElement(runnablePipeline.run().readNodes(XProcPorts.RESULT));
+    }
+}
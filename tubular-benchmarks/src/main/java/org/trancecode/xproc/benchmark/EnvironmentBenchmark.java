@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.benchmark;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineProcessor;
+import org.trancecode.xproc.port.EnvironmentPort;
+import org.trancecode.xproc.port.Port;
+
+/**
+ * Benchmarks of {@link Environment#evaluateXPath(String, XdmNode)}, as used
+ * for options, variables and {@code select} attributes, and of the derivation
+ * of environments along a chain of steps.
+ * 
+ * @author Herve Quiroz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnvironmentBenchmark
+{
+    @Param({ "10", "1000" })
+    public int items;
+
+    private Environment environment;
+    private XdmNode document;
+
+    @Setup
+    public void setUp()
+    {
+        final PipelineProcessor pipelineProcessor = Benchmarks.newPipelineProcessor();
+        final Pipeline pipeline = Benchmarks.buildPipeline(pipelineProcessor, "environment",
+                Benchmarks.newPipeline("<p:identity/>"));
+        environment = Environment.newEnvironment(pipeline.getUnderlyingPipeline(), pipeline.getPipelineContext());
+        document = Benchmarks.parse(pipelineProcessor, Benchmarks.newDocument(items));
+    }
+
+    @Benchmark
+    public XdmValue evaluatePath()
+    {
+        return environment.evaluateXPath("/doc/item[1]/@id", document);
+    }
+
+    @Benchmark
+    public XdmValue evaluateAggregate()
+    {
+        return environment.evaluateXPath("sum(//item[@type = 'a']/value)", document);
+    }
+
+    /**
+     * Derives the environments of a chain of {@code items} steps, each one
+     * adding an output port and a variable.
+     */
+    @Benchmark
+    public Environment buildEnvironmentChain()
+    {
+        Environment chainEnvironment = environment;
+        for (int i = 0; i < items; i++)
+        {
+            final String stepName = "step" + i;
+            chainEnvironment = chainEnvironment.newFollowingStepEnvironment();
+            final EnvironmentPort port = EnvironmentPort.newEnvironmentPort(
+                    Port.newOutputPort(stepName, "result", null), chainEnvironment);
+            chainEnvironment = chainEnvironment.addPorts(port);
+            chainEnvironment = chainEnvironment.setDefaultReadablePort(port);
+            chainEnvironment = chainEnvironment.setLocalVariables(ImmutableMap.of(new QName("variable" + i),
+                    stepName));
+            if (i % 100 == 0)
+            {
+                chainEnvironment = chainEnvironment.newChildStepEnvironment();
+            }
+        }
+
+        return chainEnvironment;
+    }
+}
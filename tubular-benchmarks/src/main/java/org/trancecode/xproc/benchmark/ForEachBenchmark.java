@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineProcessor;
+
+/**
+ * Benchmarks of {@code p:for-each} iterating over the {@code item} elements of
+ * a document.
+ * 
+ * @author Herve Quiroz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForEachBenchmark
+{
+    private static final String PIPELINE = Benchmarks.newPipeline("<p:for-each>"
+            + "<p:iteration-source select=\"/doc/item\"/>"
+            + "<p:add-attribute match=\"/item\" attribute-name=\"seen\" attribute-value=\"true\"/>"
+            + "</p:for-each><p:count/>");
+
+    @Param({ "10", "100", "1000" })
+    public int documents;
+
+    @Param({ "1", "4" })
+    public int parallelism;
+
+    private Pipeline pipeline;
+    private XdmNode document;
+
+    @Setup
+    public void setUp()
+    {
+        final PipelineProcessor pipelineProcessor = Benchmarks.newPipelineProcessor(parallelism);
+        pipeline = Benchmarks.buildPipeline(pipelineProcessor, "for-each", PIPELINE);
+        document = Benchmarks.parse(pipelineProcessor, Benchmarks.newDocument(documents));
+    }
+
+    @Benchmark
+    public XdmNode forEach()
+    {
+        return Benchmarks.run(pipeline, document);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineProcessor;
+
+/**
+ * Benchmarks of standard steps applied to documents of increasing size.
+ * 
+ * @author Herve Quiroz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StepBenchmark
+{
+    private static final String XSLT = Benchmarks.newPipeline("<p:xslt><p:input port=\"stylesheet\"><p:inline>"
+            + "<xsl:stylesheet version=\"2.0\">"
+            + "<xsl:template match=\"/doc\"><summary><xsl:for-each-group select=\"item\" group-by=\"@type\">"
+            + "<group type=\"{current-grouping-key()}\" total=\"{sum(current-group()/value)}\"/>"
+            + "</xsl:for-each-group></summary></xsl:template>"
+            + "</xsl:stylesheet></p:inline></p:input></p:xslt>");
+
+    private static final String VALIDATE_WITH_SCHEMA = Benchmarks.newPipeline("<p:validate-with-xml-schema>"
+            + "<p:input port=\"schema\"><p:inline><xs:schema>"
+            + "<xs:element name=\"doc\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"item\" minOccurs=\"0\" maxOccurs=\"unbounded\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"name\" type=\"xs:string\"/><xs:element name=\"value\" type=\"xs:integer\"/>"
+            + "</xs:sequence><xs:attribute name=\"id\" type=\"xs:integer\"/>"
+            + "<xs:attribute name=\"type\" type=\"xs:string\"/></xs:complexType></xs:element>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "</xs:schema></p:inline></p:input></p:validate-with-xml-schema>");
+
+    private static final String TEMPLATE = Benchmarks.newPipeline("<p:template><p:input port=\"template\">"
+            + "<p:inline><summary items=\"{count(/doc/item)}\">"
+            + "<first>{/doc/item[1]/name/text()}</first><total>{sum(/doc/item/value)}</total>"
+            + "</summary></p:inline></p:input></p:template>");
+
+    private static final String VIEWPORT = Benchmarks.newPipeline("<p:viewport match=\"item[@type = 'a']\">"
+            + "<p:add-attribute match=\"/item\" attribute-name=\"seen\" attribute-value=\"true\"/>"
+            + "</p:viewport>");
+
+    @Param({ "10", "1000", "100000" })
+    public int items;
+
+    private Pipeline xslt;
+    private Pipeline validateWithSchema;
+    private Pipeline template;
+    private Pipeline viewport;
+    private XdmNode document;
+
+    @Setup
+    public void setUp()
+    {
+        final PipelineProcessor pipelineProcessor = Benchmarks.newPipelineProcessor();
+        xslt = Benchmarks.buildPipeline(pipelineProcessor, "xslt", XSLT);
+        validateWithSchema = Benchmarks.buildPipeline(pipelineProcessor, "validate-with-xml-schema",
+                VALIDATE_WITH_SCHEMA);
+        template = Benchmarks.buildPipeline(pipelineProcessor, "template", TEMPLATE);
+        viewport = Benchmarks.buildPipeline(pipelineProcessor, "viewport", VIEWPORT);
+        document = Benchmarks.parse(pipelineProcessor, Benchmarks.newDocument(items));
+    }
+
+    @Benchmark
+    public XdmNode xslt()
+    {
+        return Benchmarks.run(xslt, document);
+    }
+
+    @Benchmark
+    public XdmNode validateWithSchema()
+    {
+        return Benchmarks.run(validateWithSchema, document);
+    }
+
+    @Benchmark
+    public XdmNode template()
+    {
+        return Benchmarks.run(template, document);
+    }
+
+    @Benchmark
+    public XdmNode viewport()
+    {
+        return Benchmarks.run(viewport, document);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineProcessor;
+
+/**
+ * Benchmarks of the engine overhead: documents read through chains of
+ * {@code p:pipe} bindings, and subpipelines made of many independent steps or
+ * of deeply nested compound steps.
+ * 
+ * @author Herve Quiroz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubpipelineBenchmark
+{
+    @Param({ "10", "100" })
+    public int steps;
+
+    @Param({ "1", "4" })
+    public int parallelism;
+
+    private Pipeline pipeChain;
+    private Pipeline wideSubpipeline;
+    private Pipeline deepSubpipeline;
+    private XdmNode document;
+
+    @Setup
+    public void setUp()
+    {
+        final PipelineProcessor pipelineProcessor = Benchmarks.newPipelineProcessor(parallelism);
+        final StringBuilder pipeChainSteps = new StringBuilder();
+        for (int i = 0; i < steps; i++)
+        {
+            pipeChainSteps.append("<p:identity name=\"identity").append(i)
+                    .append("\"><p:input port=\"source\"><p:pipe step=\"")
+                    .append(i == 0 ? "pipeline" : "identity" + (i - 1)).append("\" port=\"")
+                    .append(i == 0 ? "source" : "result").append("\"/></p:input></p:identity>");
+        }
+        pipeChain = Benchmarks.buildPipeline(pipelineProcessor, "pipe-chain",
+                Benchmarks.newPipeline(pipeChainSteps.toString()));
+
+        final StringBuilder wideSteps = new StringBuilder();
+        final StringBuilder join = new StringBuilder("<p:identity name=\"join\"><p:input port=\"source\">");
+        for (int i = 0; i < steps; i++)
+        {
+            wideSteps.append("<p:identity name=\"identity").append(i)
+                    .append("\"><p:input port=\"source\"><p:pipe step=\"pipeline\" port=\"source\"/></p:input>")
+                    .append("</p:identity>");
+            join.append("<p:pipe step=\"identity").append(i).append("\" port=\"result\"/>");
+        }
+        join.append("</p:input></p:identity><p:count/>");
+        wideSubpipeline = Benchmarks.buildPipeline(pipelineProcessor, "wide-subpipeline",
+                Benchmarks.newPipeline(wideSteps.toString() + join));
+
+        final StringBuilder deepSteps = new StringBuilder();
+        for (int i = 0; i < steps; i++)
+        {
+            deepSteps.append("<p:group name=\"group").append(i).append("\"><p:identity/>");
+        }
+        for (int i = 0; i < steps; i++)
+        {
+            deepSteps.append("</p:group>");
+        }
+        deepSubpipeline = Benchmarks.buildPipeline(pipelineProcessor, "deep-subpipeline",
+                Benchmarks.newPipeline(deepSteps.toString()));
+
+        document = Benchmarks.parse(pipelineProcessor, Benchmarks.newDocument(10));
+    }
+
+    @Benchmark
+    public XdmNode pipeChain()
+    {
+        return Benchmarks.run(pipeChain, document);
+    }
+
+    @Benchmark
+    public XdmNode wideSubpipeline()
+    {
+        return Benchmarks.run(wideSubpipeline, document);
+    }
+
+    @Benchmark
+    public XdmNode deepSubpipeline()
+    {
+        return Benchmarks.run(deepSubpipeline, document);
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.cli;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.URIResolver;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.trancecode.api.Nullable;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.logging.Logger;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineResult;
+import org.trancecode.xproc.RunnablePipeline;
+import org.trancecode.xproc.port.Port;
+import org.trancecode.xproc.step.Step;
+
+/**
+ * Runs one compiled {@link Pipeline} for many inputs, each of them with its
+ * own {@link RunnablePipeline}, so that the JVM startup, the step discovery,
+ * the parsing of the pipeline and the warm-up of Saxon are paid once.
+ * <p>
+ * A job is described with the {@code -b}, {@code -o} and {@code -p} arguments
+ * of the command line separated by whitespace, for instance
+ * {@code -b source=in/1.xml -b result=out/1.xml -o mode=fast}. Binding an
+ * output port writes its document to the given file. The arguments given on
+ * the command line apply to every job unless the job overrides them.
+ * 
+ * @author Herve Quiroz
+ */
+final class BatchExecutor
+{
+    private static final Logger LOG = Logger.getLogger(BatchExecutor.class);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * The port bindings, options and parameters of one run of the pipeline.
+     */
+    static final class Job
+    {
+        private final String name;
+        private final File baseDirectory;
+        private final Map<String, String> portBindings;
+        private final Map<String, String> options;
+        private final Map<String, String> params;
+
+        private Job(final String name, @Nullable final File baseDirectory,
+                final Map<String, String> portBindings, final Map<String, String> options,
+                final Map<String, String> params)
+        {
+            this.name = Preconditions.checkNotNull(name);
+            this.baseDirectory = baseDirectory;
+            this.portBindings = portBindings;
+            this.options = options;
+            this.params = params;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    private final Pipeline pipeline;
+    private final URIResolver uriResolver;
+    private final Option portBindingOption;
+    private final Option optionOption;
+    private final Option paramOption;
+    private final Options jobOptions;
+    private final Job defaultJob;
+    private final ExecutorService executor;
+
+    BatchExecutor(final Pipeline pipeline, final URIResolver uriResolver, final Option portBindingOption,
+            final Option optionOption, final Option paramOption, final CommandLine commandLine, final int jobs)
+    {
+        Preconditions.checkArgument(jobs > 0, "jobs = %s", jobs);
+        this.pipeline = Preconditions.checkNotNull(pipeline);
+        this.uriResolver = Preconditions.checkNotNull(uriResolver);
+        this.portBindingOption = portBindingOption;
+        this.optionOption = optionOption;
+        this.paramOption = paramOption;
+        jobOptions = new Options();
+        jobOptions.addOption(portBindingOption);
+        jobOptions.addOption(optionOption);
+        jobOptions.addOption(paramOption);
+        defaultJob = newJob("default", null, commandLine, null);
+        executor = Executors.newFixedThreadPool(jobs, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("tubular-cli-job-%d").build());
+    }
+
+    private Job newJob(final String name, @Nullable final File baseDirectory, final CommandLine commandLine,
+            @Nullable final Job defaults)
+    {
+        final Map<String, String> portBindings = Maps.newHashMap();
+        final Map<String, String> options = Maps.newHashMap();
+        final Map<String, String> params = Maps.newHashMap();
+        if (defaults != null)
+        {
+            portBindings.putAll(defaults.portBindings);
+            options.putAll(defaults.options);
+            params.putAll(defaults.params);
+        }
+        putAll(commandLine.getOptionProperties(portBindingOption.getOpt()), portBindings);
+        putAll(commandLine.getOptionProperties(optionOption.getOpt()), options);
+        putAll(commandLine.getOptionProperties(paramOption.getOpt()), params);
+
+        return new Job(name, baseDirectory, portBindings, options, params);
+    }
+
+    private static void putAll(final Properties properties, final Map<String, String> map)
+    {
+        for (final String name : properties.stringPropertyNames())
+        {
+            map.put(name, properties.getProperty(name));
+        }
+    }
+
+    /**
+     * Parses a job from a line of arguments.
+     * 
+     * @param baseDirectory
+     *            the directory against which the relative paths of the job
+     *            are resolved, or {@code null} for the working directory
+     */
+    Job parseJob(final String name, @Nullable final File baseDirectory, final String line)
+            throws ParseException
+    {
+        final String trimmedLine = line.trim();
+        final String[] args;
+        if (trimmedLine.length() == 0)
+        {
+            args = new String[0];
+        }
+        else
+        {
+            args = trimmedLine.split("\\s+");
+        }
+        final CommandLine commandLine = new GnuParser().parse(jobOptions, args);
+        if (!commandLine.getArgList().isEmpty())
+        {
+            throw new ParseException("unexpected arguments: " + commandLine.getArgList());
+        }
+
+        return newJob(name, baseDirectory, commandLine, defaultJob);
+    }
+
+    /**
+     * Reads the jobs of a manifest, one job per line. Empty lines and lines
+     * starting with {@code #} are ignored and relative paths are resolved
+     * against the directory of the manifest.
+     */
+    List<Job> readManifest(final File manifest) throws IOException, ParseException
+    {
+        final File baseDirectory = manifest.getAbsoluteFile().getParentFile();
+        final List<Job> jobs = Lists.newArrayList();
+        int lineNumber = 0;
+        for (final String line : Files.readLines(manifest, CHARSET))
+        {
+            lineNumber++;
+            if (line.trim().length() == 0 || line.trim().startsWith("#"))
+            {
+                continue;
+            }
+
+            final String name = manifest.getName() + ":" + lineNumber;
+            try
+            {
+                jobs.add(parseJob(name, baseDirectory, line));
+            }
+            catch (final ParseException e)
+            {
+                throw new ParseException(name + ": " + e.getMessage());
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Returns one job for each file of a directory, bound to the primary
+     * input port of the pipeline. The primary output of each job is written to
+     * a file of the same name in the output directory if any.
+     */
+    List<Job> listDirectory(final File directory, @Nullable final File outputDirectory)
+    {
+        final Step step = pipeline.getUnderlyingPipeline();
+        final Port inputPort = step.getPrimaryInputPort();
+        Preconditions.checkArgument(inputPort != null, "pipeline has no primary input port: %s", step.getType());
+        final Port outputPort = step.getPrimaryOutputPort();
+        Preconditions.checkArgument(outputDirectory == null || outputPort != null,
+                "pipeline has no primary output port: %s", step.getType());
+
+        final File[] files = directory.listFiles();
+        Preconditions.checkArgument(files != null, "not a directory: %s", directory);
+        Arrays.sort(files);
+
+        final List<Job> jobs = Lists.newArrayList();
+        for (final File file : files)
+        {
+            if (!file.isFile())
+            {
+                continue;
+            }
+
+            final Map<String, String> portBindings = Maps.newHashMap(defaultJob.portBindings);
+            portBindings.put(inputPort.getPortName(), file.getAbsolutePath());
+            if (outputDirectory != null)
+            {
+                portBindings.put(outputPort.getPortName(), new File(outputDirectory, file.getName())
+                        .getAbsolutePath());
+            }
+            jobs.add(new Job(file.getName(), null, portBindings, defaultJob.options, defaultJob.params));
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Runs a job and returns the document of the primary output port, unless
+     * the port is bound to a file.
+     */
+    @ReturnsNullable
+    XdmNode run(final Job job)
+    {
+        LOG.trace("{@method} job = {}", job);
+        final RunnablePipeline runnablePipeline = pipeline.load();
+        final Step step = runnablePipeline.getPipeline();
+        for (final Map.Entry<String, String> portBinding : job.portBindings.entrySet())
+        {
+            if (step.getPort(portBinding.getKey()).isInput())
+            {
+                final String uri = resolve(job, portBinding.getValue());
+                runnablePipeline.bindSourcePort(portBinding.getKey(),
+                        CommandLineExecutor.newSource(uriResolver, uri, "Cannot bind port to resource from %s", uri));
+            }
+        }
+
+        for (final Map.Entry<String, String> option : job.options.entrySet())
+        {
+            runnablePipeline.withOption(new QName(option.getKey()), option.getValue());
+        }
+
+        for (final Map.Entry<String, String> param : job.params.entrySet())
+        {
+            runnablePipeline.withParam(new QName(param.getKey()), param.getValue());
+        }
+
+        final PipelineResult pipelineResult = runnablePipeline.run();
+        for (final Map.Entry<String, String> portBinding : job.portBindings.entrySet())
+        {
+            if (step.getPort(portBinding.getKey()).isOutput())
+            {
+                final File outputFile = newFile(resolve(job, portBinding.getValue()));
+                LOG.debug("{}: {} -> {}", job, portBinding.getKey(), outputFile);
+                pipelineResult.readNode(portBinding.getKey(), outputFile);
+            }
+        }
+
+        final Port primaryOutputPort = step.getPrimaryOutputPort();
+        if (primaryOutputPort == null || job.portBindings.containsKey(primaryOutputPort.getPortName()))
+        {
+            return null;
+        }
+
+        return Iterables.getOnlyElement(pipelineResult.readNodes(primaryOutputPort.getPortName()), null);
+    }
+
+    private static String resolve(final Job job, final String uri)
+    {
+        if (job.baseDirectory == null || new File(uri).isAbsolute())
+        {
+            return uri;
+        }
+
+        try
+        {
+            if (new URI(uri).isAbsolute())
+            {
+                return uri;
+            }
+        }
+        catch (final URISyntaxException e)
+        {
+            // not a URI, resolved as a path
+        }
+
+        return new File(job.baseDirectory, uri).getPath();
+    }
+
+    private static File newFile(final String uri)
+    {
+        if (uri.startsWith("file:"))
+        {
+            return new File(URI.create(uri));
+        }
+
+        return new File(uri);
+    }
+
+    private Future<XdmNode> submit(final Job job)
+    {
+        return executor.submit(new Callable<XdmNode>()
+        {
+            @Override
+            public XdmNode call()
+            {
+                return BatchExecutor.this.run(job);
+            }
+        });
+    }
+
+    /**
+     * Runs the jobs concurrently and prints the documents of the unbound
+     * primary output port in the order of the jobs.
+     * 
+     * @return the number of failed jobs
+     */
+    int run(final List<Job> jobs, final PrintStream stdout, final PrintStream stderr)
+    {
+        final List<Future<XdmNode>> results = Lists.newArrayListWithCapacity(jobs.size());
+        for (final Job job : jobs)
+        {
+            results.add(submit(job));
+        }
+
+        int failures = 0;
+        for (int i = 0; i < jobs.size(); i++)
+        {
+            try
+            {
+                final XdmNode node = results.get(i).get();
+                if (node != null)
+                {
+                    stdout.println(node);
+                }
+            }
+            catch (final ExecutionException e)
+            {
+                failures++;
+                stderr.println(jobs.get(i) + ": " + getMessage(e.getCause()));
+                LOG.debug("{}: {}", jobs.get(i), e.getCause());
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return failures + jobs.size() - i;
+            }
+        }
+
+        return failures;
+    }
+
+    /**
+     * Serves the jobs read line by line from a client until the end of the
+     * stream. The response to the job of the n-th line is {@code ok n} or
+     * {@code error n message}. Jobs run concurrently, so the responses are
+     * written as the jobs complete, which is not necessarily the order of the
+     * requests. The documents of unbound output ports are discarded.
+     * 
+     * @return the number of failed jobs
+     */
+    int serve(final BufferedReader reader, final PrintWriter writer) throws IOException
+    {
+        final List<Future<?>> results = Lists.newArrayList();
+        final int[] failures = new int[1];
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine())
+        {
+            lineNumber++;
+            if (line.trim().length() == 0 || line.trim().startsWith("#"))
+            {
+                continue;
+            }
+
+            final int requestNumber = lineNumber;
+            final Job job;
+            try
+            {
+                job = parseJob(Integer.toString(requestNumber), null, line);
+            }
+            catch (final ParseException e)
+            {
+                respond(writer, "error " + requestNumber + " " + e.getMessage());
+                failures[0]++;
+                continue;
+            }
+
+            results.add(executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        BatchExecutor.this.run(job);
+                        respond(writer, "ok " + requestNumber);
+                    }
+                    catch (final RuntimeException e)
+                    {
+                        LOG.debug("{}: {}", job, e);
+                        synchronized (failures)
+                        {
+                            failures[0]++;
+                        }
+                        respond(writer, "error " + requestNumber + " " + getMessage(e));
+                    }
+                }
+            }));
+        }
+
+        for (final Future<?> result : results)
+        {
+            try
+            {
+                result.get();
+            }
+            catch (final ExecutionException e)
+            {
+                throw new IllegalStateException(e.getCause());
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (failures)
+        {
+            return failures[0];
+        }
+    }
+
+    /**
+     * Serves the connections to a TCP port of the loopback interface, each of
+     * them with {@link #serve(BufferedReader, PrintWriter)}, until the process
+     * is stopped.
+     */
+    void serve(final int port) throws IOException
+    {
+        final ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getByName(null));
+        LOG.info("listening on {}", serverSocket.getLocalSocketAddress());
+        final ExecutorService sessions = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("tubular-cli-session-%d").build());
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                final Socket socket = serverSocket.accept();
+                sessions.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                                    socket.getInputStream(), CHARSET));
+                            final PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                                    socket.getOutputStream(), CHARSET));
+                            try
+                            {
+                                serve(reader, writer);
+                            }
+                            finally
+                            {
+                                Closeables.closeQuietly(reader);
+                                Closeables.closeQuietly(writer);
+                            }
+                        }
+                        catch (final IOException e)
+                        {
+                            LOG.warn("connection from {} closed: {}", socket.getRemoteSocketAddress(),
+                                    e.getMessage());
+                        }
+                        finally
+                        {
+                            close(socket);
+                        }
+                    }
+                });
+            }
+        }
+        finally
+        {
+            sessions.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+    private static void close(final Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("cannot close socket: {}", e.getMessage());
+        }
+    }
+
+    private static void respond(final PrintWriter writer, final String response)
+    {
+        synchronized (writer)
+        {
+            writer.println(response);
+            writer.flush();
+        }
+    }
+
+    private static String getMessage(final Throwable error)
+    {
+        if (error.getMessage() != null)
+        {
+            return error.getMessage().replace('\n', ' ');
+        }
+
+        return error.toString();
+    }
+
+    /**
+     * Stops the threads running the jobs.
+     */
+    void shutdown()
+    {
+        executor.shutdown();
+    }
+}
@@ -19,11 +19,16 @@ package org.trancecode.xproc.cli;
 
 import com.google.common.collect.Iterables;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.net.URL;
+import java.util.List;
 import java.util.Properties;
 
 import javax.xml.transform.Source;
@@ -42,6 +47,7 @@ import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
+import org.trancecode.api.Nullable;
 import org.trancecode.xproc.PipelineConfiguration;
 import org.trancecode.xproc.Pipeline;
 import org.trancecode.xproc.PipelineProcessor;
@@ -49,6 +55,7 @@ import org.trancecode.xproc.PipelineResult;
 import org.trancecode.xproc.RunnablePipeline;
 import org.trancecode.xproc.Tubular;
 import org.trancecode.xproc.port.Port;
+import org.trancecode.xproc.step.StepProfiler;
 
 /**
  * @author Herve Quiroz
@@ -60,11 +67,17 @@ public final class CommandLineExecutor
             .getLogger(CommandLineExecutor.class);
 
     private final Options options;
+    private final Option batchOption;
     private final Option helpOption;
+    private final Option jobsOption;
     private final Option librariesOption;
     private final Option optionOption;
+    private final Option outputDirectoryOption;
     private final Option paramOption;
     private final Option portBindingOption;
+    private final Option profileOption;
+    private final Option serveOption;
+    private final Option threadsOption;
     private final Option verboseOption;
     private final Option versionOption;
     private final Option xplOption;
@@ -73,9 +86,19 @@ public final class CommandLineExecutor
     {
         options = new Options();
 
+        batchOption = new Option("B", "batch", true,
+                "Runs the pipeline once for each line of a manifest, or for each file of a directory");
+        batchOption.setArgName("manifest|directory");
+        options.addOption(batchOption);
+
         helpOption = new Option("h", "help", false, "Print help");
         options.addOption(helpOption);
 
+        jobsOption = new Option("j", "jobs", true, "Number of batch or server jobs run concurrently (default: 1)");
+        jobsOption.setArgName("count");
+        jobsOption.setType(Number.class);
+        options.addOption(jobsOption);
+
         librariesOption = new Option("l", "library", true, "XProc pipeline library to load");
         librariesOption.setArgName("uri");
         librariesOption.setArgs(Option.UNLIMITED_VALUES);
@@ -88,6 +111,11 @@ public final class CommandLineExecutor
         optionOption.setValueSeparator('=');
         options.addOption(optionOption);
 
+        outputDirectoryOption = new Option("d", "output-directory", true,
+                "Directory where the primary output of each file of a batch directory is written");
+        outputDirectoryOption.setArgName("directory");
+        options.addOption(outputDirectoryOption);
+
         paramOption = new Option("p", "param", true, "Passes a parameter to the pipeline");
         paramOption.setArgName("name=value");
         paramOption.setArgs(2);
@@ -100,6 +128,22 @@ public final class CommandLineExecutor
         portBindingOption.setValueSeparator('=');
         options.addOption(portBindingOption);
 
+        profileOption = new Option("P", "profile", true,
+                "Profiles step executions and writes the reports to <prefix>.collapsed, .xml and .json");
+        profileOption.setArgName("prefix");
+        options.addOption(profileOption);
+
+        serveOption = new Option("s", "serve", true,
+                "Runs the jobs read line by line from the standard input ('-') or from a local TCP port");
+        serveOption.setArgName("-|port");
+        options.addOption(serveOption);
+
+        threadsOption = new Option("t", "threads", true,
+                "Number of threads used to run independent steps concurrently (default: 1)");
+        threadsOption.setArgName("count");
+        threadsOption.setType(Number.class);
+        options.addOption(threadsOption);
+
         verboseOption = new Option("v", "verbose", false, "Display more information");
         options.addOption(verboseOption);
 
@@ -140,99 +184,271 @@ public final class CommandLineExecutor
             }
 
             final PipelineConfiguration configurationPipelineContext = new PipelineConfiguration();
-            final URIResolver uriResolver = configurationPipelineContext.getUriResolver();
-            final PipelineProcessor pipelineProcessor = new PipelineProcessor(configurationPipelineContext);
-            final String[] libraries = commandLine.getOptionValues(librariesOption.getOpt());
-
-            if (libraries != null)
+            try
             {
-                for (final String library : libraries)
+                final String threadsValue = commandLine.getOptionValue(threadsOption.getOpt());
+                if (threadsValue != null)
                 {
-                    // FIXME this will not really have any effect has the parsed
-                    // library is returned and the pipeline processor stays
-                    // unchanged
-                    pipelineProcessor.buildPipelineLibrary(newSource(uriResolver, library,
-                            "Cannot read library from %s", library));
+                    final int threads = parseCount(threadsValue);
+                    if (threads < 1)
+                    {
+                        stderr.println("Invalid number of threads: " + threadsValue);
+                        printHelp(stderr);
+                        return 2;
+                    }
+
+                    configurationPipelineContext.setParallelism(threads);
+                }
+
+                final String jobsValue = commandLine.getOptionValue(jobsOption.getOpt(), "1");
+                final int jobs = parseCount(jobsValue);
+                if (jobs < 1)
+                {
+                    stderr.println("Invalid number of jobs: " + jobsValue);
+                    printHelp(stderr);
+                    return 2;
                 }
-            }
 
-            // configurationPipelineContext.registerStepProcessor(null);
-            final String xplValue = commandLine.getOptionValue(xplOption.getOpt());
+                final String profileValue = commandLine.getOptionValue(profileOption.getOpt());
+                final StepProfiler profiler;
+                if (profileValue != null)
+                {
+                    profiler = new StepProfiler();
+                    configurationPipelineContext.setProfiler(profiler);
+                }
+                else
+                {
+                    profiler = null;
+                }
 
-            if (xplValue == null)
-            {
-                stderr.println("Required pipeline given using the --" + xplOption.getLongOpt() + " option.");
-                printHelp(stderr);
-                return 2;
-            }
-            else
-            {
-                final Source xplSource = newSource(uriResolver, xplValue, "Cannot read pipeline from %s", xplValue);
+                final URIResolver uriResolver = configurationPipelineContext.getUriResolver();
+                final PipelineProcessor pipelineProcessor = new PipelineProcessor(configurationPipelineContext);
+                final String[] libraries = commandLine.getOptionValues(librariesOption.getOpt());
 
-                if (xplSource != null)
+                if (libraries != null)
                 {
-                    final Pipeline buildPipeline = pipelineProcessor.buildPipeline(xplSource);
-                    final RunnablePipeline runnablePipeline = buildPipeline.load();
+                    for (final String library : libraries)
+                    {
+                        // FIXME this will not really have any effect has the parsed
+                        // library is returned and the pipeline processor stays
+                        // unchanged
+                        pipelineProcessor.buildPipelineLibrary(newSource(uriResolver, library,
+                                "Cannot read library from %s", library));
+                    }
+                }
+
+                // configurationPipelineContext.registerStepProcessor(null);
+                final String xplValue = commandLine.getOptionValue(xplOption.getOpt());
+
+                if (xplValue == null)
+                {
+                    stderr.println("Required pipeline given using the --" + xplOption.getLongOpt() + " option.");
+                    printHelp(stderr);
+                    return 2;
+                }
+                else
+                {
+                    final Source xplSource = newSource(uriResolver, xplValue, "Cannot read pipeline from %s", xplValue);
 
-                    final Properties portBindingProperties = commandLine
-                            .getOptionProperties(portBindingOption.getOpt());
-                    for (final String portBindingName : portBindingProperties.stringPropertyNames())
+                    if (xplSource != null)
                     {
-                        final String portBindingValue = portBindingProperties.getProperty(portBindingName);
-                        if (runnablePipeline.getPipeline().getPort(portBindingName).isInput())
+                        final Pipeline buildPipeline = pipelineProcessor.buildPipeline(xplSource);
+                        if (commandLine.hasOption(batchOption.getOpt()) || commandLine.hasOption(serveOption.getOpt()))
                         {
-                            LOG.debug("input port binding: {} = {}", portBindingName, portBindingValue);
-                            runnablePipeline.bindSourcePort(
-                                    portBindingName,
-                                    newSource(uriResolver, portBindingValue, "Cannot bind port to resource from %s",
-                                            portBindingValue));
+                            final BatchExecutor batchExecutor = new BatchExecutor(buildPipeline, uriResolver,
+                                    portBindingOption, optionOption, paramOption, commandLine, jobs);
+                            try
+                            {
+                                final int exitCode = executeBatch(commandLine, batchExecutor, stdin, stdout, stderr);
+                                if (exitCode != 0)
+                                {
+                                    return exitCode;
+                                }
+                            }
+                            finally
+                            {
+                                batchExecutor.shutdown();
+                            }
+
+                            return writeProfile(profiler, profileValue, stderr);
                         }
-                    }
 
-                    final Properties optionProperties = commandLine.getOptionProperties(optionOption.getOpt());
-                    for (final String optionName : optionProperties.stringPropertyNames())
+                        final RunnablePipeline runnablePipeline = buildPipeline.load();
+
+                        final Properties portBindingProperties = commandLine
+                                .getOptionProperties(portBindingOption.getOpt());
+                        for (final String portBindingName : portBindingProperties.stringPropertyNames())
+                        {
+                            final String portBindingValue = portBindingProperties.getProperty(portBindingName);
+                            if (runnablePipeline.getPipeline().getPort(portBindingName).isInput())
+                            {
+                                LOG.debug("input port binding: {} = {}", portBindingName, portBindingValue);
+                                runnablePipeline.bindSourcePort(
+                                        portBindingName,
+                                        newSource(uriResolver, portBindingValue, "Cannot bind port to resource from %s",
+                                                portBindingValue));
+                            }
+                        }
+
+                        final Properties optionProperties = commandLine.getOptionProperties(optionOption.getOpt());
+                        for (final String optionName : optionProperties.stringPropertyNames())
+                        {
+                            final String optionValue = optionProperties.getProperty(optionName);
+                            runnablePipeline.withOption(new QName(optionName), optionValue);
+                        }
+
+                        final Properties paramProperties = commandLine.getOptionProperties(paramOption.getOpt());
+                        for (final String paramName : paramProperties.stringPropertyNames())
+                        {
+                            final String paramValue = paramProperties.getProperty(paramName);
+                            runnablePipeline.withParam(new QName(paramName), paramValue);
+                        }
+
+                        final PipelineResult pipelineResult = runnablePipeline.run();
+                        final int profileExitCode = writeProfile(profiler, profileValue, stderr);
+                        if (profileExitCode != 0)
+                        {
+                            return profileExitCode;
+                        }
+
+                        final Port primaryOutputPort = pipelineResult.getPipeline().getPrimaryOutputPort();
+                        if (primaryOutputPort != null
+                                && !portBindingProperties.stringPropertyNames().contains(
+                                        primaryOutputPort.getPortName()))
+                        {
+                            final XdmNode node = Iterables.getOnlyElement(
+                                    pipelineResult.readNodes(primaryOutputPort.getPortName()), null);
+                            if (node != null)
+                            {
+                                stdout.println(node);
+                            }
+                        }
+                    }
+                    else
                     {
-                        final String optionValue = optionProperties.getProperty(optionName);
-                        runnablePipeline.withOption(new QName(optionName), optionValue);
+                        stderr.println("Argument given to option --xpl is neither a URL nor or a file.");
+                        printHelp(stderr);
+                        return 3;
                     }
+                }
+            }
+            finally
+            {
+                configurationPipelineContext.shutdown();
+            }
+        }
+        catch (final ParseException ex)
+        {
+            printHelp(stderr);
+            return 1;
+        }
+        return 0;
+    }
 
-                    final Properties paramProperties = commandLine.getOptionProperties(paramOption.getOpt());
-                    for (final String paramName : paramProperties.stringPropertyNames())
+    private int executeBatch(final CommandLine commandLine, final BatchExecutor batchExecutor,
+            final InputStream stdin, final PrintStream stdout, final PrintStream stderr)
+    {
+        final String serveValue = commandLine.getOptionValue(serveOption.getOpt());
+        try
+        {
+            final int failures;
+            if (serveValue == null)
+            {
+                final File batchFile = new File(commandLine.getOptionValue(batchOption.getOpt()));
+                final List<BatchExecutor.Job> jobs;
+                if (batchFile.isDirectory())
+                {
+                    final String outputDirectoryValue = commandLine.getOptionValue(outputDirectoryOption.getOpt());
+                    final File outputDirectory;
+                    if (outputDirectoryValue != null)
                     {
-                        final String paramValue = paramProperties.getProperty(paramName);
-                        runnablePipeline.withParam(new QName(paramName), paramValue);
+                        outputDirectory = new File(outputDirectoryValue);
+                        outputDirectory.mkdirs();
                     }
-
-                    final PipelineResult pipelineResult = runnablePipeline.run();
-                    final Port primaryOutputPort = pipelineResult.getPipeline().getPrimaryOutputPort();
-                    if (primaryOutputPort != null
-                            && !portBindingProperties.stringPropertyNames().contains(primaryOutputPort.getPortName()))
+                    else
                     {
-                        final XdmNode node = Iterables.getOnlyElement(
-                                pipelineResult.readNodes(primaryOutputPort.getPortName()), null);
-                        if (node != null)
-                        {
-                            stdout.println(node);
-                        }
+                        outputDirectory = null;
                     }
+                    jobs = batchExecutor.listDirectory(batchFile, outputDirectory);
                 }
                 else
                 {
-                    stderr.println("Argument given to option --xpl is neither a URL nor or a file.");
+                    jobs = batchExecutor.readManifest(batchFile);
+                }
+                LOG.debug("batch: {} jobs", jobs.size());
+                failures = batchExecutor.run(jobs, stdout, stderr);
+            }
+            else if (serveValue.equals("-"))
+            {
+                final PrintWriter writer = new PrintWriter(new OutputStreamWriter(stdout, "UTF-8"));
+                failures = batchExecutor.serve(new BufferedReader(new InputStreamReader(stdin, "UTF-8")), writer);
+                writer.flush();
+            }
+            else
+            {
+                final int port = parseCount(serveValue);
+                if (port < 1)
+                {
+                    stderr.println("Invalid port: " + serveValue);
                     printHelp(stderr);
-                    return 3;
+                    return 2;
                 }
+                batchExecutor.serve(port);
+                failures = 0;
+            }
+
+            if (failures > 0)
+            {
+                stderr.println(failures + " job(s) failed");
+                return 5;
             }
+
+            return 0;
         }
-        catch (final ParseException ex)
+        catch (final ParseException e)
         {
-            printHelp(stderr);
-            return 1;
+            stderr.println(e.getMessage());
+            return 2;
+        }
+        catch (final IOException e)
+        {
+            stderr.println("I/O error: " + e.getMessage());
+            return 4;
         }
+    }
+
+    private static int writeProfile(@Nullable final StepProfiler profiler, final String profileValue,
+            final PrintStream stderr)
+    {
+        if (profiler != null)
+        {
+            try
+            {
+                profiler.writeReports(profileValue);
+            }
+            catch (final IOException e)
+            {
+                stderr.println("Cannot write profile to " + profileValue + ": " + e.getMessage());
+                return 4;
+            }
+        }
+
         return 0;
     }
 
-    private static Source newSource(final URIResolver uriResolver, final String uri, final String errorMessage,
+    private static int parseCount(final String value)
+    {
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch (final NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    static Source newSource(final URIResolver uriResolver, final String uri, final String errorMessage,
             final Object... args)
     {
         try
@@ -34,7 +34,16 @@ import org.trancecode.function.TcSuppliers;
 import org.trancecode.io.InputResolver;
 import org.trancecode.io.OutputResolver;
 import org.trancecode.xproc.event.XProcEvent;
+import org.trancecode.xproc.step.HttpConnectionPool;
+import org.trancecode.xproc.step.LogWriter;
 import org.trancecode.xproc.step.StepProcessor;
+import org.trancecode.xproc.step.StepProfiler;
+import org.trancecode.xproc.step.StoreWriter;
+import org.trancecode.xproc.step.XQueryExecutableCache;
+import org.trancecode.xproc.step.XmlSchemaCache;
+import org.trancecode.xproc.step.XslFormatter;
+import org.trancecode.xproc.step.XsltExecutableCache;
+import org.trancecode.xproc.xpath.XPathExecutableCache;
 
 /**
  * @author Herve Quiroz
@@ -52,6 +61,19 @@ abstract class AbstractPipelineContext implements PipelineContext
     static final String PROPERTY_PROCESSOR = PROPERTY_PREFIX + "processor";
     static final String PROPERTY_STEP_PROCESSORS = PROPERTY_PREFIX + "stepProcessors";
     static final String PROPERTY_URI_RESOLVER = PROPERTY_PREFIX + "uriResolver";
+    static final String PROPERTY_XPATH_CACHE = PROPERTY_PREFIX + "xpathCache";
+    static final String PROPERTY_XSLT_CACHE = PROPERTY_PREFIX + "xsltCache";
+    static final String PROPERTY_XQUERY_CACHE = PROPERTY_PREFIX + "xqueryCache";
+    static final String PROPERTY_XML_SCHEMA_CACHE = PROPERTY_PREFIX + "xmlSchemaCache";
+    static final String PROPERTY_XSL_FORMATTER = PROPERTY_PREFIX + "xslFormatter";
+    static final String PROPERTY_STREAMING_PORT_CAPACITY = PROPERTY_PREFIX + "streamingPortCapacity";
+    static final String PROPERTY_PORT_READ_CACHE = PROPERTY_PREFIX + "portReadCache";
+    static final String PROPERTY_DOCUMENT_CACHE = PROPERTY_PREFIX + "documentCache";
+    static final String PROPERTY_HTTP_CONNECTION_POOL = PROPERTY_PREFIX + "httpConnectionPool";
+    static final String PROPERTY_PRECOMPILE_STYLESHEETS = PROPERTY_PREFIX + "precompileStylesheets";
+    static final String PROPERTY_PROFILER = PROPERTY_PREFIX + "profiler";
+    static final String PROPERTY_STORE_WRITER = PROPERTY_PREFIX + "storeWriter";
+    static final String PROPERTY_LOG_WRITER = PROPERTY_PREFIX + "logWriter";
 
     final Map<String, Object> properties;
 
@@ -64,6 +86,18 @@ abstract class AbstractPipelineContext implements PipelineContext
     Supplier<Processor> processor;
     Supplier<Map<QName, StepProcessor>> stepProcessors;
     Supplier<URIResolver> uriResolver;
+    Supplier<XPathExecutableCache> xpathCache;
+    Supplier<XsltExecutableCache> xsltCache;
+    Supplier<XQueryExecutableCache> xqueryCache;
+    Supplier<XmlSchemaCache> xmlSchemaCache;
+    Supplier<XslFormatter> xslFormatter;
+    Supplier<Integer> streamingPortCapacity;
+    Supplier<Boolean> portReadCache;
+    Supplier<DocumentCache> documentCache;
+    Supplier<HttpConnectionPool> httpConnectionPool;
+    Supplier<StepProfiler> profiler;
+    Supplier<StoreWriter> storeWriter;
+    Supplier<LogWriter> logWriter;
 
     protected AbstractPipelineContext(final Map<String, Object> properties)
     {
@@ -76,6 +110,18 @@ abstract class AbstractPipelineContext implements PipelineContext
         processor = TcSuppliers.getFromMap(properties, PROPERTY_PROCESSOR);
         stepProcessors = TcSuppliers.getFromMap(properties, PROPERTY_STEP_PROCESSORS);
         uriResolver = TcSuppliers.getFromMap(properties, PROPERTY_URI_RESOLVER);
+        xpathCache = TcSuppliers.getFromMap(properties, PROPERTY_XPATH_CACHE);
+        xsltCache = TcSuppliers.getFromMap(properties, PROPERTY_XSLT_CACHE);
+        xqueryCache = TcSuppliers.getFromMap(properties, PROPERTY_XQUERY_CACHE);
+        xmlSchemaCache = TcSuppliers.getFromMap(properties, PROPERTY_XML_SCHEMA_CACHE);
+        xslFormatter = TcSuppliers.getFromMap(properties, PROPERTY_XSL_FORMATTER);
+        streamingPortCapacity = TcSuppliers.getFromMap(properties, PROPERTY_STREAMING_PORT_CAPACITY);
+        portReadCache = TcSuppliers.getFromMap(properties, PROPERTY_PORT_READ_CACHE);
+        documentCache = TcSuppliers.getFromMap(properties, PROPERTY_DOCUMENT_CACHE);
+        httpConnectionPool = TcSuppliers.getFromMap(properties, PROPERTY_HTTP_CONNECTION_POOL);
+        profiler = TcSuppliers.getFromMap(properties, PROPERTY_PROFILER);
+        storeWriter = TcSuppliers.getFromMap(properties, PROPERTY_STORE_WRITER);
+        logWriter = TcSuppliers.getFromMap(properties, PROPERTY_LOG_WRITER);
 
         eventDispatcher = TcSuppliers.getFromMap(properties, PROPERTY_EVENT_DISPATCHER);
         eventDispatcher = TcSuppliers.memoize(eventDispatcher);
@@ -141,6 +187,78 @@ abstract class AbstractPipelineContext implements PipelineContext
         return uriResolver.get();
     }
 
+    @Override
+    public final XPathExecutableCache getXPathCache()
+    {
+        return xpathCache.get();
+    }
+
+    @Override
+    public final XsltExecutableCache getXsltCache()
+    {
+        return xsltCache.get();
+    }
+
+    @Override
+    public final XQueryExecutableCache getXQueryCache()
+    {
+        return xqueryCache.get();
+    }
+
+    @Override
+    public final XmlSchemaCache getXmlSchemaCache()
+    {
+        return xmlSchemaCache.get();
+    }
+
+    @Override
+    public final XslFormatter getXslFormatter()
+    {
+        return xslFormatter.get();
+    }
+
+    @Override
+    public final int getStreamingPortCapacity()
+    {
+        return streamingPortCapacity.get();
+    }
+
+    @Override
+    public final boolean isPortReadCacheEnabled()
+    {
+        return portReadCache.get();
+    }
+
+    @Override
+    public final DocumentCache getDocumentCache()
+    {
+        return documentCache.get();
+    }
+
+    @Override
+    public final HttpConnectionPool getHttpConnectionPool()
+    {
+        return httpConnectionPool.get();
+    }
+
+    @Override
+    public final StepProfiler getProfiler()
+    {
+        return profiler.get();
+    }
+
+    @Override
+    public final StoreWriter getStoreWriter()
+    {
+        return storeWriter.get();
+    }
+
+    @Override
+    public final LogWriter getLogWriter()
+    {
+        return logWriter.get();
+    }
+
     @Override
     public final StepProcessor getStepProcessor(final QName step)
     {
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xml.saxon.SaxonBuilder;
+import org.trancecode.xproc.XProcXmlModel.Attributes;
+import org.trancecode.xproc.XProcXmlModel.Elements;
+import org.trancecode.xproc.step.CoreStepProcessor;
+import org.trancecode.xproc.step.Step;
+import org.trancecode.xproc.step.StepProcessor;
+import org.trancecode.xproc.step.StepProcessors;
+import org.trancecode.xproc.xpath.XPathExtensionFunction;
+
+/**
+ * Snapshot of the default pipeline library and of the step registry of
+ * tubular-core, computed when building the module.
+ * <p>
+ * The registry maps each step type to the name of its processor class, so
+ * that the class path is not scanned for the services of tubular-core and
+ * the step processors are only instantiated when a step of their type is
+ * run. The library is the default library with its imports resolved into a
+ * single document, which still has to be parsed once, but without loading
+ * the imported libraries. Service files of other modules are still read, so
+ * that user step processors and XPath extension functions keep being
+ * registered.
+ * 
+ * @author Herve Quiroz
+ */
+public final class DefaultLibrarySnapshot
+{
+    static final String RESOURCE_PATH_LIBRARY = "/org/trancecode/xproc/default-library.xpl";
+    static final String RESOURCE_PATH_REGISTRY = "/org/trancecode/xproc/default-registry.properties";
+
+    private static final String PREFIX_STEP_PROCESSOR = "step.";
+    private static final String PREFIX_CORE_STEP_PROCESSOR = "core-step.";
+    private static final String PREFIX_XPATH_EXTENSION_FUNCTION = "xpath-function.";
+    private static final String SERVICES_PATH = "META-INF/services/";
+    private static final QName XML_BASE = new QName("xml", XMLConstants.XML_NS_URI, "base");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Logger LOG = Logger.getLogger(DefaultLibrarySnapshot.class);
+
+    private final URL libraryUrl;
+    private final String classPathRoot;
+    private final Map<QName, String> stepProcessors;
+    private final Map<QName, String> coreStepProcessors;
+    private final List<String> extensionFunctions;
+
+    private DefaultLibrarySnapshot(final URL registryUrl, final URL libraryUrl, final Properties registry)
+    {
+        this.libraryUrl = Preconditions.checkNotNull(libraryUrl);
+        final String registryPath = registryUrl.toString();
+        classPathRoot = registryPath.substring(0, registryPath.length() - RESOURCE_PATH_REGISTRY.length() + 1);
+        final Map<QName, String> stepProcessors = Maps.newHashMap();
+        final Map<QName, String> coreStepProcessors = Maps.newHashMap();
+        final Map<Integer, String> extensionFunctions = Maps.newTreeMap();
+        for (final String key : registry.stringPropertyNames())
+        {
+            final String className = registry.getProperty(key);
+            if (key.startsWith(PREFIX_STEP_PROCESSOR))
+            {
+                stepProcessors.put(QName.fromClarkName(key.substring(PREFIX_STEP_PROCESSOR.length())), className);
+            }
+            else if (key.startsWith(PREFIX_CORE_STEP_PROCESSOR))
+            {
+                coreStepProcessors.put(QName.fromClarkName(key.substring(PREFIX_CORE_STEP_PROCESSOR.length())),
+                        className);
+            }
+            else if (key.startsWith(PREFIX_XPATH_EXTENSION_FUNCTION))
+            {
+                extensionFunctions.put(Integer.valueOf(key.substring(PREFIX_XPATH_EXTENSION_FUNCTION.length())),
+                        className);
+            }
+        }
+        this.stepProcessors = ImmutableMap.copyOf(stepProcessors);
+        this.coreStepProcessors = ImmutableMap.copyOf(coreStepProcessors);
+        this.extensionFunctions = ImmutableList.copyOf(extensionFunctions.values());
+    }
+
+    /**
+     * Returns the snapshot bundled with tubular-core, or {@code null} if the
+     * module was built without it.
+     */
+    @ReturnsNullable
+    public static DefaultLibrarySnapshot load()
+    {
+        final URL registryUrl = DefaultLibrarySnapshot.class.getResource(RESOURCE_PATH_REGISTRY);
+        final URL libraryUrl = DefaultLibrarySnapshot.class.getResource(RESOURCE_PATH_LIBRARY);
+        if (registryUrl == null || libraryUrl == null)
+        {
+            LOG.debug("no default library snapshot");
+            return null;
+        }
+
+        return load(registryUrl, libraryUrl);
+    }
+
+    static DefaultLibrarySnapshot load(final URL registryUrl, final URL libraryUrl)
+    {
+        LOG.trace("{@method} registry = {} ; library = {}", registryUrl, libraryUrl);
+        final Properties registry = new Properties();
+        InputStream input = null;
+        try
+        {
+            input = registryUrl.openStream();
+            registry.load(input);
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("cannot read step registry: " + registryUrl, e);
+        }
+        finally
+        {
+            Closeables.closeQuietly(input);
+        }
+
+        return new DefaultLibrarySnapshot(registryUrl, libraryUrl, registry);
+    }
+
+    /**
+     * Returns the default library as a single document with no imports.
+     */
+    public Source getLibrarySource()
+    {
+        try
+        {
+            return new StreamSource(libraryUrl.openStream(), libraryUrl.toString());
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("cannot parse default library: " + libraryUrl, e);
+        }
+    }
+
+    /**
+     * Returns the step processors of the registry, instantiated when a step of
+     * their type is run, along with the step processors declared by the
+     * service files of other modules.
+     */
+    public Map<QName, StepProcessor> getStepProcessors()
+    {
+        final Map<QName, StepProcessor> processors = Maps.newHashMap();
+        for (final Map.Entry<QName, String> stepProcessor : stepProcessors.entrySet())
+        {
+            processors.put(stepProcessor.getKey(),
+                    StepProcessors.lazyStepProcessor(stepProcessor.getKey(), stepProcessor.getValue()));
+        }
+        for (final StepProcessor stepProcessor : newUserServices(StepProcessor.class, stepProcessors.values()))
+        {
+            processors.put(stepProcessor.getStepType(), stepProcessor);
+        }
+
+        return processors;
+    }
+
+    /**
+     * Returns the declarations of the core steps, such as {@code p:for-each}
+     * or {@code p:choose}.
+     */
+    public Map<QName, Step> getCoreLibrary()
+    {
+        final Map<QName, Step> coreSteps = Maps.newHashMap();
+        for (final String className : coreStepProcessors.values())
+        {
+            final CoreStepProcessor coreStepProcessor = newInstance(CoreStepProcessor.class, className);
+            coreSteps.put(coreStepProcessor.getStepType(), coreStepProcessor.getStepDeclaration());
+        }
+        for (final CoreStepProcessor coreStepProcessor : newUserServices(CoreStepProcessor.class,
+                coreStepProcessors.values()))
+        {
+            coreSteps.put(coreStepProcessor.getStepType(), coreStepProcessor.getStepDeclaration());
+        }
+
+        return coreSteps;
+    }
+
+    public Iterable<XPathExtensionFunction> getExtensionFunctions()
+    {
+        final List<XPathExtensionFunction> functions = Lists.newArrayList();
+        for (final String className : extensionFunctions)
+        {
+            functions.add(newInstance(XPathExtensionFunction.class, className));
+        }
+        functions.addAll(newUserServices(XPathExtensionFunction.class, extensionFunctions));
+
+        return functions;
+    }
+
+    /**
+     * Instantiates the services declared in the service files of the class
+     * path that are not part of the snapshot. The service files next to the
+     * snapshot are those of tubular-core and are not read.
+     */
+    private <T> List<T> newUserServices(final Class<T> service, final Collection<String> snapshotClassNames)
+    {
+        final List<T> services = Lists.newArrayList();
+        for (final String className : getServiceClassNames(service))
+        {
+            if (!snapshotClassNames.contains(className))
+            {
+                LOG.trace("{@method} {} = {}", service.getSimpleName(), className);
+                services.add(newInstance(service, className));
+            }
+        }
+
+        return services;
+    }
+
+    private Set<String> getServiceClassNames(final Class<?> service)
+    {
+        final Set<String> classNames = Sets.newLinkedHashSet();
+        try
+        {
+            final Enumeration<URL> serviceFiles = getClassLoader().getResources(SERVICES_PATH + service.getName());
+            while (serviceFiles.hasMoreElements())
+            {
+                final URL serviceFile = serviceFiles.nextElement();
+                if (serviceFile.toString().startsWith(classPathRoot))
+                {
+                    continue;
+                }
+                for (final String line : Resources.readLines(serviceFile, UTF_8))
+                {
+                    final int commentIndex = line.indexOf('#');
+                    final String className = (commentIndex < 0 ? line : line.substring(0, commentIndex)).trim();
+                    if (className.length() > 0)
+                    {
+                        classNames.add(className);
+                    }
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("cannot read service files: " + service.getName(), e);
+        }
+
+        return classNames;
+    }
+
+    private static ClassLoader getClassLoader()
+    {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        if (contextClassLoader != null)
+        {
+            return contextClassLoader;
+        }
+
+        return DefaultLibrarySnapshot.class.getClassLoader();
+    }
+
+    static <T> T newInstance(final Class<T> type, final String className)
+    {
+        try
+        {
+            return type.cast(Class.forName(className, true, getClassLoader()).newInstance());
+        }
+        catch (final Exception e)
+        {
+            throw new IllegalStateException("cannot instantiate " + type.getSimpleName() + ": " + className, e);
+        }
+    }
+
+    /**
+     * Writes the snapshot of the default library and of the step registry to
+     * the specified class path directory.
+     */
+    public static void write(final File outputDirectory) throws IOException
+    {
+        final Properties registry = new Properties();
+        for (final StepProcessor stepProcessor : ServiceLoader.load(StepProcessor.class))
+        {
+            registry.setProperty(PREFIX_STEP_PROCESSOR + stepProcessor.getStepType().getClarkName(), stepProcessor
+                    .getClass().getName());
+        }
+        for (final CoreStepProcessor coreStepProcessor : ServiceLoader.load(CoreStepProcessor.class))
+        {
+            registry.setProperty(PREFIX_CORE_STEP_PROCESSOR + coreStepProcessor.getStepType().getClarkName(),
+                    coreStepProcessor.getClass().getName());
+        }
+        int functionIndex = 0;
+        for (final XPathExtensionFunction function : ServiceLoader.load(XPathExtensionFunction.class))
+        {
+            registry.setProperty(PREFIX_XPATH_EXTENSION_FUNCTION + functionIndex++, function.getClass().getName());
+        }
+
+        final File registryFile = new File(outputDirectory, RESOURCE_PATH_REGISTRY);
+        Files.createParentDirs(registryFile);
+        final OutputStream registryOutput = Files.newOutputStreamSupplier(registryFile).getOutput();
+        try
+        {
+            registry.store(registryOutput, "step registry of tubular-core");
+        }
+        finally
+        {
+            Closeables.closeQuietly(registryOutput);
+        }
+
+        final File libraryFile = new File(outputDirectory, RESOURCE_PATH_LIBRARY);
+        final URL libraryUrl = DefaultLibrarySnapshot.class
+                .getResource(PipelineConfiguration.RESOURCE_PATH_XPROC_LIBRARY_1_0);
+        try
+        {
+            final Processor processor = new Processor(false);
+            final XdmNode library = flattenLibrary(processor, libraryUrl, libraryFile.toURI());
+            final Serializer serializer = new Serializer();
+            serializer.setOutputFile(libraryFile);
+            serializer.setOutputProperty(Serializer.Property.INDENT, "no");
+            processor.writeXdmValue(library, serializer);
+        }
+        catch (final SaxonApiException e)
+        {
+            throw new IllegalStateException("cannot write default library: " + libraryUrl, e);
+        }
+        LOG.info("default library snapshot written to {}", outputDirectory);
+    }
+
+    /**
+     * Returns a library document with the step declarations of the library
+     * and of the libraries it imports. Each declaration keeps the base URI of
+     * its original library, relative to the snapshot location.
+     */
+    private static XdmNode flattenLibrary(final Processor processor, final URL libraryUrl, final URI snapshotUri)
+            throws SaxonApiException
+    {
+        final DocumentBuilder documentBuilder = processor.newDocumentBuilder();
+        final List<XdmNode> declarations = Lists.newArrayList();
+        final Set<URI> libraries = Sets.newHashSet();
+        collectDeclarations(documentBuilder, URI.create(libraryUrl.toString()), libraries, declarations);
+
+        final XdmNode rootNode = SaxonAxis.childElement(documentBuilder.build(new StreamSource(libraryUrl
+                .toString())), Elements.LIBRARY);
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.startDocument();
+        builder.startElement(Elements.LIBRARY, rootNode);
+        builder.attribute(Attributes.VERSION, rootNode.getAttributeValue(Attributes.VERSION));
+        builder.startContent();
+        for (final XdmNode declaration : declarations)
+        {
+            builder.startElement(declaration.getNodeName(), declaration);
+            builder.attribute(XML_BASE, relativize(snapshotUri, declaration.getBaseURI()));
+            for (final XdmNode attribute : SaxonAxis.attributes(declaration))
+            {
+                if (!XML_BASE.equals(attribute.getNodeName()))
+                {
+                    builder.attribute(attribute.getNodeName(), attribute.getStringValue());
+                }
+            }
+            builder.startContent();
+            builder.nodes(SaxonAxis.childNodesNoAttributes(declaration));
+            builder.endElement();
+        }
+        builder.endElement();
+        builder.endDocument();
+
+        return builder.getNode();
+    }
+
+    private static void collectDeclarations(final DocumentBuilder documentBuilder, final URI libraryUri,
+            final Set<URI> libraries, final List<XdmNode> declarations) throws SaxonApiException
+    {
+        if (!libraries.add(libraryUri))
+        {
+            return;
+        }
+
+        LOG.trace("{@method} library = {}", libraryUri);
+        final XdmNode libraryNode = SaxonAxis.childElement(
+                documentBuilder.build(new StreamSource(libraryUri.toString())), Elements.LIBRARY);
+        Preconditions.checkState(libraryNode != null, "not a library: %s", libraryUri);
+        for (final XdmNode node : SaxonAxis.childElements(libraryNode, Elements.ELEMENTS_IN_PIPELINE_LIBRARY))
+        {
+            if (node.getNodeName().equals(Elements.IMPORT))
+            {
+                collectDeclarations(documentBuilder, node.getBaseURI().resolve(node.getAttributeValue(Attributes.HREF)),
+                        libraries, declarations);
+            }
+            else
+            {
+                declarations.add(node);
+            }
+        }
+    }
+
+    /**
+     * Returns the URI of a library relative to the snapshot when both are in
+     * the same directory, which is the case of the libraries of tubular-core.
+     */
+    private static String relativize(final URI snapshotUri, final URI libraryUri)
+    {
+        final String libraryPath = libraryUri.getPath();
+        final String snapshotPath = snapshotUri.getPath();
+        if (libraryPath != null && snapshotPath != null)
+        {
+            final String libraryDirectory = libraryPath.substring(0, libraryPath.lastIndexOf('/') + 1);
+            final String snapshotDirectory = snapshotPath.substring(0, snapshotPath.lastIndexOf('/') + 1);
+            if (libraryDirectory.equals(snapshotDirectory))
+            {
+                return libraryPath.substring(libraryDirectory.length());
+            }
+        }
+
+        return libraryUri.toString();
+    }
+
+    public static void main(final String[] args) throws IOException
+    {
+        Preconditions.checkArgument(args.length == 1, "usage: %s <output directory>",
+                DefaultLibrarySnapshot.class.getName());
+        write(new File(args[0]));
+    }
+}
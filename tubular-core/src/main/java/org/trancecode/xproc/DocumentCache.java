@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+
+import java.io.File;
+import java.net.URI;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.collection.LruCache;
+import org.trancecode.logging.Logger;
+
+/**
+ * Cache of the documents loaded by {@code p:document} bindings and
+ * {@code p:load} steps, keyed by their absolute URI.
+ * <p>
+ * Entries loaded from {@code file:} URIs are dropped as soon as the last
+ * modification time or the size of the file changes. Entries are weighed with
+ * the number of nodes of their tree and the least recently used ones are
+ * evicted once the maximum weight is reached. Relative URIs are never cached.
+ * <p>
+ * Caching is disabled unless a maximum weight is set, for instance with
+ * {@link PipelineConfiguration#setDocumentCache(long, Scope)}, as documents
+ * changed during a run by other means than {@code p:store} are then not read
+ * again.
+ * 
+ * @author Herve Quiroz
+ */
+public final class DocumentCache
+{
+    /**
+     * A suggested maximum weight, enough for a few large documents.
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 1000000;
+
+    private static final Logger LOG = Logger.getLogger(DocumentCache.class);
+
+    /**
+     * Lifespan of the cached documents.
+     */
+    public static enum Scope {
+        /**
+         * Documents are cached for the duration of a single pipeline run.
+         */
+        RUN,
+
+        /**
+         * Documents are shared by all the runs of the same {@link Pipeline}.
+         */
+        PIPELINE
+    }
+
+    private final long maximumWeight;
+    private final Scope scope;
+    private final LruCache<URI, Entry> entries;
+
+    private static final class Entry
+    {
+        private final XdmNode document;
+        private final int weight;
+        private final long lastModified;
+        private final long length;
+
+        public Entry(final XdmNode document, final File file)
+        {
+            this.document = document;
+            weight = 1 + Iterators.size(document.axisIterator(Axis.DESCENDANT));
+            if (file != null)
+            {
+                lastModified = file.lastModified();
+                length = file.length();
+            }
+            else
+            {
+                lastModified = 0;
+                length = 0;
+            }
+        }
+
+        public boolean isUpToDate(final File file)
+        {
+            return file == null || file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /**
+     * Creates a disabled cache.
+     */
+    public DocumentCache()
+    {
+        this(0, Scope.RUN);
+    }
+
+    /**
+     * @param maximumWeight
+     *            the maximum total number of nodes of the cached documents, or
+     *            {@code 0} to disable caching.
+     * @param scope
+     *            the lifespan of the cached documents.
+     */
+    public DocumentCache(final long maximumWeight, final Scope scope)
+    {
+        Preconditions.checkArgument(maximumWeight >= 0, "maximumWeight = %s", maximumWeight);
+        this.maximumWeight = maximumWeight;
+        this.scope = Preconditions.checkNotNull(scope);
+        entries = LruCache.newWeightedCache(maximumWeight, new Function<Entry, Integer>()
+        {
+            @Override
+            public Integer apply(final Entry entry)
+            {
+                return entry.weight;
+            }
+        });
+    }
+
+    public Scope getScope()
+    {
+        return scope;
+    }
+
+    public boolean isEnabled()
+    {
+        return maximumWeight > 0;
+    }
+
+    /**
+     * Returns an empty cache with the same settings.
+     */
+    public DocumentCache newInstance()
+    {
+        return new DocumentCache(maximumWeight, scope);
+    }
+
+    private static File getFile(final URI uri)
+    {
+        if ("file".equals(uri.getScheme()))
+        {
+            try
+            {
+                return new File(uri);
+            }
+            catch (final IllegalArgumentException e)
+            {
+                LOG.trace("{@method} {} ; {}", uri, e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the cached document for the specified absolute URI, or
+     * {@code null} if it is not cached or if it is out of date.
+     */
+    @ReturnsNullable
+    public XdmNode getIfPresent(final URI uri)
+    {
+        if (maximumWeight == 0 || !uri.isAbsolute())
+        {
+            return null;
+        }
+
+        final Entry entry = entries.getIfPresent(uri);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        if (!entry.isUpToDate(getFile(uri)))
+        {
+            LOG.trace("{@method} out of date: {}", uri);
+            entries.invalidate(uri);
+            return null;
+        }
+
+        return entry.document;
+    }
+
+    public void put(final URI uri, final XdmNode document)
+    {
+        if (maximumWeight == 0 || !uri.isAbsolute())
+        {
+            return;
+        }
+
+        entries.put(uri, new Entry(document, getFile(uri)));
+    }
+
+    /**
+     * Drops the cached document for the specified URI, typically because the
+     * resource is being written.
+     */
+    public void invalidate(final URI uri)
+    {
+        entries.invalidate(uri);
+    }
+
+    public void clear()
+    {
+        entries.invalidateAll();
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long getWeight()
+    {
+        return entries.getWeight();
+    }
+
+    public long getHitCount()
+    {
+        return entries.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return entries.getMissCount();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + scope + " ; " + entries + "]";
+    }
+}
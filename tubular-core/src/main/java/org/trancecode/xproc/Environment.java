@@ -21,9 +21,11 @@ package org.trancecode.xproc;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -32,21 +34,21 @@ import java.net.URI;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
 import org.apache.commons.lang.StringUtils;
+import org.trancecode.api.Nullable;
 import org.trancecode.api.ReturnsNullable;
-import org.trancecode.collection.TcMaps;
+import org.trancecode.collection.PersistentHashMap;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.Location;
 import org.trancecode.xml.saxon.Saxon;
@@ -57,6 +59,7 @@ import org.trancecode.xml.saxon.SaxonNamespaces;
 import org.trancecode.xproc.api.PipelineException;
 import org.trancecode.xproc.api.XProcException;
 import org.trancecode.xproc.binding.PortBinding;
+import org.trancecode.xproc.port.DocumentStream;
 import org.trancecode.xproc.port.EnvironmentPort;
 import org.trancecode.xproc.port.Port;
 import org.trancecode.xproc.port.PortFunctions;
@@ -77,16 +80,20 @@ public final class Environment
     private static final QName ATTRIBUTE_VALUE = new QName("value");
     private static final QName ELEMENT_PARAM = XProcXmlModel.xprocStepNamespace().newSaxonQName("param");
     private static final QName ELEMENT_RESULT = XProcXmlModel.xprocStepNamespace().newSaxonQName("result");
+    private static final Map<String, String> XPATH_NAMESPACES = ImmutableMap.of(XProcXmlModel.xprocNamespace()
+            .prefix(), XProcXmlModel.xprocNamespace().uri(), XProcXmlModel.xprocStepNamespace().prefix(),
+            XProcXmlModel.xprocStepNamespace().uri());
 
     private static final ThreadLocal<Environment> CURRENT_ENVIRONMENT = new ThreadLocal<Environment>();
     private static final ThreadLocal<XdmNode> CURRENT_XPATH_CONTEXT = new ThreadLocal<XdmNode>();
     private static final ThreadLocal<XdmNode> CURRENT_NAMESPACE_CONTEXT = new ThreadLocal<XdmNode>();
 
     private final EnvironmentPort defaultReadablePort;
-    private final Map<QName, String> inheritedVariables;
-    private final Map<QName, String> localVariables;
+    // persistent maps so that deriving an environment does not copy them
+    private final PersistentHashMap<QName, String> inheritedVariables;
+    private final PersistentHashMap<QName, String> localVariables;
     private final PipelineContext configuration;
-    private final Map<PortReference, EnvironmentPort> ports;
+    private final PersistentHashMap<PortReference, EnvironmentPort> ports;
     private final Step pipeline;
     private final EnvironmentPort defaultParametersPort;
     private final EnvironmentPort xpathContextPort;
@@ -154,12 +161,12 @@ public final class Environment
     {
         this.pipeline = pipeline;
         this.configuration = configuration;
-        this.ports = ImmutableMap.copyOf(ports);
+        this.ports = PersistentHashMap.copyOf(ports);
         this.defaultReadablePort = defaultReadablePort;
         this.defaultParametersPort = defaultParametersPort;
         this.xpathContextPort = xpathContextPort;
-        this.inheritedVariables = ImmutableMap.copyOf(inheritedVariables);
-        this.localVariables = ImmutableMap.copyOf(localVariables);
+        this.inheritedVariables = PersistentHashMap.copyOf(inheritedVariables);
+        this.localVariables = PersistentHashMap.copyOf(localVariables);
     }
 
     private Environment setupStepEnvironment(final Step step, final boolean evaluteVariables)
@@ -322,10 +329,8 @@ public final class Environment
                 .getParameters().values());
         LOG.trace("  variables = {}", allDeclaredVariables);
 
-        final Map<QName, String> allVariables = Maps.newHashMap(inheritedVariables);
-        allVariables.putAll(localVariables);
-
-        final Map<QName, String> newLocalVariables = Maps.newHashMap(localVariables);
+        PersistentHashMap<QName, String> allVariables = inheritedVariables.plusAll(localVariables);
+        PersistentHashMap<QName, String> newLocalVariables = localVariables;
         final List<XdmNode> newParameterNodes = Lists.newArrayListWithCapacity(step.getParameters().size());
 
         for (final Variable variable : allDeclaredVariables)
@@ -367,8 +372,8 @@ public final class Environment
                     xpathContextNode = getXPathContextNode(variable);
                 }
 
-                final XdmValue result = evaluateXPath(variable.getSelect(), getPipelineContext().getProcessor(),
-                        xpathContextNode, variable.getNode(), allVariables, variable.getLocation());
+                final XdmValue result = evaluateXPath(variable.getSelect(), getPipelineContext(), xpathContextNode,
+                        variable.getNode(), allVariables, variable.getLocation());
                 final XdmItem resultNode = Iterables.getOnlyElement(result);
 
                 value = resultNode.getStringValue();
@@ -389,8 +394,8 @@ public final class Environment
                 }
                 else
                 {
-                    allVariables.put(variable.getName(), value);
-                    newLocalVariables.put(variable.getName(), value);
+                    allVariables = allVariables.plus(variable.getName(), value);
+                    newLocalVariables = newLocalVariables.plus(variable.getName(), value);
                 }
             }
         }
@@ -411,7 +416,7 @@ public final class Environment
         return resultEnvironment.setLocalVariables(newLocalVariables);
     }
 
-    private static XdmValue evaluateXPath(final String select, final Processor processor,
+    private static XdmValue evaluateXPath(final String select, final PipelineContext context,
             final XdmNode xpathContextNode, final XdmNode namespaceContextNode, final Map<QName, String> variables,
             final Location location)
     {
@@ -419,23 +424,14 @@ public final class Environment
 
         try
         {
-            final XPathCompiler xpathCompiler = processor.newXPathCompiler();
-            for (final Map.Entry<QName, String> variableEntry : variables.entrySet())
-            {
-                if (variableEntry.getValue() != null)
-                {
-                    xpathCompiler.declareVariable(variableEntry.getKey());
-                }
-            }
-
-            for (final Entry<String, String> namespace : SaxonNamespaces.namespaceSequence(namespaceContextNode))
-            {
-                xpathCompiler.declareNamespace(namespace.getKey(), namespace.getValue());
-            }
+            final Processor processor = context.getProcessor();
+            final Map<QName, String> boundVariables = Maps.filterValues(variables, Predicates.notNull());
+            final XPathExecutable xpathExecutable = context.getXPathCache().compile(processor, select,
+                    boundVariables.keySet(), SaxonNamespaces.namespaceMap(namespaceContextNode), null);
 
             setCurrentNamespaceContext(namespaceContextNode);
 
-            final XPathSelector selector = xpathCompiler.compile(select).load();
+            final XPathSelector selector = xpathExecutable.load();
             if (xpathContextNode != null)
             {
                 LOG.trace("xpathContextNode = {}", xpathContextNode);
@@ -443,13 +439,10 @@ public final class Environment
                 setCurrentXPathContext(xpathContextNode);
             }
 
-            for (final Map.Entry<QName, String> variableEntry : variables.entrySet())
+            for (final Map.Entry<QName, String> variableEntry : boundVariables.entrySet())
             {
-                if (variableEntry.getValue() != null)
-                {
-                    LOG.trace("  {} = {}", variableEntry.getKey(), variableEntry.getValue());
-                    selector.setVariable(variableEntry.getKey(), new XdmAtomicValue(variableEntry.getValue()));
-                }
+                LOG.trace("  {} = {}", variableEntry.getKey(), variableEntry.getValue());
+                selector.setVariable(variableEntry.getKey(), new XdmAtomicValue(variableEntry.getValue()));
             }
 
             final XdmValue result = selector.evaluate();
@@ -504,7 +497,7 @@ public final class Environment
     {
         final Map<QName, String> variables = ImmutableMap.of();
         return new Environment(pipeline, configuration, ports, defaultReadablePort, defaultParametersPort,
-                xpathContextPort, TcMaps.merge(inheritedVariables, localVariables), variables);
+                xpathContextPort, inheritedVariables.plusAll(localVariables), variables);
     }
 
     public Environment setLocalVariables(final Map<QName, String> localVariables)
@@ -512,7 +505,7 @@ public final class Environment
         assert localVariables != null;
 
         return new Environment(pipeline, configuration, ports, defaultReadablePort, defaultParametersPort,
-                xpathContextPort, inheritedVariables, TcMaps.merge(this.localVariables, localVariables));
+                xpathContextPort, inheritedVariables, this.localVariables.plusAll(localVariables));
     }
 
     public void setLocalVariable(final QName name, final String value)
@@ -625,8 +618,11 @@ public final class Environment
         assert ports != null;
         LOG.trace("{@method} ports = {}", ports);
 
-        final Map<PortReference, EnvironmentPort> newPorts = Maps.newHashMap(this.ports);
-        newPorts.putAll(getPortsMap(ports));
+        PersistentHashMap<PortReference, EnvironmentPort> newPorts = this.ports;
+        for (final EnvironmentPort port : ports)
+        {
+            newPorts = newPorts.plus(port.getPortReference(), port);
+        }
 
         return new Environment(pipeline, configuration, newPorts, defaultReadablePort, defaultParametersPort,
                 xpathContextPort, inheritedVariables, localVariables);
@@ -637,7 +633,7 @@ public final class Environment
         assert ports != null;
         LOG.trace("{@method} ports = {}", ports);
 
-        return new Environment(pipeline, configuration, TcMaps.merge(this.ports, ports), defaultReadablePort,
+        return new Environment(pipeline, configuration, this.ports.plusAll(ports), defaultReadablePort,
                 defaultParametersPort, xpathContextPort, inheritedVariables, localVariables);
     }
 
@@ -716,7 +712,7 @@ public final class Environment
         if (xpathContextPort != null)
         {
             final Iterable<XdmNode> nodes = xpathContextPort.readNodes();
-            if (Iterables.size(nodes) > 1 && variable.isVariable())
+            if (Iterables.size(Iterables.limit(nodes, 2)) > 1 && variable.isVariable())
             {
                 throw XProcExceptions.xd0008(SaxonLocation.of(variable.getNode()));
             }
@@ -751,57 +747,11 @@ public final class Environment
         assert select != null;
         LOG.trace("{@method} select = {}", select);
 
-        // TODO slow
-        final Map<QName, String> temporaryVariables = TcMaps.merge(inheritedVariables, localVariables);
-        final Map<QName, String> variables;
-
-        if (additionalParameters != null)
-        {
-            variables = TcMaps.merge(temporaryVariables, additionalParameters);
-        }
-        else
-        {
-            variables = temporaryVariables;
-        }
-
         try
         {
-            final XPathCompiler xpathCompiler = configuration.getProcessor().newXPathCompiler();
-            final String pipelineSystemId = getPipeline().getLocation().getSystemId();
-            if (pipelineSystemId != null)
-            {
-                xpathCompiler.setBaseURI(URI.create(pipelineSystemId));
-            }
-            for (final Map.Entry<QName, String> variableEntry : variables.entrySet())
-            {
-                if (variableEntry.getValue() != null)
-                {
-                    xpathCompiler.declareVariable(variableEntry.getKey());
-                }
-            }
-
-            xpathCompiler.declareNamespace(XProcXmlModel.xprocNamespace().prefix(), XProcXmlModel.xprocNamespace()
-                    .uri());
-            xpathCompiler.declareNamespace(XProcXmlModel.xprocStepNamespace().prefix(), XProcXmlModel
-                    .xprocStepNamespace().uri());
-
-            final XPathSelector selector = xpathCompiler.compile(select).load();
-            setCurrentXPathContext(xpathContextNode);
-            if (xpathContextNode != null)
-            {
-                selector.setContextItem(xpathContextNode);
-            }
-
-            for (final Map.Entry<QName, String> variableEntry : variables.entrySet())
-            {
-                if (variableEntry.getValue() != null)
-                {
-                    selector.setVariable(variableEntry.getKey(),
-                            Saxon.getUntypedXdmItem(variableEntry.getValue(), configuration.getProcessor()));
-                }
-            }
-
-            return selector.evaluate();
+            final Map<QName, XdmItem> variables = getXPathVariables(additionalParameters);
+            final XPathExecutable xpathExecutable = compileXPath(select, variables.keySet());
+            return evaluateXPath(xpathExecutable, xpathContextNode, variables);
         }
         catch (final Exception e)
         {
@@ -820,6 +770,101 @@ public final class Environment
         }
     }
 
+    /**
+     * Returns the values of the variables in scope, along with the specified
+     * additional parameters, as they are bound to XPath expressions.
+     */
+    public Map<QName, XdmItem> getXPathVariables(@Nullable final Map<QName, String> additionalParameters)
+    {
+        PersistentHashMap<QName, String> variables = inheritedVariables.plusAll(localVariables);
+        if (additionalParameters != null)
+        {
+            variables = variables.plusAll(additionalParameters);
+        }
+
+        final Map<QName, XdmItem> xpathVariables = Maps.newHashMap();
+        for (final Map.Entry<QName, String> variable : variables.entrySet())
+        {
+            if (variable.getValue() != null)
+            {
+                xpathVariables.put(variable.getKey(),
+                        Saxon.getUntypedXdmItem(variable.getValue(), configuration.getProcessor()));
+            }
+        }
+
+        return xpathVariables;
+    }
+
+    /**
+     * Compiles an XPath expression against the static context of this
+     * environment, with the specified variables declared.
+     */
+    public XPathExecutable compileXPath(final String select, final Iterable<QName> variableNames)
+            throws SaxonApiException
+    {
+        final String pipelineSystemId = getPipeline().getLocation().getSystemId();
+        final URI baseUri;
+        if (pipelineSystemId != null)
+        {
+            baseUri = URI.create(pipelineSystemId);
+        }
+        else
+        {
+            baseUri = null;
+        }
+
+        return configuration.getXPathCache().compile(configuration.getProcessor(), select, variableNames,
+                XPATH_NAMESPACES, baseUri);
+    }
+
+    /**
+     * Evaluates a compiled XPath expression.
+     * 
+     * @see #compileXPath(String, Iterable)
+     * @see #getXPathVariables(Map)
+     */
+    public XdmValue evaluateXPath(final XPathExecutable xpathExecutable, @Nullable final XdmNode xpathContextNode,
+            final Map<QName, XdmItem> variables) throws SaxonApiException
+    {
+        return evaluateXPath(loadXPath(xpathExecutable, variables), xpathContextNode);
+    }
+
+    /**
+     * Returns a selector for a compiled XPath expression with the specified
+     * variables bound, so that it can be evaluated against several context
+     * nodes.
+     * 
+     * @see #evaluateXPath(XPathSelector, XdmNode)
+     */
+    public XPathSelector loadXPath(final XPathExecutable xpathExecutable, final Map<QName, XdmItem> variables)
+            throws SaxonApiException
+    {
+        final XPathSelector selector = xpathExecutable.load();
+        for (final Map.Entry<QName, XdmItem> variable : variables.entrySet())
+        {
+            selector.setVariable(variable.getKey(), variable.getValue());
+        }
+
+        return selector;
+    }
+
+    /**
+     * Evaluates an XPath selector with the specified node as a context.
+     * 
+     * @see #loadXPath(XPathExecutable, Map)
+     */
+    public XdmValue evaluateXPath(final XPathSelector selector, @Nullable final XdmNode xpathContextNode)
+            throws SaxonApiException
+    {
+        setCurrentXPathContext(xpathContextNode);
+        if (xpathContextNode != null)
+        {
+            selector.setContextItem(xpathContextNode);
+        }
+
+        return selector.evaluate();
+    }
+
     private EnvironmentPort getPort(final PortReference portReference)
     {
         assert ports.containsKey(portReference) : "port = " + portReference + " ; ports = " + ports.keySet();
@@ -838,6 +883,13 @@ public final class Environment
         return addPorts(getPort(portReference).writeNodes(nodes));
     }
 
+    public Environment writeStream(final PortReference portReference, final DocumentStream stream)
+    {
+        LOG.trace("{@method} port = {}", portReference);
+
+        return addPorts(getPort(portReference).writeStream(stream));
+    }
+
     public Iterable<XdmNode> readNodes(final PortReference portReference)
     {
         LOG.trace("{@method} port = {}", portReference);
@@ -846,6 +898,17 @@ public final class Environment
         return nodes;
     }
 
+    /**
+     * Returns the number of documents of a port, reading no more than
+     * {@code limit} documents if {@code limit} is positive.
+     * 
+     * @see EnvironmentPort#countNodes(int)
+     */
+    public int countNodes(final PortReference portReference, final int limit)
+    {
+        return getPort(portReference).countNodes(limit);
+    }
+
     public XdmNode readNode(final PortReference portReference)
     {
         return Iterables.getOnlyElement(readNodes(portReference));
@@ -858,10 +921,11 @@ public final class Environment
         final Builder<QName, String> parameters = ImmutableMap.builder();
         for (final XdmNode parameterNode : readNodes(portReference))
         {
-            final XPathCompiler xpathCompiler = getPipelineContext().getProcessor().newXPathCompiler();
             try
             {
-                final XPathSelector paramsSelector = xpathCompiler.compile("//.[@name]").load();
+                final XPathSelector paramsSelector = getPipelineContext().getXPathCache()
+                        .compile(getPipelineContext().getProcessor(), "//.[@name]", ImmutableSet.<QName> of(),
+                                ImmutableMap.<String, String> of(), null).load();
                 paramsSelector.setContextItem(parameterNode);
                 final Iterator<XdmItem> iteratorParams = paramsSelector.iterator();
                 while (iteratorParams.hasNext())
@@ -54,10 +54,46 @@ public final class ImmutablePipelineContext extends AbstractPipelineContext
         processor = TcSuppliers.memoize(processor);
         stepProcessors = TcSuppliers.memoize(stepProcessors);
         uriResolver = TcSuppliers.memoize(uriResolver);
+        xpathCache = TcSuppliers.memoize(xpathCache);
+        xsltCache = TcSuppliers.memoize(xsltCache);
+        xqueryCache = TcSuppliers.memoize(xqueryCache);
+        xmlSchemaCache = TcSuppliers.memoize(xmlSchemaCache);
+        xslFormatter = TcSuppliers.memoize(xslFormatter);
+        streamingPortCapacity = TcSuppliers.memoize(streamingPortCapacity);
+        portReadCache = TcSuppliers.memoize(portReadCache);
+        documentCache = TcSuppliers.memoize(documentCache);
+        httpConnectionPool = TcSuppliers.memoize(httpConnectionPool);
+        profiler = TcSuppliers.memoize(profiler);
+        storeWriter = TcSuppliers.memoize(storeWriter);
+        logWriter = TcSuppliers.memoize(logWriter);
     }
 
     ImmutablePipelineContext withNewEpisode()
     {
-        return new ImmutablePipelineContext(TcMaps.copyAndPut(properties, PROPERTY_EPISODE, new Episode()));
+        final Map<String, Object> newProperties = TcMaps.copyAndPut(properties, PROPERTY_EPISODE, new Episode());
+        final DocumentCache documentCache = getDocumentCache();
+        if (documentCache != null && documentCache.getScope() == DocumentCache.Scope.RUN)
+        {
+            return new ImmutablePipelineContext(TcMaps.copyAndPut(newProperties, PROPERTY_DOCUMENT_CACHE,
+                    documentCache.newInstance()));
+        }
+
+        return new ImmutablePipelineContext(newProperties);
+    }
+
+    /**
+     * Returns a copy of this context with a new empty document cache, so that
+     * each {@link Pipeline} gets its own.
+     */
+    ImmutablePipelineContext withNewDocumentCache()
+    {
+        final DocumentCache documentCache = getDocumentCache();
+        if (documentCache == null)
+        {
+            return this;
+        }
+
+        return new ImmutablePipelineContext(TcMaps.copyAndPut(properties, PROPERTY_DOCUMENT_CACHE,
+                documentCache.newInstance()));
     }
 }
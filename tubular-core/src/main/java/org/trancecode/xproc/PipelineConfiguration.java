@@ -21,12 +21,15 @@ package org.trancecode.xproc;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
@@ -41,10 +44,12 @@ import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
+import org.trancecode.api.Nullable;
 import org.trancecode.concurrent.TaskExecutor;
 import org.trancecode.concurrent.TaskExecutors;
 import org.trancecode.event.EventDispatcher;
 import org.trancecode.event.EventDispatchers;
+import org.trancecode.function.TcSuppliers;
 import org.trancecode.io.DefaultInputResolver;
 import org.trancecode.io.DefaultOutputResolver;
 import org.trancecode.io.InputResolver;
@@ -52,10 +57,19 @@ import org.trancecode.io.OutputResolver;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.event.XProcEvent;
 import org.trancecode.xproc.step.CoreStepProcessor;
+import org.trancecode.xproc.step.HttpConnectionPool;
+import org.trancecode.xproc.step.LogWriter;
 import org.trancecode.xproc.step.Step;
 import org.trancecode.xproc.step.StepProcessor;
+import org.trancecode.xproc.step.StepProfiler;
+import org.trancecode.xproc.step.StoreWriter;
 import org.trancecode.xproc.step.StepProcessors;
 import org.trancecode.xproc.step.XProcSteps;
+import org.trancecode.xproc.step.XQueryExecutableCache;
+import org.trancecode.xproc.step.XmlSchemaCache;
+import org.trancecode.xproc.step.XslFormatter;
+import org.trancecode.xproc.step.XsltExecutableCache;
+import org.trancecode.xproc.xpath.XPathExecutableCache;
 import org.trancecode.xproc.xpath.XPathExtensionFunction;
 
 /**
@@ -63,16 +77,65 @@ import org.trancecode.xproc.xpath.XPathExtensionFunction;
  */
 public final class PipelineConfiguration extends AbstractPipelineContext
 {
-    private static final String RESOURCE_PATH_XPROC_LIBRARY_1_0 = "/org/trancecode/xproc/tubular.xpl";
-    private static final Map<QName, StepProcessor> DEFAULT_STEP_PROCESSORS = getDefaultStepProcessors();
-    private static final Map<QName, Step> CORE_LIBRARY = getCoreLibrary();
-    private static final Iterable<XPathExtensionFunction> EXTENSION_FUNCTIONS = ImmutableList.copyOf(ServiceLoader
-            .load(XPathExtensionFunction.class));
+    static final String RESOURCE_PATH_XPROC_LIBRARY_1_0 = "/org/trancecode/xproc/tubular.xpl";
+    // the snapshot and the default library are loaded by the first
+    // configuration rather than when the class is initialized
+    private static final Supplier<DefaultLibrarySnapshot> SNAPSHOT = Suppliers
+            .memoize(new Supplier<DefaultLibrarySnapshot>()
+            {
+                @Override
+                public DefaultLibrarySnapshot get()
+                {
+                    return DefaultLibrarySnapshot.load();
+                }
+            });
+    private static final Supplier<Map<QName, StepProcessor>> DEFAULT_STEP_PROCESSORS = Suppliers
+            .memoize(new Supplier<Map<QName, StepProcessor>>()
+            {
+                @Override
+                public Map<QName, StepProcessor> get()
+                {
+                    return getDefaultStepProcessors();
+                }
+            });
+    private static final Supplier<Map<QName, Step>> CORE_LIBRARY = Suppliers
+            .memoize(new Supplier<Map<QName, Step>>()
+            {
+                @Override
+                public Map<QName, Step> get()
+                {
+                    return getCoreLibrary();
+                }
+            });
+    private static final Supplier<Iterable<XPathExtensionFunction>> EXTENSION_FUNCTIONS = Suppliers
+            .memoize(new Supplier<Iterable<XPathExtensionFunction>>()
+            {
+                @Override
+                public Iterable<XPathExtensionFunction> get()
+                {
+                    return getExtensionFunctions();
+                }
+            });
     private static final URI DEFAULT_LIBRARY_URI = URI.create("trancecode:tubular:default-library.xpl");
     private static final Set<URI> EMPTY_SET_OF_URIS = ImmutableSet.of();
     private static final Logger LOG = Logger.getLogger(PipelineConfiguration.class);
+    // shared by all the configurations, as pipelines built from a
+    // configuration keep using its executor
+    private static final Map<Integer, TaskExecutor> WORK_STEALING_EXECUTORS = Maps.newHashMap();
+
+    private static final Supplier<PipelineLibrary> DEFAULT_PIPELINE_LIBRARY = Suppliers
+            .memoize(new Supplier<PipelineLibrary>()
+            {
+                @Override
+                public PipelineLibrary get()
+                {
+                    return getDefaultPipelineLibrary();
+                }
+            });
 
-    private static final PipelineLibrary DEFAULT_PIPELINE_LIBRARY = getDefaultPipelineLibrary();
+    // the pool created by this configuration, as opposed to a pool set by the
+    // user who remains in charge of shutting it down
+    private final HttpConnectionPool defaultHttpConnectionPool = new HttpConnectionPool();
 
     private static PipelineLibrary getDefaultPipelineLibrary()
     {
@@ -82,19 +145,38 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         final Processor processor = new Processor(false);
         properties.put(PROPERTY_PROCESSOR, processor);
         properties.put(PROPERTY_URI_RESOLVER, processor.getUnderlyingConfiguration().getURIResolver());
-        properties.put(PROPERTY_PIPELINE_LIBRARY, new PipelineLibrary(DEFAULT_LIBRARY_URI, CORE_LIBRARY,
+        properties.put(PROPERTY_PIPELINE_LIBRARY, new PipelineLibrary(DEFAULT_LIBRARY_URI, CORE_LIBRARY.get(),
                 EMPTY_SET_OF_URIS, null));
-        properties.put(PROPERTY_STEP_PROCESSORS, DEFAULT_STEP_PROCESSORS);
+        properties.put(PROPERTY_STEP_PROCESSORS, DEFAULT_STEP_PROCESSORS.get());
+        properties.put(PROPERTY_XPATH_CACHE, new XPathExecutableCache());
+        properties.put(PROPERTY_XSLT_CACHE, new XsltExecutableCache());
+        properties.put(PROPERTY_XQUERY_CACHE, new XQueryExecutableCache());
+        properties.put(PROPERTY_XML_SCHEMA_CACHE, new XmlSchemaCache());
+        properties.put(PROPERTY_XSL_FORMATTER, new XslFormatter());
+        properties.put(PROPERTY_STREAMING_PORT_CAPACITY, 0);
+        properties.put(PROPERTY_PORT_READ_CACHE, false);
+        properties.put(PROPERTY_DOCUMENT_CACHE, new DocumentCache());
+        properties.put(PROPERTY_HTTP_CONNECTION_POOL, new HttpConnectionPool());
+        properties.put(PROPERTY_STORE_WRITER, new StoreWriter());
+        properties.put(PROPERTY_LOG_WRITER, new LogWriter());
         final PipelineContext context = new ImmutablePipelineContext(properties);
-        final URL xprocLibraryUrl = PipelineConfiguration.class.getResource(RESOURCE_PATH_XPROC_LIBRARY_1_0);
+        final DefaultLibrarySnapshot snapshot = SNAPSHOT.get();
         final Source defaultLibrarySource;
-        try
+        if (snapshot != null)
         {
-            defaultLibrarySource = new StreamSource(xprocLibraryUrl.openStream(), xprocLibraryUrl.toString());
+            defaultLibrarySource = snapshot.getLibrarySource();
         }
-        catch (final IOException e)
+        else
         {
-            throw new IllegalStateException("cannot parse default library: " + xprocLibraryUrl, e);
+            final URL xprocLibraryUrl = PipelineConfiguration.class.getResource(RESOURCE_PATH_XPROC_LIBRARY_1_0);
+            try
+            {
+                defaultLibrarySource = new StreamSource(xprocLibraryUrl.openStream(), xprocLibraryUrl.toString());
+            }
+            catch (final IOException e)
+            {
+                throw new IllegalStateException("cannot parse default library: " + xprocLibraryUrl, e);
+            }
         }
         final PipelineLibrary library = PipelineParser.parseLibrary(context, defaultLibrarySource);
         LOG.trace("supported steps: {}", library.getStepTypes());
@@ -109,16 +191,23 @@ public final class PipelineConfiguration extends AbstractPipelineContext
     private static Map<QName, StepProcessor> getDefaultStepProcessors()
     {
         final Map<QName, StepProcessor> processors = Maps.newHashMap();
-        final Map<QName, StepProcessor> availableProcessors = Maps.uniqueIndex(ServiceLoader.load(StepProcessor.class),
-                new Function<StepProcessor, QName>()
-                {
-                    @Override
-                    public QName apply(final StepProcessor stepProcessor)
+        final DefaultLibrarySnapshot snapshot = SNAPSHOT.get();
+        if (snapshot != null)
+        {
+            processors.putAll(snapshot.getStepProcessors());
+        }
+        else
+        {
+            processors.putAll(Maps.uniqueIndex(ServiceLoader.load(StepProcessor.class),
+                    new Function<StepProcessor, QName>()
                     {
-                        return stepProcessor.getStepType();
-                    }
-                });
-        processors.putAll(availableProcessors);
+                        @Override
+                        public QName apply(final StepProcessor stepProcessor)
+                        {
+                            return stepProcessor.getStepType();
+                        }
+                    }));
+        }
         for (final QName stepType : Iterables.concat(XProcSteps.REQUIRED_STEPS, XProcSteps.OPTIONAL_STEPS))
         {
             if (!processors.containsKey(stepType))
@@ -132,6 +221,12 @@ public final class PipelineConfiguration extends AbstractPipelineContext
 
     private static Map<QName, Step> getCoreLibrary()
     {
+        final DefaultLibrarySnapshot snapshot = SNAPSHOT.get();
+        if (snapshot != null)
+        {
+            return ImmutableMap.copyOf(snapshot.getCoreLibrary());
+        }
+
         final Map<QName, Step> coreSteps = Maps.newHashMap();
         for (final CoreStepProcessor coreStepProcessor : ServiceLoader.load(CoreStepProcessor.class))
         {
@@ -141,6 +236,17 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         return ImmutableMap.copyOf(coreSteps);
     }
 
+    private static Iterable<XPathExtensionFunction> getExtensionFunctions()
+    {
+        final DefaultLibrarySnapshot snapshot = SNAPSHOT.get();
+        if (snapshot != null)
+        {
+            return ImmutableList.copyOf(snapshot.getExtensionFunctions());
+        }
+
+        return ImmutableList.copyOf(ServiceLoader.load(XPathExtensionFunction.class));
+    }
+
     public PipelineConfiguration()
     {
         this(new Processor(false));
@@ -158,11 +264,22 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         getProperties().put(PROPERTY_EXECUTOR, TaskExecutors.onDemandExecutor());
         getProperties().put(PROPERTY_INPUT_RESOLVER, DefaultInputResolver.INSTANCE);
         getProperties().put(PROPERTY_OUTPUT_RESOLVER, DefaultOutputResolver.INSTANCE);
-        getProperties().put(PROPERTY_PIPELINE_LIBRARY, DEFAULT_PIPELINE_LIBRARY);
+        getProperties().put(PROPERTY_PIPELINE_LIBRARY, DEFAULT_PIPELINE_LIBRARY.get());
         getProperties().put(PROPERTY_PROCESSOR, Preconditions.checkNotNull(processor));
-        getProperties().put(PROPERTY_STEP_PROCESSORS, Maps.newHashMap(DEFAULT_STEP_PROCESSORS));
+        getProperties().put(PROPERTY_STEP_PROCESSORS, Maps.newHashMap(DEFAULT_STEP_PROCESSORS.get()));
         getProperties().put(PROPERTY_URI_RESOLVER, processor.getUnderlyingConfiguration().getURIResolver());
-        for (final XPathExtensionFunction function : EXTENSION_FUNCTIONS)
+        getProperties().put(PROPERTY_XPATH_CACHE, new XPathExecutableCache());
+        getProperties().put(PROPERTY_XSLT_CACHE, new XsltExecutableCache());
+        getProperties().put(PROPERTY_XQUERY_CACHE, new XQueryExecutableCache());
+        getProperties().put(PROPERTY_XML_SCHEMA_CACHE, new XmlSchemaCache());
+        getProperties().put(PROPERTY_XSL_FORMATTER, new XslFormatter());
+        getProperties().put(PROPERTY_STREAMING_PORT_CAPACITY, 0);
+        getProperties().put(PROPERTY_PORT_READ_CACHE, false);
+        getProperties().put(PROPERTY_DOCUMENT_CACHE, new DocumentCache());
+        getProperties().put(PROPERTY_HTTP_CONNECTION_POOL, defaultHttpConnectionPool);
+        getProperties().put(PROPERTY_STORE_WRITER, new StoreWriter());
+        getProperties().put(PROPERTY_LOG_WRITER, new LogWriter());
+        for (final XPathExtensionFunction function : EXTENSION_FUNCTIONS.get())
         {
             LOG.trace("register XPath extension function: {}", function);
             processor.registerExtensionFunction(function.getExtensionFunctionDefinition());
@@ -179,6 +296,46 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         setExecutor(TaskExecutors.forExecutorService(executor));
     }
 
+    /**
+     * Sets the number of threads used to run independent steps and
+     * {@code p:for-each} iterations concurrently. A parallelism of {@code 1}
+     * restores the default sequential execution.
+     * <p>
+     * Configurations with the same parallelism share the same pool of daemon
+     * threads, which is created on first use and never shut down, so that
+     * changing the parallelism does not leak threads.
+     * 
+     * @see TaskExecutors#workStealingExecutor(int)
+     */
+    public void setParallelism(final int parallelism)
+    {
+        Preconditions.checkArgument(parallelism > 0, "parallelism = %s", parallelism);
+        if (parallelism == 1)
+        {
+            setExecutor(TaskExecutors.onDemandExecutor());
+        }
+        else
+        {
+            setExecutor(getWorkStealingExecutor(parallelism));
+        }
+    }
+
+    private static TaskExecutor getWorkStealingExecutor(final int parallelism)
+    {
+        synchronized (WORK_STEALING_EXECUTORS)
+        {
+            TaskExecutor executor = WORK_STEALING_EXECUTORS.get(parallelism);
+            if (executor == null)
+            {
+                LOG.trace("{@method} new pool of {} threads", parallelism);
+                executor = TaskExecutors.workStealingExecutor(parallelism);
+                WORK_STEALING_EXECUTORS.put(parallelism, executor);
+            }
+
+            return executor;
+        }
+    }
+
     public void setInputResolver(final InputResolver inputResolver)
     {
         getProperties().put(PROPERTY_INPUT_RESOLVER, Preconditions.checkNotNull(inputResolver));
@@ -189,6 +346,222 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         getProperties().put(PROPERTY_URI_RESOLVER, Preconditions.checkNotNull(uriResolver));
     }
 
+    /**
+     * Sets the maximum number of compiled XPath expressions kept in cache.
+     */
+    public void setXPathCacheSize(final int maximumSize)
+    {
+        getProperties().put(PROPERTY_XPATH_CACHE, new XPathExecutableCache(maximumSize));
+    }
+
+    /**
+     * Sets the maximum number of compiled XSLT stylesheets kept in cache.
+     */
+    public void setXsltCacheSize(final int maximumSize)
+    {
+        getProperties().put(PROPERTY_XSLT_CACHE, new XsltExecutableCache(maximumSize));
+    }
+
+    /**
+     * Sets the maximum number of compiled XQuery queries kept in cache.
+     */
+    public void setXQueryCacheSize(final int maximumSize)
+    {
+        getProperties().put(PROPERTY_XQUERY_CACHE, new XQueryExecutableCache(maximumSize));
+    }
+
+    /**
+     * Sets the maximum number of compiled W3C XML schemas kept in cache.
+     */
+    public void setXmlSchemaCacheSize(final int maximumSize)
+    {
+        getProperties().put(PROPERTY_XML_SCHEMA_CACHE, new XmlSchemaCache(maximumSize));
+    }
+
+    /**
+     * Enables streaming of the documents produced by {@code p:for-each} to the
+     * steps reading them, with at most {@code capacity} documents waiting to be
+     * read on each output port, or disables streaming if {@code capacity} is
+     * {@code 0}.
+     * <p>
+     * The documents of a streamed port beyond the first two can only be read
+     * by one step.
+     * 
+     * @see org.trancecode.xproc.port.DocumentStream
+     */
+    public void setStreamingPortCapacity(final int capacity)
+    {
+        Preconditions.checkArgument(capacity >= 0, "capacity = %s", capacity);
+        getProperties().put(PROPERTY_STREAMING_PORT_CAPACITY, capacity);
+    }
+
+    /**
+     * Sets whether the documents read from a port are kept once read, so that
+     * the bindings and {@code select} expression of a port read by several
+     * steps or variables are evaluated only once.
+     * 
+     * @see org.trancecode.xproc.port.EnvironmentPort#getRawReadCount()
+     */
+    public void setPortReadCacheEnabled(final boolean portReadCacheEnabled)
+    {
+        getProperties().put(PROPERTY_PORT_READ_CACHE, portReadCacheEnabled);
+    }
+
+    /**
+     * Configures the cache of the documents read by {@code p:document} bindings
+     * and {@code p:load} steps. Caching is disabled by default, and a
+     * {@code maximumWeight} of {@code 0} disables it again.
+     * 
+     * @param maximumWeight
+     *            the maximum total number of nodes of the cached documents.
+     * @param scope
+     *            whether documents are cached for a single run or shared
+     *            across the runs of a same {@link Pipeline}.
+     */
+    public void setDocumentCache(final long maximumWeight, final DocumentCache.Scope scope)
+    {
+        getProperties().put(PROPERTY_DOCUMENT_CACHE, new DocumentCache(maximumWeight, scope));
+    }
+
+    /**
+     * Notifies the {@link org.trancecode.xproc.event.XProcEventObserver
+     * observers} from a separate thread, with up to {@code capacity} events
+     * waiting to be delivered, or from the thread executing the steps if
+     * {@code capacity} is {@code 0}.
+     * <p>
+     * Observers must be registered after this method is called, as the
+     * observers of the dispatcher it replaces would no longer be notified.
+     * 
+     * @throws IllegalStateException
+     *             if some observers are already registered
+     * @see org.trancecode.event.AsynchronousEventDispatcher
+     */
+    public void setAsynchronousEventDispatch(final int capacity)
+    {
+        Preconditions.checkArgument(capacity >= 0, "capacity = %s", capacity);
+        Preconditions.checkState(!getEventDispatcher().hasObservers(),
+                "observers must be registered after setting the event dispatch");
+        if (capacity == 0)
+        {
+            getProperties().put(PROPERTY_EVENT_DISPATCHER, newEventDispatcher());
+        }
+        else
+        {
+            getProperties().put(PROPERTY_EVENT_DISPATCHER,
+                    EventDispatchers.<XProcEvent> newAsynchronousEventDispatcher(capacity));
+        }
+        // the previous dispatcher may already have been memoized
+        eventDispatcher = TcSuppliers.memoize(TcSuppliers.<EventDispatcher<XProcEvent>> getFromMap(getProperties(),
+                PROPERTY_EVENT_DISPATCHER));
+    }
+
+    /**
+     * Sets the pool of HTTP connections used by {@code p:http-request}. The
+     * pool is left to the caller to shut down, while the pool created by the
+     * configuration is shut down when replaced.
+     */
+    public void setHttpConnectionPool(final HttpConnectionPool httpConnectionPool)
+    {
+        Preconditions.checkNotNull(httpConnectionPool);
+        final HttpConnectionPool previousHttpConnectionPool = getHttpConnectionPool();
+        getProperties().put(PROPERTY_HTTP_CONNECTION_POOL, httpConnectionPool);
+        if (previousHttpConnectionPool == defaultHttpConnectionPool && httpConnectionPool != defaultHttpConnectionPool)
+        {
+            defaultHttpConnectionPool.shutdown();
+        }
+    }
+
+    /**
+     * Releases the resources created by this configuration, such as the
+     * connections of its HTTP connection pool. The pipelines built from this
+     * configuration must not be run afterwards.
+     */
+    public void shutdown()
+    {
+        defaultHttpConnectionPool.shutdown();
+    }
+
+    /**
+     * Performs the writes of the {@code p:store} steps on {@code threads}
+     * background threads, with up to {@code capacity} writes waiting for a
+     * thread, or synchronously if {@code threads} is {@code 0}.
+     * <p>
+     * Background writes are awaited at the end of each run, which fails if
+     * any of them failed. As a consequence, such failures cannot be caught
+     * by a {@code p:try} step.
+     * 
+     * @see StoreWriter
+     */
+    public void setAsynchronousStore(final int threads, final int capacity)
+    {
+        Preconditions.checkArgument(threads >= 0, "threads = %s", threads);
+        if (threads == 0)
+        {
+            getProperties().put(PROPERTY_STORE_WRITER, new StoreWriter());
+        }
+        else
+        {
+            getProperties().put(PROPERTY_STORE_WRITER, new StoreWriter(threads, capacity));
+        }
+    }
+
+    /**
+     * Sets the writer of the documents logged with {@code p:log}.
+     */
+    public void setLogWriter(final LogWriter logWriter)
+    {
+        getProperties().put(PROPERTY_LOG_WRITER, Preconditions.checkNotNull(logWriter));
+    }
+
+    /**
+     * Records the resources used by each step execution with the specified
+     * profiler, or disables profiling if {@code profiler} is {@code null}.
+     */
+    public void setProfiler(@Nullable final StepProfiler profiler)
+    {
+        if (profiler == null)
+        {
+            getProperties().remove(PROPERTY_PROFILER);
+        }
+        else
+        {
+            getProperties().put(PROPERTY_PROFILER, profiler);
+        }
+    }
+
+    public void setXslFormatter(final XslFormatter xslFormatter)
+    {
+        getProperties().put(PROPERTY_XSL_FORMATTER, Preconditions.checkNotNull(xslFormatter));
+    }
+
+    /**
+     * Sets the FOP configuration used by {@code p:xsl-formatter}.
+     * 
+     * @param configurationFile
+     *            the FOP user configuration file, or {@code null} for the
+     *            default configuration.
+     * @param fontCacheFile
+     *            the file where the FOP font cache is persisted, or
+     *            {@code null} for the default location.
+     * @param maximumConcurrentRenderings
+     *            the maximum number of documents rendered at the same time.
+     */
+    public void setFopConfiguration(final File configurationFile, final File fontCacheFile,
+            final int maximumConcurrentRenderings)
+    {
+        setXslFormatter(new XslFormatter(configurationFile, fontCacheFile, maximumConcurrentRenderings));
+    }
+
+    /**
+     * Whether the stylesheets bound to {@code p:xslt} steps with
+     * {@code p:inline} or {@code p:document} should be compiled when the
+     * pipeline is built rather than on first execution.
+     */
+    public void setPrecompileStylesheets(final boolean precompileStylesheets)
+    {
+        getProperties().put(PROPERTY_PRECOMPILE_STYLESHEETS, precompileStylesheets);
+    }
+
     public void setOutputResolver(final OutputResolver outputResolver)
     {
         getProperties().put(PROPERTY_OUTPUT_RESOLVER, Preconditions.checkNotNull(outputResolver));
@@ -23,12 +23,22 @@ import javax.xml.transform.URIResolver;
 
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
+import org.trancecode.api.ReturnsNullable;
 import org.trancecode.concurrent.TaskExecutor;
 import org.trancecode.event.EventDispatcher;
 import org.trancecode.io.InputResolver;
 import org.trancecode.io.OutputResolver;
 import org.trancecode.xproc.event.XProcEvent;
+import org.trancecode.xproc.step.HttpConnectionPool;
+import org.trancecode.xproc.step.LogWriter;
 import org.trancecode.xproc.step.StepProcessor;
+import org.trancecode.xproc.step.StepProfiler;
+import org.trancecode.xproc.step.StoreWriter;
+import org.trancecode.xproc.step.XQueryExecutableCache;
+import org.trancecode.xproc.step.XmlSchemaCache;
+import org.trancecode.xproc.step.XslFormatter;
+import org.trancecode.xproc.step.XsltExecutableCache;
+import org.trancecode.xproc.xpath.XPathExecutableCache;
 
 /**
  * @author Herve Quiroz
@@ -49,6 +59,39 @@ public interface PipelineContext
 
     URIResolver getUriResolver();
 
+    XPathExecutableCache getXPathCache();
+
+    XsltExecutableCache getXsltCache();
+
+    XQueryExecutableCache getXQueryCache();
+
+    XmlSchemaCache getXmlSchemaCache();
+
+    XslFormatter getXslFormatter();
+
+    /**
+     * Returns the capacity of streamed ports, or {@code 0} if streaming is
+     * disabled.
+     */
+    int getStreamingPortCapacity();
+
+    boolean isPortReadCacheEnabled();
+
+    DocumentCache getDocumentCache();
+
+    HttpConnectionPool getHttpConnectionPool();
+
+    /**
+     * Returns the profiler recording step executions, or {@code null} if
+     * profiling is disabled.
+     */
+    @ReturnsNullable
+    StepProfiler getProfiler();
+
+    StoreWriter getStoreWriter();
+
+    LogWriter getLogWriter();
+
     StepProcessor getStepProcessor(QName step);
 
     Map<QName, StepProcessor> getStepProcessors();
@@ -18,11 +18,17 @@
 package org.trancecode.xproc;
 
 import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.util.List;
 
 import javax.xml.transform.Source;
 
+import net.sf.saxon.s9api.QName;
 import org.trancecode.collection.TcMaps;
 import org.trancecode.xproc.step.Step;
+import org.trancecode.xproc.step.XsltStepProcessor;
 
 /**
  * @author Herve Quiroz
@@ -61,7 +67,18 @@ public final class PipelineProcessor implements Function<Source, Pipeline>
         final PipelineLibrary library = PipelineParser.parseLibrary(context, source);
         final Step pipelineStep = library.getMainPipeline();
         final PipelineContext contextWithNewLibrary = new ImmutablePipelineContext(TcMaps.copyAndPut(
-                context.getProperties(), AbstractPipelineContext.PROPERTY_PIPELINE_LIBRARY, library));
+                context.getProperties(), AbstractPipelineContext.PROPERTY_PIPELINE_LIBRARY, library))
+                .withNewDocumentCache();
+        if (Boolean.TRUE.equals(context.getProperty(AbstractPipelineContext.PROPERTY_PRECOMPILE_STYLESHEETS)))
+        {
+            final List<Step> steps = Lists.newArrayList(pipelineStep.getAllSteps());
+            for (final QName stepType : library.getStepTypes())
+            {
+                Iterables.addAll(steps, library.newStep(stepType).getAllSteps());
+            }
+            XsltStepProcessor.precompileStylesheets(pipelineStep, steps, contextWithNewLibrary);
+        }
+
         return new Pipeline(contextWithNewLibrary, pipelineStep);
     }
 
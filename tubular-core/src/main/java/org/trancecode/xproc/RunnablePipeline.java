@@ -34,12 +34,15 @@ import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.s9api.QName;
+import org.trancecode.event.AsynchronousEventDispatcher;
+import org.trancecode.event.EventDispatcher;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.UriResolvers;
 import org.trancecode.xml.saxon.SaxonFunctions;
 import org.trancecode.xml.saxon.SaxonQNames;
 import org.trancecode.xproc.binding.PortBinding;
 import org.trancecode.xproc.binding.PortBindingFunctions;
+import org.trancecode.xproc.event.XProcEvent;
 import org.trancecode.xproc.step.Step;
 
 /**
@@ -69,7 +72,36 @@ public final class RunnablePipeline implements Supplier<PipelineResult>
     {
         LOG.trace("{@method} pipeline = {}", pipeline);
         final Environment environment = Environment.newEnvironment(pipeline, context);
-        final Environment resultEnvironment = pipeline.run(environment);
+        final Environment resultEnvironment;
+        try
+        {
+            resultEnvironment = pipeline.run(environment);
+        }
+        catch (final RuntimeException e)
+        {
+            try
+            {
+                context.getStoreWriter().flush(context.getEpisode());
+            }
+            catch (final RuntimeException storeError)
+            {
+                LOG.warn("error while storing document: {}", storeError.getMessage());
+            }
+            throw e;
+        }
+        finally
+        {
+            context.getLogWriter().close(context.getEpisode());
+            // observers get all the events of the run before it returns
+            final EventDispatcher<XProcEvent> eventDispatcher = context.getEventDispatcher();
+            if (eventDispatcher instanceof AsynchronousEventDispatcher)
+            {
+                ((AsynchronousEventDispatcher<?>) eventDispatcher).flush();
+            }
+        }
+
+        // raises the errors of the documents stored in the background
+        context.getStoreWriter().flush(context.getEpisode());
         return new PipelineResult(pipeline, resultEnvironment);
     }
 
@@ -26,8 +26,10 @@ import javax.xml.transform.Source;
 import net.sf.saxon.s9api.XdmNode;
 import org.apache.commons.lang.StringUtils;
 import org.trancecode.api.Immutable;
+import org.trancecode.io.Uris;
 import org.trancecode.xml.Jaxp;
 import org.trancecode.xml.Location;
+import org.trancecode.xproc.DocumentCache;
 import org.trancecode.xproc.Environment;
 import org.trancecode.xproc.XProcExceptions;
 
@@ -39,8 +41,6 @@ public class DocumentPortBinding extends AbstractPortBinding
 {
     private final String href;
 
-    // TODO cache support
-
     public DocumentPortBinding(final String href, final Location location)
     {
         super(location);
@@ -60,14 +60,25 @@ public class DocumentPortBinding extends AbstractPortBinding
         {
             public Iterable<XdmNode> readNodes()
             {
+                final DocumentCache documentCache = environment.getPipelineContext().getDocumentCache();
+                final URI uri = Uris.resolve(href, location.getSystemId());
+                environment.getPipelineContext().getStoreWriter().await(uri);
+                final XdmNode cachedDocument = documentCache.getIfPresent(uri);
+                if (cachedDocument != null)
+                {
+                    return ImmutableList.of(cachedDocument);
+                }
+
                 try
                 {
                     final Source source = environment.getPipelineContext().getUriResolver()
                             .resolve(href, location.getSystemId());
                     try
                     {
-                        return ImmutableList.of(environment.getPipelineContext().getProcessor().newDocumentBuilder()
-                                .build(source));
+                        final XdmNode document = environment.getPipelineContext().getProcessor()
+                                .newDocumentBuilder().build(source);
+                        documentCache.put(uri, document);
+                        return ImmutableList.of(document);
                     }
                     finally
                     {
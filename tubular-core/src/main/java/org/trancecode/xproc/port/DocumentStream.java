@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.port;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.concurrent.BoundedChannel;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.Saxon;
+import org.trancecode.xml.saxon.SaxonLocation;
+import org.trancecode.xproc.XProcExceptions;
+
+/**
+ * A sequence of documents written to a port by a producer running
+ * concurrently with the steps reading the port.
+ * <p>
+ * Documents are handed over through a {@link BoundedChannel}, so that the
+ * producer is held back as soon as the reader lags behind by more than the
+ * capacity of the channel. The first documents of the sequence are kept, so
+ * that they can be read any number of times (to get the XPath context node or
+ * to check that the port holds a single document for instance), but the rest
+ * of the sequence can be read by only one reader.
+ * 
+ * @author Herve Quiroz
+ */
+public final class DocumentStream implements Iterable<XdmNode>
+{
+    static final int HEAD_SIZE = 2;
+
+    private static final Logger LOG = Logger.getLogger(DocumentStream.class);
+
+    private final PortReference portReference;
+    private final BoundedChannel<XdmNode> channel;
+    private final List<XdmNode> head = Lists.newArrayListWithCapacity(HEAD_SIZE);
+    private final Object lock = new Object();
+    private Iterator<XdmNode> source;
+    private boolean claimed;
+    private volatile Future<?> producer;
+
+    public static DocumentStream newStream(final PortReference portReference, final int capacity)
+    {
+        return new DocumentStream(portReference, capacity);
+    }
+
+    private DocumentStream(final PortReference portReference, final int capacity)
+    {
+        this.portReference = Preconditions.checkNotNull(portReference);
+        channel = BoundedChannel.newChannel(capacity);
+    }
+
+    public PortReference getPortReference()
+    {
+        return portReference;
+    }
+
+    /**
+     * Writes a document to the stream, waiting for the reader to catch up if
+     * needed.
+     */
+    public void write(final XdmNode node)
+    {
+        if (!Saxon.isDocument(node))
+        {
+            throw XProcExceptions.xd0001(SaxonLocation.of(node));
+        }
+
+        channel.put(node);
+    }
+
+    /**
+     * Signals that all the documents have been written.
+     */
+    public void close()
+    {
+        channel.close();
+    }
+
+    /**
+     * Closes the stream with an error to be reported to the reader.
+     */
+    public void fail(final Throwable error)
+    {
+        channel.fail(error);
+    }
+
+    /**
+     * Sets the task writing the documents, which is waited for by
+     * {@link #await()}.
+     */
+    public void setProducer(final Future<?> producer)
+    {
+        this.producer = producer;
+    }
+
+    /**
+     * Waits for the producer to be done, once no other step is going to read
+     * the stream with back-pressure. Documents written from now on are either
+     * buffered for readers to come, or dropped if the stream has already been
+     * read.
+     */
+    public void await()
+    {
+        synchronized (lock)
+        {
+            if (claimed)
+            {
+                channel.discard();
+            }
+            else
+            {
+                channel.setBounded(false);
+            }
+        }
+
+        final Future<?> producerTask = producer;
+        if (producerTask != null)
+        {
+            try
+            {
+                producerTask.get();
+            }
+            catch (final ExecutionException e)
+            {
+                throw Throwables.propagate(e.getCause());
+            }
+            catch (final InterruptedException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Drops the documents written from now on and interrupts the producer,
+     * once the stream is not going to be read anymore because the subpipeline
+     * failed, so that the producer does not stay blocked on a full stream.
+     */
+    public void discard()
+    {
+        channel.discard();
+        final Future<?> producerTask = producer;
+        if (producerTask != null)
+        {
+            producerTask.cancel(true);
+        }
+    }
+
+    private Iterator<XdmNode> source()
+    {
+        if (source == null)
+        {
+            source = channel.consume();
+        }
+
+        return source;
+    }
+
+    @Override
+    public Iterator<XdmNode> iterator()
+    {
+        return new AbstractIterator<XdmNode>()
+        {
+            private int position;
+            private boolean reader;
+
+            @Override
+            protected XdmNode computeNext()
+            {
+                if (!reader)
+                {
+                    synchronized (lock)
+                    {
+                        if (position < head.size())
+                        {
+                            return head.get(position++);
+                        }
+
+                        // only the reader that claimed the stream gets to its
+                        // end, even once it is exhausted
+                        if (claimed)
+                        {
+                            throw new IllegalStateException("port " + portReference
+                                    + " is streamed and is already being read; streaming must be disabled"
+                                    + " for pipelines reading a port more than once");
+                        }
+
+                        if (!source().hasNext())
+                        {
+                            return endOfData();
+                        }
+
+                        if (position < HEAD_SIZE)
+                        {
+                            final XdmNode node = source().next();
+                            head.add(node);
+                            position++;
+                            return node;
+                        }
+
+                        LOG.trace("{@method} port = {}", portReference);
+                        claimed = true;
+                        reader = true;
+                        channel.setBounded(true);
+                    }
+                }
+
+                if (source.hasNext())
+                {
+                    return source.next();
+                }
+
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + portReference + " ; " + channel + "]";
+    }
+}
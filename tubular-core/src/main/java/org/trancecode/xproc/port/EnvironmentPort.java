@@ -20,13 +20,21 @@
 package org.trancecode.xproc.port;
 
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmNode;
@@ -36,6 +44,7 @@ import org.trancecode.xml.Location;
 import org.trancecode.xml.saxon.Saxon;
 import org.trancecode.xml.saxon.SaxonLocation;
 import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.PipelineContext;
 import org.trancecode.xproc.api.XProcException;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.XProcXmlModel;
@@ -48,10 +57,16 @@ import org.trancecode.xproc.binding.PortBinding;
 public final class EnvironmentPort implements HasPortReference
 {
     private static final Logger LOG = Logger.getLogger(EnvironmentPort.class);
+    private static final Map<String, String> SELECT_NAMESPACES = ImmutableMap.of(XProcXmlModel.xprocNamespace()
+            .prefix(), XProcXmlModel.xprocNamespace().uri(), XProcXmlModel.xprocStepNamespace().prefix(),
+            XProcXmlModel.xprocStepNamespace().uri());
 
     private final Port declaredPort;
     private final List<EnvironmentPortBinding> portBindings;
     private final XPathExecutable select;
+    private final boolean memoizeReads;
+    private final Supplier<List<XdmNode>> memoizedNodes;
+    private final AtomicInteger rawReadCount = new AtomicInteger();
 
     public static EnvironmentPort newEnvironmentPort(final Port declaredPort, final Environment environment)
     {
@@ -77,12 +92,9 @@ public final class EnvironmentPort implements HasPortReference
         {
             try
             {
-                final XPathCompiler xpathCompiler = environment.getPipelineContext().getProcessor().newXPathCompiler();
-                xpathCompiler.declareNamespace(XProcXmlModel.xprocNamespace().prefix(), XProcXmlModel.xprocNamespace()
-                        .uri());
-                xpathCompiler.declareNamespace(XProcXmlModel.xprocStepNamespace().prefix(), XProcXmlModel
-                        .xprocStepNamespace().uri());
-                select = xpathCompiler.compile(declaredPortSelect);
+                final PipelineContext context = environment.getPipelineContext();
+                select = context.getXPathCache().compile(context.getProcessor(), declaredPortSelect,
+                        ImmutableSet.<QName> of(), SELECT_NAMESPACES, null);
             }
             catch (final SaxonApiException e)
             {
@@ -97,15 +109,33 @@ public final class EnvironmentPort implements HasPortReference
             select = null;
         }
 
-        return new EnvironmentPort(declaredPort, portBindings, select);
+        return new EnvironmentPort(declaredPort, portBindings, select, environment.getPipelineContext()
+                .isPortReadCacheEnabled());
     }
 
     private EnvironmentPort(final Port declaredPort, final Iterable<EnvironmentPortBinding> portBindings,
-            final XPathExecutable select)
+            final XPathExecutable select, final boolean memoizeReads)
     {
         this.declaredPort = declaredPort;
         this.portBindings = ImmutableList.copyOf(portBindings);
         this.select = select;
+        this.memoizeReads = memoizeReads;
+        if (memoizeReads)
+        {
+            // concurrent readers wait for the first one to read the nodes
+            memoizedNodes = Suppliers.memoize(new Supplier<List<XdmNode>>()
+            {
+                @Override
+                public List<XdmNode> get()
+                {
+                    return readSelectedNodes();
+                }
+            });
+        }
+        else
+        {
+            memoizedNodes = null;
+        }
     }
 
     public List<EnvironmentPortBinding> portBindings()
@@ -118,11 +148,87 @@ public final class EnvironmentPort implements HasPortReference
         return declaredPort;
     }
 
+    /**
+     * Binding that can count its documents without reading them all.
+     */
+    private interface CountingPortBinding extends EnvironmentPortBinding
+    {
+        /**
+         * Returns the number of documents, but no more than {@code limit} if
+         * {@code limit} is positive.
+         */
+        int countNodes(int limit);
+    }
+
+    /**
+     * Binding that may be fed by a {@link DocumentStream}, either directly or
+     * through a pipe.
+     */
+    private abstract static class AbstractStreamingPortBinding implements CountingPortBinding
+    {
+        public abstract boolean isStreamed();
+    }
+
+    /**
+     * Returns {@code true} if some documents of this port are fed by a
+     * {@link DocumentStream}, in which case they can only be read once.
+     */
+    public boolean isStreamed()
+    {
+        for (final EnvironmentPortBinding portBinding : portBindings)
+        {
+            if (portBinding instanceof AbstractStreamingPortBinding
+                    && ((AbstractStreamingPortBinding) portBinding).isStreamed())
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Waits for the producers of the documents streamed to this port.
+     * 
+     * @see DocumentStream#await()
+     */
+    public void awaitStreams()
+    {
+        for (final EnvironmentPortBinding portBinding : portBindings)
+        {
+            if (portBinding instanceof StreamPortBinding)
+            {
+                ((StreamPortBinding) portBinding).stream.await();
+            }
+        }
+    }
+
+    /**
+     * Discards the documents streamed to this port.
+     * 
+     * @see DocumentStream#discard()
+     */
+    public void discardStreams()
+    {
+        for (final EnvironmentPortBinding portBinding : portBindings)
+        {
+            if (portBinding instanceof StreamPortBinding)
+            {
+                ((StreamPortBinding) portBinding).stream.discard();
+            }
+        }
+    }
+
     /**
      * Read without evaluating the 'select' attribute.
      */
     private Iterable<XdmNode> readRawNodes()
     {
+        if (portBindings.size() == 1)
+        {
+            return portBindings.get(0).readNodes();
+        }
+
         return Iterables.concat(Iterables.transform(portBindings,
                 new Function<EnvironmentPortBinding, Iterable<XdmNode>>()
                 {
@@ -166,9 +272,112 @@ public final class EnvironmentPort implements HasPortReference
     {
         LOG.trace("{@method} declaredPort = {}", declaredPort);
 
+        if (isStreamed())
+        {
+            final Iterable<XdmNode> nodes = select(readRawNodes());
+            return new Iterable<XdmNode>()
+            {
+                @Override
+                public Iterator<XdmNode> iterator()
+                {
+                    return nodes.iterator();
+                }
+
+                @Override
+                public String toString()
+                {
+                    return "streamed " + declaredPort;
+                }
+            };
+        }
+
+        if (memoizedNodes != null)
+        {
+            return memoizedNodes.get();
+        }
+
+        return readSelectedNodes();
+    }
+
+    /**
+     * Returns the number of documents of this port, but no more than
+     * {@code limit} if {@code limit} is positive.
+     * <p>
+     * Documents are read lazily and only until the limit is reached. The
+     * count of documents that are already known, such as the ones written by
+     * a step, is used without reading them.
+     */
+    public int countNodes(final int limit)
+    {
+        LOG.trace("{@method} declaredPort = {} ; limit = {}", declaredPort, limit);
+
+        if (select != null)
+        {
+            return count(select(readRawNodes()), limit);
+        }
+
+        if (memoizedNodes != null && limit <= 0)
+        {
+            return memoizedNodes.get().size();
+        }
+
+        int count = 0;
+        for (final EnvironmentPortBinding portBinding : portBindings)
+        {
+            final int remaining = limit > 0 ? limit - count : 0;
+            if (portBinding instanceof CountingPortBinding)
+            {
+                count += ((CountingPortBinding) portBinding).countNodes(remaining);
+            }
+            else
+            {
+                count += count(portBinding.readNodes(), remaining);
+            }
+
+            if (limit > 0 && count >= limit)
+            {
+                return limit;
+            }
+        }
+
+        return count;
+    }
+
+    private static int count(final Iterable<XdmNode> nodes, final int limit)
+    {
+        if (nodes instanceof Collection)
+        {
+            final int size = ((Collection<?>) nodes).size();
+            return limit > 0 ? Math.min(size, limit) : size;
+        }
+
+        int count = 0;
+        final Iterator<XdmNode> iterator = nodes.iterator();
+        while (iterator.hasNext() && (limit <= 0 || count < limit))
+        {
+            iterator.next();
+            count++;
+        }
+
+        return count;
+    }
+
+    private List<XdmNode> readSelectedNodes()
+    {
+        final int count = rawReadCount.incrementAndGet();
+        LOG.trace("{@method} declaredPort = {} ; raw reads = {}", declaredPort, count);
         return ImmutableList.copyOf(select(readRawNodes()));
     }
 
+    /**
+     * Returns the number of times the bindings of this port have actually been
+     * read and filtered with the {@code select} expression of the port.
+     */
+    public int getRawReadCount()
+    {
+        return rawReadCount.get();
+    }
+
     public EnvironmentPort writeNodes(final XdmNode... nodes)
     {
         return writeNodes(ImmutableList.copyOf(nodes));
@@ -192,7 +401,7 @@ public final class EnvironmentPort implements HasPortReference
             }
         }
         LOG.trace("{} nodes -> {}", nodeList.size(), declaredPort.getPortReference());
-        final EnvironmentPortBinding portBinding = new EnvironmentPortBinding()
+        final EnvironmentPortBinding portBinding = new CountingPortBinding()
         {
             public Iterable<XdmNode> readNodes()
             {
@@ -200,6 +409,12 @@ public final class EnvironmentPort implements HasPortReference
                 return nodeList;
             }
 
+            @Override
+            public int countNodes(final int limit)
+            {
+                return count(nodeList, limit);
+            }
+
             @Override
             public Location getLocation()
             {
@@ -217,7 +432,55 @@ public final class EnvironmentPort implements HasPortReference
             newPortBindings = ImmutableList.of(portBinding);
         }
 
-        return new EnvironmentPort(declaredPort, newPortBindings, select);
+        return new EnvironmentPort(declaredPort, newPortBindings, select, memoizeReads);
+    }
+
+    /**
+     * Binds this port to documents written concurrently by another task.
+     */
+    public EnvironmentPort writeStream(final DocumentStream stream)
+    {
+        assert portBindings.isEmpty();
+        LOG.trace("{@method} {} -> {}", stream, declaredPort.getPortReference());
+
+        return new EnvironmentPort(declaredPort, ImmutableList.<EnvironmentPortBinding> of(new StreamPortBinding(
+                stream, declaredPort.getLocation())), select, memoizeReads);
+    }
+
+    private static final class StreamPortBinding extends AbstractStreamingPortBinding
+    {
+        private final DocumentStream stream;
+        private final Location location;
+
+        public StreamPortBinding(final DocumentStream stream, final Location location)
+        {
+            this.stream = stream;
+            this.location = location;
+        }
+
+        @Override
+        public boolean isStreamed()
+        {
+            return true;
+        }
+
+        @Override
+        public Iterable<XdmNode> readNodes()
+        {
+            return stream;
+        }
+
+        @Override
+        public int countNodes(final int limit)
+        {
+            return count(stream, limit);
+        }
+
+        @Override
+        public Location getLocation()
+        {
+            return location;
+        }
     }
 
     public EnvironmentPort pipe(final EnvironmentPort port)
@@ -226,14 +489,26 @@ public final class EnvironmentPort implements HasPortReference
         assert port != this : getDeclaredPort();
         LOG.trace("{@method} {} -> {}", port.getDeclaredPort(), getDeclaredPort());
 
-        final EnvironmentPortBinding portBinding = new EnvironmentPortBinding()
+        final EnvironmentPortBinding portBinding = new AbstractStreamingPortBinding()
         {
+            @Override
+            public boolean isStreamed()
+            {
+                return port.isStreamed();
+            }
+
             public Iterable<XdmNode> readNodes()
             {
                 LOG.trace("{@method} port = {} ; pipe = {}", EnvironmentPort.this, port);
                 return port.readNodes();
             }
 
+            @Override
+            public int countNodes(final int limit)
+            {
+                return port.countNodes(limit);
+            }
+
             @Override
             public Location getLocation()
             {
@@ -241,7 +516,7 @@ public final class EnvironmentPort implements HasPortReference
             }
         };
 
-        return new EnvironmentPort(declaredPort, ImmutableList.of(portBinding), select);
+        return new EnvironmentPort(declaredPort, ImmutableList.of(portBinding), select, memoizeReads);
     }
 
     @Override
@@ -19,13 +19,16 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
@@ -36,6 +39,8 @@ import org.trancecode.concurrent.TcFutures;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.Environment;
 import org.trancecode.xproc.port.EnvironmentPort;
+import org.trancecode.xproc.xpath.IterationPositionXPathExtensionFunction;
+import org.trancecode.xproc.xpath.IterationSizeXPathExtensionFunction;
 
 /**
  * @author Herve Quiroz
@@ -71,6 +76,9 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
         final Map<Step, Future<Environment>> stepResults = new ConcurrentHashMap<Step, Future<Environment>>();
         final List<Future<Environment>> results = Lists.newArrayList();
         final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        // the executor may run the steps on other threads
+        final int iterationPosition = IterationPositionXPathExtensionFunction.getIterationPosition();
+        final int iterationSize = IterationSizeXPathExtensionFunction.getIterationSize();
         for (final Step step : steps)
         {
             final Future<Environment> result = environment.getPipelineContext().getExecutor()
@@ -105,19 +113,45 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
                                 }
                             }
 
-                            Environment.setCurrentNamespaceContext(step.getNode());
-                            inputEnvironment.setCurrentEnvironment();
-                            return step.run(inputEnvironment);
+                            final int previousIterationPosition = IterationPositionXPathExtensionFunction
+                                    .setIterationPosition(iterationPosition);
+                            final int previousIterationSize = IterationSizeXPathExtensionFunction
+                                    .setIterationSize(iterationSize);
+                            try
+                            {
+                                Environment.setCurrentNamespaceContext(step.getNode());
+                                inputEnvironment.setCurrentEnvironment();
+                                return step.run(inputEnvironment);
+                            }
+                            finally
+                            {
+                                IterationPositionXPathExtensionFunction.setIterationPosition(previousIterationPosition);
+                                IterationSizeXPathExtensionFunction.setIterationSize(previousIterationSize);
+                            }
                         }
                     });
             stepResults.put(step, result);
             results.add(result);
         }
 
+        final Set<String> stepNames = ImmutableSet.copyOf(Iterables.transform(steps, StepFunctions.getName()));
         final Iterable<Environment> resultEnvironments;
+        boolean streamsAwaited = false;
         try
         {
             resultEnvironments = TcFutures.get(results);
+
+            // wait for the documents streamed by the steps, now that no other
+            // step from the subpipeline is going to read them
+            for (final Environment intermediateResultEnvironment : Iterables.filter(resultEnvironments,
+                    Predicates.notNull()))
+            {
+                for (final EnvironmentPort port : getStepOutputPorts(intermediateResultEnvironment, stepNames))
+                {
+                    port.awaitStreams();
+                }
+            }
+            streamsAwaited = true;
         }
         catch (final ExecutionException e)
         {
@@ -128,6 +162,14 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
         {
             throw new IllegalStateException(e);
         }
+        finally
+        {
+            if (!streamsAwaited)
+            {
+                // release the producers of the steps that did complete
+                discardStreams(results, stepNames);
+            }
+        }
 
         Environment resultEnvironment = Iterables.getLast(resultEnvironments, initialEnvironment);
         for (final Environment intermediateResultEnvironment : Iterables.filter(resultEnvironments,
@@ -144,4 +186,50 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
 
         return resultEnvironment;
     }
+
+    private static Iterable<EnvironmentPort> getStepOutputPorts(final Environment environment,
+            final Set<String> stepNames)
+    {
+        return Iterables.filter(environment.getOutputPorts(), new Predicate<EnvironmentPort>()
+        {
+            @Override
+            public boolean apply(final EnvironmentPort port)
+            {
+                return stepNames.contains(port.getDeclaredPort().getStepName());
+            }
+        });
+    }
+
+    private static void discardStreams(final Iterable<Future<Environment>> results, final Set<String> stepNames)
+    {
+        for (final Future<Environment> result : results)
+        {
+            if (!result.isDone() || result.isCancelled())
+            {
+                continue;
+            }
+
+            final Environment environment;
+            try
+            {
+                environment = result.get();
+            }
+            catch (final ExecutionException e)
+            {
+                continue;
+            }
+            catch (final InterruptedException e)
+            {
+                throw new IllegalStateException(e);
+            }
+
+            if (environment != null)
+            {
+                for (final EnvironmentPort port : getStepOutputPorts(environment, stepNames))
+                {
+                    port.discardStreams();
+                }
+            }
+        }
+    }
 }
@@ -30,8 +30,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
+import org.trancecode.api.Nullable;
+import org.trancecode.event.EventDispatcher;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.HasLocation;
 import org.trancecode.xml.Location;
@@ -41,6 +47,7 @@ import org.trancecode.xproc.api.PipelineException;
 import org.trancecode.xproc.api.XProcException;
 import org.trancecode.xproc.event.AfterExecuteStepEvent;
 import org.trancecode.xproc.event.BeforeExecuteStepEvent;
+import org.trancecode.xproc.event.XProcEvent;
 
 /**
  * Base class for {@link StepProcessor} implementations.
@@ -57,8 +64,11 @@ public abstract class AbstractStepProcessor implements StepProcessor
         LOG.trace("{@method} step = {} ; type = {}", step.getName(), step.getType());
         assert getStepType().equals(step.getType()) || getStepType().equals(XProcSteps.ANY);
 
-        environment.getPipelineContext().getEventDispatcher()
-                .notify(new BeforeExecuteStepEvent(environment.getPipeline(), step, environment));
+        final EventDispatcher<XProcEvent> eventDispatcher = environment.getPipelineContext().getEventDispatcher();
+        if (eventDispatcher.hasObservers())
+        {
+            eventDispatcher.notify(new BeforeExecuteStepEvent(environment.getPipeline(), step, environment));
+        }
 
         try
         {
@@ -68,17 +78,25 @@ public abstract class AbstractStepProcessor implements StepProcessor
             final StepOutput output = new StepOutput(step);
             execute(input, output);
 
+            final StepProfiler profiler = environment.getPipelineContext().getProfiler();
             Environment resultEnvironment = stepEnvironment;
             for (final Entry<String, Collection<XdmNode>> port : output.ports.asMap().entrySet())
             {
+                if (profiler != null)
+                {
+                    profiler.recordOutputs(port.getValue());
+                }
                 resultEnvironment = resultEnvironment.writeNodes(step.getPortReference(port.getKey()), port.getValue());
             }
 
             resultEnvironment = resultEnvironment.setupOutputPorts(step);
             Steps.writeLogs(step, resultEnvironment);
 
-            environment.getPipelineContext().getEventDispatcher()
-                    .notify(new AfterExecuteStepEvent(environment.getPipeline(), step, environment, resultEnvironment));
+            if (eventDispatcher.hasObservers())
+            {
+                eventDispatcher.notify(new AfterExecuteStepEvent(environment.getPipeline(), step, environment,
+                        resultEnvironment));
+            }
 
             return resultEnvironment;
         }
@@ -158,7 +176,14 @@ public abstract class AbstractStepProcessor implements StepProcessor
          */
         public XdmNode readNode(final String portName)
         {
-            return environment.readNode(step.getPortReference(portName));
+            final XdmNode node = environment.readNode(step.getPortReference(portName));
+            final StepProfiler profiler = getPipelineContext().getProfiler();
+            if (profiler != null)
+            {
+                profiler.recordInput(node);
+            }
+
+            return node;
         }
 
         /**
@@ -168,7 +193,23 @@ public abstract class AbstractStepProcessor implements StepProcessor
          */
         public Iterable<XdmNode> readNodes(final String portName)
         {
-            return environment.readNodes(step.getPortReference(portName));
+            final Iterable<XdmNode> nodes = environment.readNodes(step.getPortReference(portName));
+            final StepProfiler profiler = getPipelineContext().getProfiler();
+            if (profiler != null)
+            {
+                return profiler.recordInputs(nodes);
+            }
+
+            return nodes;
+        }
+
+        /**
+         * Returns the number of documents on the specified port, reading no
+         * more than {@code limit} documents if {@code limit} is positive.
+         */
+        public int countNodes(final String portName, final int limit)
+        {
+            return environment.countNodes(step.getPortReference(portName), limit);
         }
 
         /**
@@ -224,6 +265,55 @@ public abstract class AbstractStepProcessor implements StepProcessor
         {
             return environment.evaluateXPath(select, xpathContextNode, additionalParameters);
         }
+
+        /**
+         * Returns the variables in scope along with the given parameters, to
+         * be bound to expressions compiled with
+         * {@link #compileXPath(String, Iterable)}.
+         */
+        public Map<QName, XdmItem> getXPathVariables(@Nullable final Map<QName, String> additionalParameters)
+        {
+            return environment.getXPathVariables(additionalParameters);
+        }
+
+        /**
+         * Compiles an XPath query with the specified variables declared, so
+         * that it can be evaluated several times.
+         */
+        public XPathExecutable compileXPath(final String select, final Iterable<QName> variableNames)
+                throws SaxonApiException
+        {
+            return environment.compileXPath(select, variableNames);
+        }
+
+        /**
+         * Evaluates a compiled XPath query with the specified node as a
+         * context.
+         */
+        public XdmValue evaluateXPath(final XPathExecutable xpathExecutable, @Nullable final XdmNode xpathContextNode,
+                final Map<QName, XdmItem> variables) throws SaxonApiException
+        {
+            return environment.evaluateXPath(xpathExecutable, xpathContextNode, variables);
+        }
+
+        /**
+         * Returns a selector for a compiled XPath query with the specified
+         * variables bound, to be evaluated against several context nodes.
+         */
+        public XPathSelector loadXPath(final XPathExecutable xpathExecutable, final Map<QName, XdmItem> variables)
+                throws SaxonApiException
+        {
+            return environment.loadXPath(xpathExecutable, variables);
+        }
+
+        /**
+         * Evaluates an XPath selector with the specified node as a context.
+         */
+        public XdmValue evaluateXPath(final XPathSelector selector, @Nullable final XdmNode xpathContextNode)
+                throws SaxonApiException
+        {
+            return environment.evaluateXPath(selector, xpathContextNode);
+        }
     }
 
     /**
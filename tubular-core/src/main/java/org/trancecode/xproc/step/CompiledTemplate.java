@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmValue;
+import org.trancecode.api.Nullable;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.Location;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xml.saxon.SaxonBuilder;
+import org.trancecode.xml.saxon.SaxonPredicates;
+import org.trancecode.xproc.XProcExceptions;
+import org.trancecode.xproc.api.PipelineException;
+import org.trancecode.xproc.step.AbstractStepProcessor.StepInput;
+
+/**
+ * A {@code p:template} document parsed into literal segments and XPath
+ * expressions, so that it can be rendered many times without being scanned
+ * again.
+ * <p>
+ * Expressions are compiled for the set of variables in scope the first time
+ * the template is rendered, and only recompiled if that set changes.
+ * 
+ * @author Herve Quiroz
+ * @see TemplateStepProcessor
+ */
+final class CompiledTemplate
+{
+    private static final Logger LOG = Logger.getLogger(CompiledTemplate.class);
+
+    private final List<TemplateNode> nodes;
+    private final List<String> expressions;
+    private volatile CompiledExpressions compiledExpressions;
+
+    private enum Mode {
+        REGULAR, XPATH, SINGLE_QUOTE, DOUBLE_QUOTE
+    }
+
+    /**
+     * Text of a template node: literal strings interleaved with expressions.
+     * There is always one more literal than expressions.
+     */
+    private static final class ValueTemplate
+    {
+        private final String[] literals;
+        private final int[] expressions;
+
+        public ValueTemplate(final List<String> literals, final List<Integer> expressions)
+        {
+            assert literals.size() == expressions.size() + 1;
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.expressions = new int[expressions.size()];
+            for (int i = 0; i < this.expressions.length; i++)
+            {
+                this.expressions[i] = expressions.get(i);
+            }
+        }
+    }
+
+    private static final class TemplateNode
+    {
+        private final XdmNodeKind kind;
+        private final QName name;
+        private final ValueTemplate value;
+        private final List<TemplateNode> children;
+
+        public TemplateNode(final XdmNodeKind kind, final QName name, final ValueTemplate value,
+                final List<TemplateNode> children)
+        {
+            this.kind = kind;
+            this.name = name;
+            this.value = value;
+            this.children = children;
+        }
+    }
+
+    private static final class CompiledExpressions
+    {
+        private final Set<QName> variableNames;
+        private final XPathExecutable[] executables;
+
+        public CompiledExpressions(final Set<QName> variableNames, final XPathExecutable[] executables)
+        {
+            this.variableNames = variableNames;
+            this.executables = executables;
+        }
+    }
+
+    /**
+     * Parses the children of the specified template node.
+     * 
+     * @throws org.trancecode.xproc.api.XProcException
+     *             {@code err:XC0067} if the template is malformed.
+     */
+    public static CompiledTemplate compile(final XdmNode templateNode, final Location location)
+    {
+        LOG.trace("{@method} template = {}", templateNode.getBaseURI());
+        final List<String> expressions = Lists.newArrayList();
+        final List<TemplateNode> nodes = compileChildren(templateNode, location, expressions);
+        return new CompiledTemplate(nodes, expressions);
+    }
+
+    private static List<TemplateNode> compileChildren(final XdmNode node, final Location location,
+            final List<String> expressions)
+    {
+        final Iterable<XdmNode> children = Iterables.filter(SaxonAxis.childNodes(node),
+                Predicates.not(SaxonPredicates.isIgnorableWhitespace()));
+        final ImmutableList.Builder<TemplateNode> templateNodes = ImmutableList.builder();
+        for (final XdmNode child : children)
+        {
+            final XdmNodeKind nodeKind = child.getNodeKind();
+            switch (nodeKind)
+            {
+                case ATTRIBUTE:
+                case COMMENT:
+                case PROCESSING_INSTRUCTION:
+                case TEXT:
+                    final ValueTemplate value = parseValueTemplate(child.getStringValue(), location, expressions);
+                    templateNodes.add(new TemplateNode(nodeKind, child.getNodeName(), value, null));
+                    break;
+                case ELEMENT:
+                    templateNodes.add(new TemplateNode(nodeKind, child.getNodeName(), null, compileChildren(child,
+                            location, expressions)));
+                    break;
+                default:
+                    throw new PipelineException("unhandled node kind");
+            }
+        }
+
+        return templateNodes.build();
+    }
+
+    private static ValueTemplate parseValueTemplate(final String text, final Location location,
+            final List<String> expressions)
+    {
+        final List<String> literals = Lists.newArrayList();
+        final List<Integer> expressionIndexes = Lists.newArrayList();
+        final StringBuilder literal = new StringBuilder();
+        final StringBuilder expression = new StringBuilder();
+        Mode mode = Mode.REGULAR;
+        final int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            final char c = text.charAt(i);
+            switch (mode)
+            {
+                case REGULAR:
+                    if (c == '{' || c == '}')
+                    {
+                        if (i + 1 < length && text.charAt(i + 1) == c)
+                        {
+                            literal.append(c);
+                            i++;
+                        }
+                        else if (c == '{')
+                        {
+                            expression.setLength(0);
+                            mode = Mode.XPATH;
+                        }
+                        else
+                        {
+                            throw XProcExceptions.xc0067(location);
+                        }
+                    }
+                    else
+                    {
+                        literal.append(c);
+                    }
+                    break;
+
+                case XPATH:
+                    if (c == '{')
+                    {
+                        throw XProcExceptions.xc0067(location);
+                    }
+                    if (c == '}')
+                    {
+                        literals.add(literal.toString());
+                        literal.setLength(0);
+                        expressionIndexes.add(expressions.size());
+                        expressions.add(expression.toString());
+                        mode = Mode.REGULAR;
+                    }
+                    else
+                    {
+                        expression.append(c);
+                        if (c == '\'')
+                        {
+                            mode = Mode.SINGLE_QUOTE;
+                        }
+                        else if (c == '"')
+                        {
+                            mode = Mode.DOUBLE_QUOTE;
+                        }
+                    }
+                    break;
+
+                case SINGLE_QUOTE:
+                case DOUBLE_QUOTE:
+                    expression.append(c);
+                    if (c == (mode == Mode.SINGLE_QUOTE ? '\'' : '"'))
+                    {
+                        mode = Mode.XPATH;
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException(mode.toString());
+            }
+        }
+
+        if (mode != Mode.REGULAR)
+        {
+            throw XProcExceptions.xc0067(location);
+        }
+
+        literals.add(literal.toString());
+        return new ValueTemplate(literals, expressionIndexes);
+    }
+
+    private CompiledTemplate(final List<TemplateNode> nodes, final List<String> expressions)
+    {
+        this.nodes = nodes;
+        this.expressions = ImmutableList.copyOf(expressions);
+    }
+
+    /**
+     * Renders the template with the specified source document as the XPath
+     * context and the given parameters bound as variables.
+     */
+    public XdmNode render(final StepInput input, @Nullable final XdmNode source, final Map<QName, String> parameters)
+    {
+        final Map<QName, XdmItem> variables = input.getXPathVariables(parameters);
+        final XPathExecutable[] executables = getExecutables(input, variables.keySet());
+        final Processor processor = input.getPipelineContext().getProcessor();
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.startDocument();
+        render(nodes, builder, input, source, variables, executables, processor);
+        builder.endDocument();
+        return builder.getNode();
+    }
+
+    private XPathExecutable[] getExecutables(final StepInput input, final Set<QName> variableNames)
+    {
+        final CompiledExpressions currentExpressions = compiledExpressions;
+        if (currentExpressions != null && currentExpressions.variableNames.equals(variableNames))
+        {
+            return currentExpressions.executables;
+        }
+
+        LOG.trace("{@method} variables = {}", variableNames);
+        final XPathExecutable[] executables = new XPathExecutable[expressions.size()];
+        try
+        {
+            for (int i = 0; i < executables.length; i++)
+            {
+                executables[i] = input.compileXPath(expressions.get(i), variableNames);
+            }
+        }
+        catch (final SaxonApiException e)
+        {
+            throw new PipelineException(e);
+        }
+
+        compiledExpressions = new CompiledExpressions(ImmutableSet.copyOf(variableNames), executables);
+        return executables;
+    }
+
+    private static void render(final List<TemplateNode> nodes, final SaxonBuilder builder, final StepInput input,
+            final XdmNode source, final Map<QName, XdmItem> variables, final XPathExecutable[] executables,
+            final Processor processor)
+    {
+        for (final TemplateNode node : nodes)
+        {
+            if (node.kind == XdmNodeKind.ELEMENT)
+            {
+                builder.startElement(node.name);
+                render(node.children, builder, input, source, variables, executables, processor);
+                builder.endElement();
+                continue;
+            }
+
+            final String value = evaluate(node, input, source, variables, executables);
+            switch (node.kind)
+            {
+                case ATTRIBUTE:
+                    builder.attribute(node.name, value);
+                    break;
+                case TEXT:
+                    builder.raw(value, processor);
+                    break;
+                case COMMENT:
+                    builder.comment(value);
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    builder.processingInstruction(node.name.toString(), value);
+                    break;
+                default:
+                    throw new PipelineException("unhandled node kind");
+            }
+        }
+    }
+
+    private static String evaluate(final TemplateNode node, final StepInput input, final XdmNode source,
+            final Map<QName, XdmItem> variables, final XPathExecutable[] executables)
+    {
+        final ValueTemplate template = node.value;
+        if (template.expressions.length == 0)
+        {
+            return template.literals[0];
+        }
+
+        final StringBuilder result = new StringBuilder(template.literals[0]);
+        for (int i = 0; i < template.expressions.length; i++)
+        {
+            final XdmValue value;
+            try
+            {
+                value = input.evaluateXPath(executables[template.expressions[i]], source, variables);
+            }
+            catch (final SaxonApiException e)
+            {
+                final String exceptionMessage = e.getMessage();
+                if (exceptionMessage != null && exceptionMessage.contains("context item is undefined"))
+                {
+                    throw XProcExceptions.xc0026(input.getLocation());
+                }
+
+                throw new PipelineException(e);
+            }
+            assert value.size() == 1;
+
+            // In an attribute value, processing instruction, or comment, the
+            // string value of the XPath expression is used. In text content, an
+            // expression that selects nodes will cause those nodes to be copied
+            // into the template document.
+            if (node.kind == XdmNodeKind.TEXT)
+            {
+                result.append(value.toString());
+            }
+            else
+            {
+                result.append(value.itemAt(0).getStringValue());
+            }
+            result.append(template.literals[i + 1]);
+        }
+
+        return result.toString();
+    }
+}
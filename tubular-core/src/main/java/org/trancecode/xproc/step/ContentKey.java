@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.net.URI;
+
+/**
+ * Identifies an XML resource by its base URI and a digest of its content, for
+ * caching compiled forms of documents such as stylesheets or schemas.
+ * 
+ * @author Herve Quiroz
+ * @see ContentKeys
+ */
+final class ContentKey
+{
+    private final URI baseUri;
+    private final String digest;
+
+    public ContentKey(final URI baseUri, final String digest)
+    {
+        this.baseUri = baseUri;
+        this.digest = Preconditions.checkNotNull(digest);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hashCode(baseUri, digest);
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (o == this)
+        {
+            return true;
+        }
+
+        if (o == null || o.getClass() != getClass())
+        {
+            return false;
+        }
+
+        final ContentKey other = (ContentKey) o;
+        return digest.equals(other.digest) && Objects.equal(baseUri, other.baseUri);
+    }
+
+    @Override
+    public String toString()
+    {
+        return baseUri + "#" + digest;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.collect.MapMaker;
+
+import java.util.Map;
+
+import net.sf.saxon.om.DocumentInfo;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.xml.saxon.SaxonDigests;
+
+/**
+ * Computes {@link ContentKey content keys} of nodes. Keys of document nodes
+ * are memoized for each tree so that a document read repeatedly is only hashed
+ * once.
+ * 
+ * @author Herve Quiroz
+ */
+final class ContentKeys
+{
+    private final Map<DocumentInfo, ContentKey> keysByDocument = new MapMaker().weakKeys().makeMap();
+
+    public ContentKey getKey(final XdmNode node)
+    {
+        final DocumentInfo document;
+        if (node.getParent() == null)
+        {
+            document = node.getUnderlyingNode().getDocumentRoot();
+        }
+        else
+        {
+            document = null;
+        }
+
+        if (document != null)
+        {
+            final ContentKey key = keysByDocument.get(document);
+            if (key != null)
+            {
+                return key;
+            }
+        }
+
+        final ContentKey key = new ContentKey(node.getBaseURI(), SaxonDigests.digest(node));
+        if (document != null)
+        {
+            keysByDocument.put(document, key);
+        }
+
+        return key;
+    }
+}
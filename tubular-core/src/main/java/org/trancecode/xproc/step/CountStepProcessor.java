@@ -19,7 +19,6 @@
  */
 package org.trancecode.xproc.step;
 
-import com.google.common.collect.Iterables;
 import net.sf.saxon.s9api.QName;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.port.XProcPorts;
@@ -45,12 +44,10 @@ public final class CountStepProcessor extends AbstractStepProcessor
     @Override
     protected void execute(final StepInput input, final StepOutput output)
     {
-        // TODO improve performance with "limit" option
-        final int count = Iterables.size(input.readNodes(XProcPorts.SOURCE));
-        LOG.trace("  count = {}", count);
         final int limit = Integer.parseInt(input.getOptionValue(XProcOptions.LIMIT, "0"));
         LOG.trace("  limit = {}", limit);
-        final int result = limit > 0 ? Math.min(count, limit) : count;
+        // documents beyond the limit are not read
+        final int result = input.countNodes(XProcPorts.SOURCE, limit);
         LOG.trace("  result = {}", result);
 
         output.writeNodes(XProcPorts.RESULT, input.newResultElement(Integer.toString(result)));
@@ -20,22 +20,41 @@
 package org.trancecode.xproc.step;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
+import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import org.trancecode.concurrent.TaskExecutor;
 import org.trancecode.concurrent.TcFutures;
 import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonAxis;
 import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.XProcXmlModel;
 import org.trancecode.xproc.binding.InlinePortBinding;
+import org.trancecode.xproc.port.DocumentStream;
 import org.trancecode.xproc.port.EnvironmentPort;
 import org.trancecode.xproc.port.Port;
 import org.trancecode.xproc.port.XProcPorts;
@@ -48,6 +67,36 @@ import org.trancecode.xproc.xpath.IterationSizeXPathExtensionFunction;
 public final class ForEachStepProcessor extends AbstractCompoundStepProcessor implements CoreStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(ForEachStepProcessor.class);
+    private static final int MAX_PRODUCERS = 64;
+    // streaming iterations get their own threads, as they may wait for readers
+    // running on the pipeline executor; beyond MAX_PRODUCERS concurrent
+    // p:for-each steps, iterations wait for a thread to be released
+    private static final ThreadPoolExecutor PRODUCERS = new ThreadPoolExecutor(MAX_PRODUCERS, MAX_PRODUCERS, 60,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("tubular-for-each-%d").build());
+    // steps that evaluate no XPath expression other than the ones written in
+    // the pipeline, as p:iteration-size() is also available to stylesheets,
+    // queries, templates and schemas read from documents
+    private static final Set<QName> SELF_CONTAINED_STEPS = ImmutableSet.copyOf(Sets.difference(
+            Sets.union(XProcSteps.ALL_STEPS, ImmutableSet.of(XProcSteps.VIEWPORT)), ImmutableSet.of(
+                    XProcSteps.TEMPLATE, XProcSteps.VALIDATE_WITH_SCHEMATRON, XProcSteps.XQUERY, XProcSteps.XSLT)));
+    private static final Pattern ITERATION_SIZE_CALL = Pattern.compile(":"
+            + XProcXmlModel.Functions.ITERATION_SIZE.getLocalName() + "\\s*\\(");
+    private static final Map<XdmNode, Boolean> USES_ITERATION_SIZE = new MapMaker().weakKeys().makeMap();
+    private static final Map<XdmNode, Boolean> ISSUES_HTTP_REQUESTS = new MapMaker().weakKeys().makeMap();
+
+    static
+    {
+        PRODUCERS.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the number of streaming iterations currently running.
+     */
+    static int getActiveProducers()
+    {
+        return PRODUCERS.getActiveCount();
+    }
 
     @Override
     public Step getStepDeclaration()
@@ -69,6 +118,37 @@ public final class ForEachStepProcessor extends AbstractCompoundStepProcessor im
                 .setSequence(false).setPortBindings(new InlinePortBinding(node, step.getLocation()));
     }
 
+    private Environment runIteration(final Step step, final Environment environment,
+            final Environment stepEnvironment, final XdmNode inputNode, final int iterationPosition,
+            final int iterationSize)
+    {
+        LOG.trace("iteration {}/{}: {}", iterationPosition, iterationSize, inputNode);
+
+        final int oldIterationPosition = IterationPositionXPathExtensionFunction
+                .setIterationPosition(iterationPosition);
+        final int oldIterationSize = IterationSizeXPathExtensionFunction.setIterationSize(iterationSize);
+        try
+        {
+            final EnvironmentPort iterationPort = EnvironmentPort.newEnvironmentPort(
+                    newIterationPort(step, inputNode), environment);
+            Environment iterationEnvironment = environment.newChildStepEnvironment();
+            iterationEnvironment = iterationEnvironment.addPorts(iterationPort);
+            iterationEnvironment = iterationEnvironment.setDefaultReadablePort(iterationPort);
+            iterationEnvironment = iterationEnvironment.setXPathContextPort(iterationPort);
+            iterationEnvironment = iterationEnvironment.setupVariables(step);
+            iterationEnvironment.setCurrentEnvironment();
+            Environment resultEnvironment = runSteps(step.getSubpipeline(), iterationEnvironment);
+            resultEnvironment = stepEnvironment.setupOutputPorts(step, resultEnvironment);
+            Steps.writeLogs(step, resultEnvironment);
+            return resultEnvironment;
+        }
+        finally
+        {
+            IterationPositionXPathExtensionFunction.setIterationPosition(oldIterationPosition);
+            IterationSizeXPathExtensionFunction.setIterationSize(oldIterationSize);
+        }
+    }
+
     @Override
     public Environment run(final Step step, final Environment environment)
     {
@@ -77,6 +157,12 @@ public final class ForEachStepProcessor extends AbstractCompoundStepProcessor im
 
         final Environment stepEnvironment = environment.newFollowingStepEnvironment(step, false);
 
+        final int streamingPortCapacity = environment.getPipelineContext().getStreamingPortCapacity();
+        if (streamingPortCapacity > 0)
+        {
+            return runStreaming(step, environment, stepEnvironment, streamingPortCapacity);
+        }
+
         final List<XdmNode> inputNodes = ImmutableList.copyOf(stepEnvironment.readNodes(step
                 .getPortReference(XProcPorts.ITERATION_SOURCE)));
         final int iterationSize = inputNodes.size();
@@ -90,38 +176,16 @@ public final class ForEachStepProcessor extends AbstractCompoundStepProcessor im
                 @Override
                 public Environment call()
                 {
-                    LOG.trace("iteration {}/{}: {}", iterationPosition, iterationSize, inputNode);
-
-                    final int oldIterationPosition = IterationPositionXPathExtensionFunction
-                            .setIterationPosition(iterationPosition);
-                    final int oldIterationSize = IterationSizeXPathExtensionFunction.setIterationSize(iterationSize);
-                    try
-                    {
-                        final EnvironmentPort iterationPort = EnvironmentPort.newEnvironmentPort(
-                                newIterationPort(step, inputNode), environment);
-                        Environment iterationEnvironment = environment.newChildStepEnvironment();
-                        iterationEnvironment = iterationEnvironment.addPorts(iterationPort);
-                        iterationEnvironment = iterationEnvironment.setDefaultReadablePort(iterationPort);
-                        iterationEnvironment = iterationEnvironment.setXPathContextPort(iterationPort);
-                        iterationEnvironment = iterationEnvironment.setupVariables(step);
-                        iterationEnvironment.setCurrentEnvironment();
-                        Environment resultEnvironment = runSteps(step.getSubpipeline(), iterationEnvironment);
-                        resultEnvironment = stepEnvironment.setupOutputPorts(step, resultEnvironment);
-                        Steps.writeLogs(step, resultEnvironment);
-                        return resultEnvironment;
-                    }
-                    finally
-                    {
-                        IterationPositionXPathExtensionFunction.setIterationPosition(oldIterationPosition);
-                        IterationSizeXPathExtensionFunction.setIterationSize(oldIterationSize);
-                    }
+                    return runIteration(step, environment, stepEnvironment, inputNode, iterationPosition,
+                            iterationSize);
                 }
             });
         }
 
         LOG.trace("  {}: submitting {size} iteration tasks...", step, tasks);
-        final Iterable<Future<Environment>> futureResultEnvironments = TcFutures.submit(environment
-                .getPipelineContext().getExecutor(), tasks);
+        // submit all the iterations before waiting for any of them
+        final Iterable<Future<Environment>> futureResultEnvironments = ImmutableList.copyOf(TcFutures.submit(
+                getIterationExecutor(step, environment), tasks));
         final Iterable<Environment> iterationResultEnvironments;
         try
         {
@@ -164,4 +228,173 @@ public final class ForEachStepProcessor extends AbstractCompoundStepProcessor im
 
         return resultEnvironment;
     }
+
+    /**
+     * Runs the iterations one after the other on a separate thread, streaming
+     * the documents from each iteration to the output ports as soon as the
+     * iteration is done. Unless the subpipeline may use
+     * {@code p:iteration-size()}, iterations start before the whole
+     * {@code iteration-source} sequence is available.
+     */
+    private Environment runStreaming(final Step step, final Environment environment,
+            final Environment stepEnvironment, final int capacity)
+    {
+        final Iterable<XdmNode> sourceNodes = stepEnvironment.readNodes(step
+                .getPortReference(XProcPorts.ITERATION_SOURCE));
+        final Iterable<XdmNode> inputNodes;
+        final int iterationSize;
+        if (usesIterationSize(step))
+        {
+            inputNodes = ImmutableList.copyOf(sourceNodes);
+            iterationSize = Iterables.size(inputNodes);
+        }
+        else
+        {
+            inputNodes = sourceNodes;
+            // never read by the subpipeline
+            iterationSize = 0;
+        }
+
+        final Map<Port, DocumentStream> streams = Maps.newLinkedHashMap();
+        Environment resultEnvironment = stepEnvironment;
+        for (final Port outputPort : step.getOutputPorts())
+        {
+            final DocumentStream stream = DocumentStream.newStream(outputPort.getPortReference(), capacity);
+            streams.put(outputPort, stream);
+            resultEnvironment = resultEnvironment.addPorts(EnvironmentPort.newEnvironmentPort(
+                    Port.newOutputPort(step.getName(), outputPort.getPortName(), outputPort.getLocation()),
+                    stepEnvironment));
+            resultEnvironment = resultEnvironment.writeStream(outputPort.getPortReference(), stream);
+        }
+
+        LOG.trace("  {}: streaming iterations to {}", step, streams.values());
+        final Future<?> producer = PRODUCERS.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Environment.setCurrentNamespaceContext(step.getNode());
+                try
+                {
+                    int iterationPosition = 0;
+                    for (final XdmNode inputNode : inputNodes)
+                    {
+                        iterationPosition++;
+                        final Environment iterationResultEnvironment = runIteration(step, environment,
+                                stepEnvironment, inputNode, iterationPosition, iterationSize);
+                        for (final Map.Entry<Port, DocumentStream> stream : streams.entrySet())
+                        {
+                            for (final XdmNode node : iterationResultEnvironment.readNodes(stream.getKey()
+                                    .getPortReference()))
+                            {
+                                stream.getValue().write(node);
+                            }
+                        }
+                    }
+
+                    for (final DocumentStream stream : streams.values())
+                    {
+                        stream.close();
+                    }
+                }
+                catch (final RuntimeException e)
+                {
+                    for (final DocumentStream stream : streams.values())
+                    {
+                        stream.fail(e);
+                    }
+                    throw e;
+                }
+                catch (final Error e)
+                {
+                    for (final DocumentStream stream : streams.values())
+                    {
+                        stream.fail(e);
+                    }
+                    throw e;
+                }
+            }
+        });
+        for (final DocumentStream stream : streams.values())
+        {
+            stream.setProducer(producer);
+        }
+
+        resultEnvironment = resultEnvironment.setPrimaryOutputPortAsDefaultReadablePort(step, stepEnvironment);
+        resultEnvironment = resultEnvironment.setDefaultReadablePortAsXPathContextPort();
+
+        return resultEnvironment;
+    }
+
+    /**
+     * Iterations issuing HTTP requests may run on a dedicated executor so that
+     * the requests are in flight at the same time.
+     */
+    private static TaskExecutor getIterationExecutor(final Step step, final Environment environment)
+    {
+        final TaskExecutor requestExecutor = environment.getPipelineContext().getHttpConnectionPool()
+                .getRequestExecutor();
+        if (requestExecutor != null && issuesHttpRequests(step))
+        {
+            LOG.trace("  {}: pipelining HTTP requests", step);
+            return requestExecutor;
+        }
+
+        return environment.getPipelineContext().getExecutor();
+    }
+
+    private static boolean issuesHttpRequests(final Step step)
+    {
+        final Boolean cached = ISSUES_HTTP_REQUESTS.get(step.getNode());
+        if (cached != null)
+        {
+            return cached;
+        }
+
+        final boolean issuesHttpRequests = Iterables.any(step.getAllSteps(),
+                StepPredicates.hasType(XProcSteps.HTTP_REQUEST));
+        ISSUES_HTTP_REQUESTS.put(step.getNode(), issuesHttpRequests);
+        return issuesHttpRequests;
+    }
+
+    /**
+     * Tells whether the subpipeline may call {@code p:iteration-size()}, that
+     * is whether one of its steps is not self-contained or one of the XPath
+     * expressions of the pipeline calls the function.
+     */
+    private static boolean usesIterationSize(final Step step)
+    {
+        final Boolean cached = USES_ITERATION_SIZE.get(step.getNode());
+        if (cached != null)
+        {
+            return cached;
+        }
+
+        final boolean usesIterationSize = !Iterables.all(step.getAllSteps(),
+                Predicates.compose(Predicates.in(SELF_CONTAINED_STEPS), StepFunctions.getType()))
+                || callsIterationSize(step.getNode());
+        USES_ITERATION_SIZE.put(step.getNode(), usesIterationSize);
+        return usesIterationSize;
+    }
+
+    static boolean callsIterationSize(final XdmNode node)
+    {
+        for (final XdmItem element : SaxonAxis.axis(node, Axis.DESCENDANT_OR_SELF))
+        {
+            if (((XdmNode) element).getNodeKind() != XdmNodeKind.ELEMENT)
+            {
+                continue;
+            }
+
+            for (final XdmNode attribute : SaxonAxis.attributes((XdmNode) element))
+            {
+                if (ITERATION_SIZE_CALL.matcher(attribute.getStringValue()).find())
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.ref.WeakReference;
+import java.net.ProxySelector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.concurrent.TaskExecutor;
+import org.trancecode.concurrent.TaskExecutors;
+import org.trancecode.logging.Logger;
+
+/**
+ * A pool of keep-alive HTTP connections shared by all the
+ * {@code p:http-request} steps of the pipelines using the same configuration.
+ * <p>
+ * Connections are reused across requests to the same route, up to a maximum
+ * number of connections per route and in total. Connections that stay idle
+ * for too long are closed in the background.
+ * <p>
+ * Optionally, the iterations of a {@code p:for-each} issuing HTTP requests
+ * are run concurrently on a dedicated executor, so that several independent
+ * requests are in flight at the same time on the pooled connections.
+ * 
+ * @author Herve Quiroz
+ */
+public final class HttpConnectionPool
+{
+    public static final int DEFAULT_MAXIMUM_CONNECTIONS = 50;
+    public static final int DEFAULT_MAXIMUM_CONNECTIONS_PER_ROUTE = 10;
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 30000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 0;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static final Logger LOG = Logger.getLogger(HttpConnectionPool.class);
+    private static final ScheduledExecutorService EVICTOR = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("tubular-http-evictor-%d").build());
+
+    private final int maximumConnections;
+    private final int maximumConnectionsPerRoute;
+    private final int connectionTimeout;
+    private final int socketTimeout;
+    private final int idleTimeout;
+    private final int pipelinedRequests;
+    private DefaultHttpClient httpClient;
+    private ExecutorService requestWorkers;
+    private TaskExecutor requestExecutor;
+    private IdleConnectionEvictor evictor;
+
+    /**
+     * Closes the idle connections of a connection manager, until the
+     * connection manager is shut down or garbage collected.
+     */
+    private static final class IdleConnectionEvictor implements Runnable
+    {
+        private final WeakReference<ClientConnectionManager> connectionManager;
+        private final long idleTimeout;
+        private volatile ScheduledFuture<?> future;
+
+        public IdleConnectionEvictor(final ClientConnectionManager connectionManager, final long idleTimeout)
+        {
+            this.connectionManager = new WeakReference<ClientConnectionManager>(connectionManager);
+            this.idleTimeout = idleTimeout;
+        }
+
+        public void start()
+        {
+            final long period = Math.max(idleTimeout / 2, 1);
+            future = EVICTOR.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        public void stop()
+        {
+            if (future != null)
+            {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            final ClientConnectionManager manager = connectionManager.get();
+            if (manager == null)
+            {
+                stop();
+                return;
+            }
+
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public HttpConnectionPool()
+    {
+        this(DEFAULT_MAXIMUM_CONNECTIONS, DEFAULT_MAXIMUM_CONNECTIONS_PER_ROUTE, DEFAULT_CONNECTION_TIMEOUT,
+                DEFAULT_SOCKET_TIMEOUT, DEFAULT_IDLE_TIMEOUT, 0);
+    }
+
+    /**
+     * @param maximumConnections
+     *            the maximum number of open connections.
+     * @param maximumConnectionsPerRoute
+     *            the maximum number of open connections to the same route.
+     * @param connectionTimeout
+     *            the timeout in milliseconds for establishing a connection and
+     *            for waiting for a connection from the pool, or {@code 0} to
+     *            wait indefinitely.
+     * @param socketTimeout
+     *            the timeout in milliseconds when waiting for data, or
+     *            {@code 0} to wait indefinitely.
+     * @param idleTimeout
+     *            the time in milliseconds after which idle connections are
+     *            closed, or {@code 0} to keep them open.
+     * @param pipelinedRequests
+     *            the number of {@code p:for-each} iterations issuing HTTP
+     *            requests that may run concurrently, or {@code 0} to run them
+     *            on the pipeline executor.
+     */
+    public HttpConnectionPool(final int maximumConnections, final int maximumConnectionsPerRoute,
+            final int connectionTimeout, final int socketTimeout, final int idleTimeout, final int pipelinedRequests)
+    {
+        Preconditions.checkArgument(maximumConnections > 0, "maximumConnections = %s", maximumConnections);
+        Preconditions.checkArgument(maximumConnectionsPerRoute > 0, "maximumConnectionsPerRoute = %s",
+                maximumConnectionsPerRoute);
+        Preconditions.checkArgument(connectionTimeout >= 0, "connectionTimeout = %s", connectionTimeout);
+        Preconditions.checkArgument(socketTimeout >= 0, "socketTimeout = %s", socketTimeout);
+        Preconditions.checkArgument(idleTimeout >= 0, "idleTimeout = %s", idleTimeout);
+        Preconditions.checkArgument(pipelinedRequests >= 0, "pipelinedRequests = %s", pipelinedRequests);
+        this.maximumConnections = maximumConnections;
+        this.maximumConnectionsPerRoute = maximumConnectionsPerRoute;
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+        this.idleTimeout = idleTimeout;
+        this.pipelinedRequests = pipelinedRequests;
+    }
+
+    private DefaultHttpClient newHttpClient()
+    {
+        LOG.trace("{@method} {}", this);
+        final SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+        final ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager(schemeRegistry);
+        connectionManager.setMaxTotal(maximumConnections);
+        connectionManager.setDefaultMaxPerRoute(maximumConnectionsPerRoute);
+
+        final DefaultHttpClient client = new DefaultHttpClient(connectionManager);
+        HttpConnectionParams.setConnectionTimeout(client.getParams(), connectionTimeout);
+        HttpConnectionParams.setSoTimeout(client.getParams(), socketTimeout);
+        HttpClientParams.setConnectionManagerTimeout(client.getParams(), connectionTimeout);
+        client.setRoutePlanner(new ProxySelectorRoutePlanner(schemeRegistry, ProxySelector.getDefault()));
+
+        if (idleTimeout > 0)
+        {
+            evictor = new IdleConnectionEvictor(connectionManager, idleTimeout);
+            evictor.start();
+        }
+
+        return client;
+    }
+
+    /**
+     * Returns the shared HTTP client. Per-request state such as credentials
+     * must be passed with the {@link org.apache.http.protocol.HttpContext} of
+     * each request rather than set on the client.
+     * 
+     * @see #newHttpContext()
+     */
+    public synchronized HttpClient getHttpClient()
+    {
+        if (httpClient == null)
+        {
+            httpClient = newHttpClient();
+        }
+
+        return httpClient;
+    }
+
+    /**
+     * Returns a new context for a request issued with the shared client. The
+     * context has its own cookie store, so that the cookies received by a
+     * request are not sent with the requests of other steps.
+     */
+    public BasicHttpContext newHttpContext()
+    {
+        final BasicHttpContext context = new BasicHttpContext();
+        context.setAttribute(ClientContext.COOKIE_STORE, new BasicCookieStore());
+        return context;
+    }
+
+    /**
+     * Returns the executor on which the iterations of a {@code p:for-each}
+     * issuing HTTP requests should run, or {@code null} if they should run on
+     * the pipeline executor.
+     */
+    @ReturnsNullable
+    public synchronized TaskExecutor getRequestExecutor()
+    {
+        if (pipelinedRequests == 0)
+        {
+            return null;
+        }
+
+        if (requestExecutor == null)
+        {
+            requestWorkers = Executors.newFixedThreadPool(pipelinedRequests, new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("tubular-http-request-%d").build());
+            requestExecutor = TaskExecutors.workStealingExecutor(requestWorkers);
+        }
+
+        return requestExecutor;
+    }
+
+    /**
+     * Closes all the connections and stops the threads of the pool. The pool
+     * must not be used afterwards.
+     * 
+     * @see org.trancecode.xproc.PipelineConfiguration#shutdown()
+     */
+    public synchronized void shutdown()
+    {
+        if (evictor != null)
+        {
+            evictor.stop();
+            evictor = null;
+        }
+
+        if (httpClient != null)
+        {
+            httpClient.getConnectionManager().shutdown();
+            httpClient = null;
+        }
+
+        if (requestWorkers != null)
+        {
+            requestWorkers.shutdown();
+            requestWorkers = null;
+            requestExecutor = null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[connections = %s ; per route = %s ; timeouts = %s/%s/%s ; pipelined requests = %s]",
+                getClass().getSimpleName(), maximumConnections, maximumConnectionsPerRoute, connectionTimeout,
+                socketTimeout, idleTimeout, pipelinedRequests);
+    }
+}
@@ -23,7 +23,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.Lists;
 import java.io.IOException;
-import java.net.ProxySelector;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
@@ -37,14 +36,8 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.params.AuthPolicy;
 import org.apache.http.client.protocol.ClientContext;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.protocol.BasicHttpContext;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.saxon.SaxonAxis;
@@ -106,8 +99,9 @@ public final class HttpRequestStepProcessor extends AbstractStepProcessor
             throw XProcExceptions.xd0012(input.getLocation(), uri.toASCIIString());
         }
 
-        final BasicHttpContext localContext = new BasicHttpContext();
-        final HttpClient httpClient = prepareHttpClient(xProcRequest, localContext);
+        final HttpConnectionPool httpConnectionPool = input.getPipelineContext().getHttpConnectionPool();
+        final BasicHttpContext localContext = prepareHttpContext(httpConnectionPool, xProcRequest);
+        final HttpClient httpClient = httpConnectionPool.getHttpClient();
         try
         {
             final Processor processor = input.getPipelineContext().getProcessor();
@@ -129,32 +123,26 @@ public final class HttpRequestStepProcessor extends AbstractStepProcessor
             // TODO
             e.printStackTrace();
         }
-        finally
-        {
-            httpClient.getConnectionManager().shutdown();
-        }
     }
 
-    private HttpClient prepareHttpClient(final XProcHttpRequest xProcRequest, final BasicHttpContext localContext)
+    /**
+     * The HTTP client is shared, so the cookies and the credentials are set on
+     * the request and on its context rather than on the client.
+     */
+    private BasicHttpContext prepareHttpContext(final HttpConnectionPool httpConnectionPool,
+            final XProcHttpRequest xProcRequest)
     {
-        final SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
-        final ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager(schemeRegistry);
-        final DefaultHttpClient httpClient = new DefaultHttpClient(connManager);
-        final ProxySelectorRoutePlanner routePlanner = new ProxySelectorRoutePlanner(httpClient.getConnectionManager()
-                .getSchemeRegistry(), ProxySelector.getDefault());
-        httpClient.setRoutePlanner(routePlanner);
-
+        final BasicHttpContext localContext = httpConnectionPool.newHttpContext();
         if (xProcRequest.getCredentials() != null)
         {
             final List<String> authPref = Lists.newArrayList(AuthPolicy.BASIC, AuthPolicy.DIGEST);
-            httpClient.getParams().setParameter(AuthPNames.PROXY_AUTH_PREF, authPref);
-            httpClient.setCredentialsProvider(xProcRequest.getCredentials());
+            xProcRequest.getHttpRequest().getParams().setParameter(AuthPNames.PROXY_AUTH_PREF, authPref);
+            localContext.setAttribute(ClientContext.CREDS_PROVIDER, xProcRequest.getCredentials());
             final AuthCache authCache = new BasicAuthCache();
             final BasicScheme basicAuth = new BasicScheme();
             authCache.put(xProcRequest.getHttpHost(), basicAuth);
             localContext.setAttribute(ClientContext.AUTH_CACHE, authCache);
         }
-        return httpClient;
+        return localContext;
     }
 }
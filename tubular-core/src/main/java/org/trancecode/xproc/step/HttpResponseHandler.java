@@ -19,10 +19,12 @@
  */
 package org.trancecode.xproc.step;
 
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
-import java.util.List;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.ParseException;
 import javax.xml.transform.stream.StreamSource;
@@ -41,13 +43,16 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.util.EntityUtils;
 import org.trancecode.api.Nullable;
-import org.trancecode.http.BodypartResponseParser;
+import org.trancecode.http.MultipartStream;
 import org.trancecode.xml.saxon.SaxonBuilder;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.XProcXmlModel;
 
 class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
 {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String DEFAULT_PART_CONTENT_TYPE = "text/plain";
+
     private final boolean detailed;
     private final boolean statusOnly;
     private final Processor processor;
@@ -83,8 +88,7 @@ class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
         {
             contentMimeType = verifyContentType(contentMimeType, overrideContentType);
         }
-        final BodypartResponseParser parser = new BodypartResponseParser(entity.getContent(), null,
-                httpResponse.getParams(), contentType, contentCharset);
+        final InputStream content = entity.getContent();
 
         if (!detailed)
         {
@@ -92,12 +96,12 @@ class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
             {
                 if ("multipart".equals(contentMimeType.getPrimaryType()))
                 {
-                    response.setNodes(constructMultipart(contentMimeType, contentType, parser));
+                    response.setNodes(constructMultipart(contentMimeType, contentType, content, contentCharset));
                 }
                 else
                 {
-                    final BodypartResponseParser.BodypartEntity part = parser.parseBodypart(false);
-                    final Iterable<XdmNode> body = constructBody(contentMimeType, contentType, part);
+                    final Iterable<XdmNode> body = constructBody(contentMimeType, contentType, content,
+                            contentCharset);
                     if (body != null)
                     {
                         response.setNodes(body);
@@ -124,12 +128,12 @@ class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
                 }
                 if ("multipart".equals(contentMimeType.getPrimaryType()))
                 {
-                    builder.nodes(constructMultipart(contentMimeType, contentType, parser));
+                    builder.nodes(constructMultipart(contentMimeType, contentType, content, contentCharset));
                 }
                 else
                 {
-                    final BodypartResponseParser.BodypartEntity part = parser.parseBodypart(false);
-                    final Iterable<XdmNode> body = constructBody(contentMimeType, contentType, part);
+                    final Iterable<XdmNode> body = constructBody(contentMimeType, contentType, content,
+                            contentCharset);
                     if (body != null)
                     {
                         builder.nodes(body);
@@ -174,7 +178,7 @@ class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
     }
 
     private Iterable<XdmNode> constructBody(final ContentType contentMimeType, final String contentType,
-            final BodypartResponseParser.BodypartEntity part) throws IOException
+            final InputStream content, final String defaultCharset) throws IOException
     {
         final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
         builder.startDocument();
@@ -184,8 +188,7 @@ class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
         {
             try
             {
-                final XdmNode node = processor.newDocumentBuilder().build(
-                        new StreamSource(part.getEntity().getContent()));
+                final XdmNode node = processor.newDocumentBuilder().build(new StreamSource(content));
                 if (!detailed)
                 {
                     return ImmutableList.of(node);
@@ -204,48 +207,94 @@ class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
         {
             if ("text".equals(contentMimeType.getPrimaryType()))
             {
+                final String charset = contentMimeType.getParameter("charset");
                 builder.startContent();
-                builder.text(IOUtils.toString(part.getEntity().getContent()));
+                writeText(new InputStreamReader(content, charset == null ? defaultCharset : charset), builder);
             }
             else
             {
                 builder.attribute(XProcXmlModel.Attributes.ENCODING, Steps.ENCODING_BASE64);
                 builder.startContent();
-                final String b64 = Base64.encodeBytes(IOUtils.toByteArray(part.getEntity().getContent()),
-                        Base64.DO_BREAK_LINES);
-                final Iterable<String> splitter = Splitter.on("\r\n").split(b64);
-                for (final String split : splitter)
-                {
-                    builder.text(split);
-                    builder.text("\n");
-                }
+                final OutputStream base64 = new Base64.OutputStream(new TextOutputStream(builder), Base64.ENCODE
+                        | Base64.DO_BREAK_LINES);
+                IOUtils.copy(content, base64);
+                base64.close();
+                builder.text("\n");
             }
         }
         builder.endDocument();
         return ImmutableList.of(builder.getNode());
     }
 
+    /**
+     * Copies the text to the builder chunk by chunk, with line breaks
+     * normalized to LF and the last line break removed.
+     */
+    private static void writeText(final Reader reader, final SaxonBuilder builder) throws IOException
+    {
+        final char[] buffer = new char[BUFFER_SIZE];
+        final StringBuilder chunk = new StringBuilder(BUFFER_SIZE);
+        boolean pendingCarriageReturn = false;
+        boolean pendingLineFeed = false;
+        for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer))
+        {
+            for (int i = 0; i < read; i++)
+            {
+                final char c = buffer[i];
+                if (pendingCarriageReturn && c != '\n')
+                {
+                    // lone CR
+                    if (pendingLineFeed)
+                    {
+                        chunk.append('\n');
+                        pendingLineFeed = false;
+                    }
+                    chunk.append('\r');
+                }
+                pendingCarriageReturn = c == '\r';
+                if (pendingCarriageReturn)
+                {
+                    continue;
+                }
+                if (pendingLineFeed)
+                {
+                    chunk.append('\n');
+                }
+                pendingLineFeed = c == '\n';
+                if (!pendingLineFeed)
+                {
+                    chunk.append(c);
+                }
+            }
+            if (chunk.length() > 0)
+            {
+                builder.text(chunk.toString());
+                chunk.setLength(0);
+            }
+        }
+    }
+
     private Iterable<XdmNode> constructMultipart(final ContentType contentMimeType, final String contentType,
-            final BodypartResponseParser parser) throws IOException
+            final InputStream content, final String defaultCharset) throws IOException
     {
         final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
         builder.startDocument();
         builder.startElement(XProcXmlModel.Elements.MULTIPART);
         final String boundary = contentMimeType.getParameter("boundary");
         builder.attribute(XProcXmlModel.Attributes.BOUNDARY, boundary);
-        parser.setBoundary(boundary);
         builder.attribute(XProcXmlModel.Attributes.CONTENT_TYPE, contentType);
-        final List<BodypartResponseParser.BodypartEntity> parts = parser.parseMultipart();
-        for (final BodypartResponseParser.BodypartEntity part : parts)
+        final MultipartStream multipart = new MultipartStream(content, boundary, BUFFER_SIZE);
+        for (MultipartStream.Part part = multipart.nextPart(); part != null; part = multipart.nextPart())
         {
-            final String mimeType = part.getHeaderGroup().getFirstHeader(HttpHeaders.CONTENT_TYPE).getValue();
+            final String partContentType = part.getHeaderValue(HttpHeaders.CONTENT_TYPE);
+            final String mimeType = partContentType == null ? DEFAULT_PART_CONTENT_TYPE : partContentType;
             final ContentType bodyCt = Steps.getContentType(mimeType, null);
             if (bodyCt.getSubType().contains("xml"))
             {
                 builder.startElement(XProcXmlModel.Elements.BODY);
                 builder.attribute(XProcXmlModel.Attributes.CONTENT_TYPE, mimeType);
             }
-            final Iterable<XdmNode> body = constructBody(bodyCt, mimeType, part);
+            final Iterable<XdmNode> body = constructBody(bodyCt, mimeType, part.getContent(), defaultCharset);
             if (body != null)
             {
                 builder.nodes(body);
@@ -259,6 +308,47 @@ class HttpResponseHandler implements ResponseHandler<XProcHttpResponse>
         return ImmutableList.of(builder.getNode());
     }
 
+    /**
+     * Forwards the US-ASCII output of the Base64 encoder to the builder as text
+     * nodes.
+     */
+    private static final class TextOutputStream extends OutputStream
+    {
+        private final SaxonBuilder builder;
+        private final StringBuilder chunk = new StringBuilder(BUFFER_SIZE);
+
+        public TextOutputStream(final SaxonBuilder builder)
+        {
+            this.builder = builder;
+        }
+
+        @Override
+        public void write(final int b)
+        {
+            chunk.append((char) (b & 0xff));
+            if (chunk.length() >= BUFFER_SIZE)
+            {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            if (chunk.length() > 0)
+            {
+                builder.text(chunk.toString());
+                chunk.setLength(0);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            flush();
+        }
+    }
+
     private static String constructContentType(final Header contentType)
     {
         final StringBuilder builder = new StringBuilder();
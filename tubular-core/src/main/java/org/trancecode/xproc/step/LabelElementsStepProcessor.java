@@ -20,18 +20,23 @@
 package org.trancecode.xproc.step;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import java.util.EnumSet;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
+import org.trancecode.api.ReturnsNullable;
 import org.trancecode.xml.saxon.AbstractSaxonProcessorDelegate;
 import org.trancecode.xml.saxon.CopyingSaxonProcessorDelegate;
 import org.trancecode.xml.saxon.SaxonAxis;
@@ -57,6 +62,10 @@ public final class LabelElementsStepProcessor extends AbstractStepProcessor
 {
     private static final String ATTRIBUTE_DEFAULT_VALUE = "xml:id";
     private static final QName INDEX = new QName("p", XProcXmlModel.xprocNamespace().uri(), "index");
+    private static final Map<String, String> LABEL_NAMESPACES = ImmutableMap.of(XProcXmlModel.xprocNamespace()
+            .prefix(), XProcXmlModel.xprocNamespace().uri());
+    private static final Pattern LITERAL_PREFIX_LABEL = Pattern
+            .compile("\\s*concat\\(\\s*(?:\"((?:[^\"]|\"\")*)\"|'((?:[^']|'')*)')\\s*,\\s*\\$p:index\\s*\\)\\s*");
 
     @Override
     public QName getStepType()
@@ -79,22 +88,38 @@ public final class LabelElementsStepProcessor extends AbstractStepProcessor
         final String match = input.getOptionValue(XProcOptions.MATCH, "*");
         final boolean replaceOption = Boolean.parseBoolean(input.getOptionValue(XProcOptions.REPLACE, "true"));
 
+        final String labelPrefix = getLabelPrefix(labelOption);
+        final XPathSelector labelSelector;
+        if (labelPrefix == null)
+        {
+            labelSelector = compileLabel(input, labelOption);
+        }
+        else
+        {
+            labelSelector = null;
+        }
+
         final SaxonProcessorDelegate labelElementsDelegate = new AbstractSaxonProcessorDelegate()
         {
             private final AtomicInteger countElement = new AtomicInteger(1);
 
             private String getNewLabel(final XdmNode element)
             {
+                if (labelPrefix != null)
+                {
+                    return labelPrefix + countElement.get();
+                }
+
+                if (labelSelector == null)
+                {
+                    return "";
+                }
+
                 try
                 {
-                    final XPathCompiler xPathCompiler = element.getProcessor().newXPathCompiler();
-                    xPathCompiler.declareNamespace(XProcXmlModel.xprocNamespace().prefix(), XProcXmlModel
-                            .xprocNamespace().uri());
-                    xPathCompiler.declareVariable(INDEX);
-                    final XPathSelector xPathSelector = xPathCompiler.compile(labelOption).load();
-                    xPathSelector.setVariable(INDEX, new XdmAtomicValue(countElement.get()));
-                    xPathSelector.setContextItem(element);
-                    final XdmItem item = xPathSelector.evaluateSingle();
+                    labelSelector.setVariable(INDEX, new XdmAtomicValue(countElement.get()));
+                    labelSelector.setContextItem(element);
+                    final XdmItem item = labelSelector.evaluateSingle();
                     return (item == null) ? "" : item.getStringValue();
                 }
                 catch (final SaxonApiException sae)
@@ -145,4 +170,46 @@ public final class LabelElementsStepProcessor extends AbstractStepProcessor
         output.writeNodes(XProcPorts.RESULT, result);
 
     }
+
+    /**
+     * Returns the literal prefix of a label of the form
+     * {@code concat('prefix', $p:index)}, which needs no XPath evaluation, or
+     * {@code null} for any other label.
+     */
+    @ReturnsNullable
+    static String getLabelPrefix(final String label)
+    {
+        final Matcher matcher = LITERAL_PREFIX_LABEL.matcher(label);
+        if (!matcher.matches())
+        {
+            return null;
+        }
+
+        if (matcher.group(1) != null)
+        {
+            return matcher.group(1).replace("\"\"", "\"");
+        }
+
+        return matcher.group(2).replace("''", "'");
+    }
+
+    /**
+     * Compiles the label expression once for all the elements of the
+     * document, reusing the expression compiled by a previous execution if
+     * any.
+     */
+    @ReturnsNullable
+    private static XPathSelector compileLabel(final StepInput input, final String label)
+    {
+        try
+        {
+            return input.getPipelineContext().getXPathCache()
+                    .compile(input.getPipelineContext().getProcessor(), label, ImmutableSet.of(INDEX),
+                            LABEL_NAMESPACES, null).load();
+        }
+        catch (final SaxonApiException e)
+        {
+            return null;
+        }
+    }
 }
@@ -25,8 +25,10 @@ import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
 import org.apache.commons.lang.StringUtils;
+import org.trancecode.io.Uris;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.Jaxp;
+import org.trancecode.xproc.DocumentCache;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
@@ -61,6 +63,20 @@ public final class LoadStepProcessor extends AbstractStepProcessor
         final boolean validate = Boolean.parseBoolean(input.getOptionValue(XProcOptions.DTD_VALIDATE));
         LOG.trace("dtd-validate = {}", validate);
 
+        // DTD validation errors are only raised while parsing
+        final DocumentCache documentCache = input.getPipelineContext().getDocumentCache();
+        final URI resolvedUri = Uris.resolve(href, input.getBaseUri().toString());
+        input.getPipelineContext().getStoreWriter().await(resolvedUri);
+        if (!validate)
+        {
+            final XdmNode cachedDocument = documentCache.getIfPresent(resolvedUri);
+            if (cachedDocument != null)
+            {
+                output.writeNodes(XProcPorts.RESULT, cachedDocument);
+                return;
+            }
+        }
+
         final XdmNode document;
         try
         {
@@ -71,6 +87,10 @@ public final class LoadStepProcessor extends AbstractStepProcessor
                 final DocumentBuilder documentBuilder = input.getPipelineContext().getProcessor().newDocumentBuilder();
                 documentBuilder.setDTDValidation(validate);
                 document = documentBuilder.build(source);
+                if (!validate)
+                {
+                    documentCache.put(resolvedUri, document);
+                }
             }
             finally
             {
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.Serializer.Property;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.api.Nullable;
+import org.trancecode.io.OutputResolver;
+import org.trancecode.io.Uris;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.XmlException;
+import org.trancecode.xproc.Episode;
+
+/**
+ * Writes the documents of the ports logged with {@code p:log}.
+ * <p>
+ * Each {@code href} is opened once per pipeline run, on the first document
+ * logged to it, and the following documents are appended to it through the
+ * same buffered serializer. The buffers are flushed in the background and the
+ * files are closed at the end of the run by {@link #close(Episode)}. Documents
+ * logged without {@code href} are written to the standard error stream.
+ * 
+ * @author Herve Quiroz
+ */
+public final class LogWriter
+{
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_FLUSH_PERIOD = 1000;
+
+    private static final Logger LOG = Logger.getLogger(LogWriter.class);
+    private static final ScheduledExecutorService FLUSHER = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("tubular-log-flusher-%d").build());
+    private static final String STANDARD_ERROR = "";
+
+    private final int bufferSize;
+    private final long flushPeriod;
+    private final Map<Episode, ConcurrentMap<String, Sink>> sinksByEpisode = new MapMaker().weakKeys().makeMap();
+
+    private static final class Sink implements Runnable
+    {
+        private final String name;
+        private final OutputStream outputStream;
+        private final Serializer serializer;
+        private final boolean closeOutputStream;
+        private ScheduledFuture<?> flushFuture;
+        private boolean dirty;
+        private boolean closed;
+
+        public Sink(final String name, final OutputStream outputStream, final int bufferSize,
+                final boolean closeOutputStream)
+        {
+            this.name = name;
+            this.outputStream = new BufferedOutputStream(outputStream, bufferSize);
+            this.closeOutputStream = closeOutputStream;
+            serializer = new Serializer();
+            serializer.setOutputStream(this.outputStream);
+            serializer.setOutputProperty(Property.OMIT_XML_DECLARATION, "yes");
+        }
+
+        public synchronized void start(final long flushPeriod)
+        {
+            final FlushTask flushTask = new FlushTask(this);
+            flushFuture = FLUSHER.scheduleWithFixedDelay(flushTask, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
+            flushTask.future = flushFuture;
+        }
+
+        public synchronized void write(final XdmNode node, final Processor processor) throws SaxonApiException,
+                IOException
+        {
+            processor.writeXdmValue(node, serializer);
+            outputStream.write('\n');
+            dirty = true;
+        }
+
+        @Override
+        public synchronized void run()
+        {
+            if (dirty && !closed)
+            {
+                try
+                {
+                    outputStream.flush();
+                    dirty = false;
+                }
+                catch (final IOException e)
+                {
+                    LOG.warn("cannot flush log {}: {}", name, e.getMessage());
+                }
+            }
+        }
+
+        public synchronized void close()
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            flushFuture.cancel(false);
+            closed = true;
+            try
+            {
+                outputStream.flush();
+            }
+            catch (final IOException e)
+            {
+                LOG.warn("cannot flush log {}: {}", name, e.getMessage());
+            }
+            if (closeOutputStream)
+            {
+                Closeables.closeQuietly(outputStream);
+            }
+        }
+    }
+
+    /**
+     * Periodically flushes a sink. The sink is only weakly referenced so that
+     * the scheduler does not keep the sinks of a run that was not closed, and
+     * the task cancels itself once the sink has been collected.
+     */
+    private static final class FlushTask implements Runnable
+    {
+        private final WeakReference<Sink> sink;
+        private volatile ScheduledFuture<?> future;
+
+        public FlushTask(final Sink sink)
+        {
+            this.sink = new WeakReference<Sink>(sink);
+        }
+
+        @Override
+        public void run()
+        {
+            final Sink currentSink = sink.get();
+            if (currentSink != null)
+            {
+                currentSink.run();
+            }
+            else if (future != null)
+            {
+                future.cancel(false);
+            }
+        }
+    }
+
+    public LogWriter()
+    {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_PERIOD);
+    }
+
+    /**
+     * @param bufferSize
+     *            the size of the buffer of each log, in bytes.
+     * @param flushPeriod
+     *            the delay between background flushes of the buffers, in
+     *            milliseconds.
+     */
+    public LogWriter(final int bufferSize, final long flushPeriod)
+    {
+        this.bufferSize = bufferSize;
+        this.flushPeriod = flushPeriod;
+    }
+
+    /**
+     * Appends a document to the log identified by {@code href} on behalf of
+     * the pipeline run identified by {@code episode}.
+     */
+    public void write(final Episode episode, @Nullable final String href, final URI baseUri, final XdmNode node,
+            final Processor processor, final OutputResolver outputResolver)
+    {
+        final Sink sink = getSink(episode, href, baseUri, outputResolver);
+        try
+        {
+            sink.write(node, processor);
+        }
+        catch (final Exception e)
+        {
+            throw new XmlException(e, "cannot write node to %s", sink.name);
+        }
+    }
+
+    private Sink getSink(final Episode episode, @Nullable final String href, final URI baseUri,
+            final OutputResolver outputResolver)
+    {
+        final ConcurrentMap<String, Sink> sinks;
+        synchronized (sinksByEpisode)
+        {
+            ConcurrentMap<String, Sink> episodeSinks = sinksByEpisode.get(episode);
+            if (episodeSinks == null)
+            {
+                episodeSinks = new MapMaker().makeMap();
+                sinksByEpisode.put(episode, episodeSinks);
+            }
+            sinks = episodeSinks;
+        }
+
+        final String name = href != null ? Uris.resolve(href, baseUri.toString()).toString() : STANDARD_ERROR;
+        final Sink sink = sinks.get(name);
+        if (sink != null)
+        {
+            return sink;
+        }
+
+        synchronized (sinks)
+        {
+            if (!sinks.containsKey(name))
+            {
+                LOG.trace("{@method} open log {}", name);
+                final Sink newSink;
+                if (href != null)
+                {
+                    newSink = new Sink(name, outputResolver.resolveOutputStream(href, baseUri.toString()),
+                            bufferSize, true);
+                }
+                else
+                {
+                    newSink = new Sink("standard error", System.err, bufferSize, false);
+                }
+                newSink.start(flushPeriod);
+                sinks.put(name, newSink);
+            }
+
+            return sinks.get(name);
+        }
+    }
+
+    /**
+     * Flushes and closes the logs opened by the pipeline run identified by
+     * {@code episode}.
+     */
+    public void close(final Episode episode)
+    {
+        final Map<String, Sink> sinks;
+        synchronized (sinksByEpisode)
+        {
+            sinks = sinksByEpisode.remove(episode);
+        }
+
+        if (sinks != null)
+        {
+            for (final Sink sink : sinks.values())
+            {
+                sink.close();
+            }
+        }
+    }
+}
@@ -17,8 +17,9 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.collect.Iterables;
+
 import net.sf.saxon.s9api.QName;
-import net.sf.saxon.s9api.XdmNode;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.port.XProcPorts;
 
@@ -42,8 +43,9 @@ public final class SinkStepProcessor extends AbstractStepProcessor
     @Override
     protected void execute(final StepInput input, final StepOutput output)
     {
-        // Document sequence must be read to be discard
-        final Iterable<XdmNode> nodes = input.readNodes(XProcPorts.SOURCE);
-        LOG.trace("nodes = {}", nodes);
+        // Document sequence must be read to be discarded, which also drains
+        // streamed ports
+        final int count = Iterables.size(input.readNodes(XProcPorts.SOURCE));
+        LOG.trace("{} nodes discarded", count);
     }
 }
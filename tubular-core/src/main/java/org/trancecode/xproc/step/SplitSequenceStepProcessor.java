@@ -22,11 +22,14 @@ package org.trancecode.xproc.step;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
@@ -56,6 +59,7 @@ import org.trancecode.xproc.variable.XProcOptions;
 public final class SplitSequenceStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(SplitSequenceStepProcessor.class);
+    private static final Pattern LAST_FUNCTION_CALL = Pattern.compile("\\blast\\s*\\(");
 
     @Override
     public QName getStepType()
@@ -82,7 +86,7 @@ public final class SplitSequenceStepProcessor extends AbstractStepProcessor
                 return Saxon.asDocumentNode(node, processor).getUnderlyingNode();
             }
         };
-        final List<NodeInfo> docs = ImmutableList.copyOf(Iterables.transform(nodes, eltToDoc));
+        final Iterable<NodeInfo> docs = Iterables.transform(nodes, eltToDoc);
 
         try
         {
@@ -92,11 +96,21 @@ public final class SplitSequenceStepProcessor extends AbstractStepProcessor
                 xpathCompiler.declareNamespace(namespace.getKey(), namespace.getValue());
             }
             final XPathExecutable xpathExecutable = xpathCompiler.compile(test);
-            final NodeListIterator nodeIterator = new NodeListIterator(docs);
+            final SequenceIterator nodeIterator;
+            final boolean streaming = input.getPipelineContext().getStreamingPortCapacity() > 0;
+            if (!streaming || LAST_FUNCTION_CALL.matcher(test).find())
+            {
+                nodeIterator = new NodeListIterator(ImmutableList.copyOf(docs));
+            }
+            else
+            {
+                // documents are tested as soon as they are read from the port
+                nodeIterator = new StreamingNodeIterator(docs.iterator());
+            }
             final AtomicBoolean reached = new AtomicBoolean(false);
-            while (nodeIterator.hasNext())
+            for (Item next = nodeIterator.next(); next != null; next = nodeIterator.next())
             {
-                final NodeInfo doc = (NodeInfo) nodeIterator.next();
+                final NodeInfo doc = (NodeInfo) next;
 
                 final AtomicBoolean pass = new AtomicBoolean(false);
                 final XPathExpression xpathExpression = xpathExecutable.getUnderlyingExpression();
@@ -139,4 +153,67 @@ public final class SplitSequenceStepProcessor extends AbstractStepProcessor
             throw XProcExceptions.xd0023(input.getLocation(), test, sae.getMessage());
         }
     }
+
+    /**
+     * Iterates over the documents without reading them all first, for tests
+     * that do not need the size of the sequence.
+     */
+    private static final class StreamingNodeIterator implements SequenceIterator
+    {
+        private final Iterator<NodeInfo> nodes;
+        private NodeInfo current;
+        private int position;
+
+        public StreamingNodeIterator(final Iterator<NodeInfo> nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Item next()
+        {
+            if (nodes.hasNext())
+            {
+                current = nodes.next();
+                position++;
+            }
+            else
+            {
+                current = null;
+                position = -1;
+            }
+
+            return current;
+        }
+
+        @Override
+        public Item current()
+        {
+            return current;
+        }
+
+        @Override
+        public int position()
+        {
+            return position;
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to do
+        }
+
+        @Override
+        public SequenceIterator getAnother() throws XPathException
+        {
+            throw new XPathException("the sequence of documents can only be read once");
+        }
+
+        @Override
+        public int getProperties()
+        {
+            return 0;
+        }
+    }
 }
@@ -315,6 +315,12 @@ public final class Step extends AbstractHasLocation implements StepContainer
     public Environment run(final Environment environment)
     {
         LOG.trace("{@method} step = {} ; type = {}", name, type);
+        final StepProfiler profiler = environment.getPipelineContext().getProfiler();
+        if (profiler != null)
+        {
+            return profiler.run(this, stepProcessor, environment);
+        }
+
         return stepProcessor.run(this, environment);
     }
 
@@ -648,7 +654,7 @@ public final class Step extends AbstractHasLocation implements StepContainer
     @ReturnsNullable
     private ExternalResources getExternalResources()
     {
-        return stepProcessor.getClass().getAnnotation(ExternalResources.class);
+        return StepProcessors.getStepProcessorClass(stepProcessor).getAnnotation(ExternalResources.class);
     }
 
     protected boolean readsExternalResources()
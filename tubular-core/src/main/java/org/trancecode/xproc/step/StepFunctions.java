@@ -21,6 +21,8 @@ package org.trancecode.xproc.step;
 
 import com.google.common.base.Function;
 
+import net.sf.saxon.s9api.QName;
+
 /**
  * @author Herve Quiroz
  */
@@ -42,6 +44,22 @@ public final class StepFunctions
         }
     }
 
+    public static Function<Step, QName> getType()
+    {
+        return GetTypeFunction.INSTANCE;
+    }
+
+    private static final class GetTypeFunction implements Function<Step, QName>
+    {
+        private static final GetTypeFunction INSTANCE = new GetTypeFunction();
+
+        @Override
+        public QName apply(final Step step)
+        {
+            return step.getType();
+        }
+    }
+
     private StepFunctions()
     {
         // No instantiation
@@ -22,6 +22,8 @@ package org.trancecode.xproc.step;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 
+import net.sf.saxon.s9api.QName;
+
 /**
  * {@link Predicate} implementations related to {@link Step}.
  * 
@@ -34,6 +36,11 @@ public final class StepPredicates
         return Predicates.compose(Predicates.equalTo(name), StepFunctions.getName());
     }
 
+    public static Predicate<Step> hasType(final QName type)
+    {
+        return Predicates.compose(Predicates.equalTo(type), StepFunctions.getType());
+    }
+
     private StepPredicates()
     {
         // No instantiation
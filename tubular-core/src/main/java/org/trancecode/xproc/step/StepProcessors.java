@@ -17,7 +17,10 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.base.Preconditions;
+
 import net.sf.saxon.s9api.QName;
+import org.trancecode.logging.Logger;
 import org.trancecode.xproc.Environment;
 
 /**
@@ -27,6 +30,8 @@ import org.trancecode.xproc.Environment;
  */
 public final class StepProcessors
 {
+    private static final Logger LOG = Logger.getLogger(StepProcessors.class);
+
     public static StepProcessor unsupportedStepProcessor(final QName stepType)
     {
         return new StepProcessor()
@@ -45,6 +50,87 @@ public final class StepProcessors
         };
     }
 
+    /**
+     * Returns a step processor that instantiates the specified class the
+     * first time a step is run.
+     */
+    public static StepProcessor lazyStepProcessor(final QName stepType, final String className)
+    {
+        return new LazyStepProcessor(stepType, className);
+    }
+
+    /**
+     * Returns the class of the step processor, the class of the underlying
+     * processor for lazy step processors.
+     */
+    public static Class<?> getStepProcessorClass(final StepProcessor stepProcessor)
+    {
+        if (stepProcessor instanceof LazyStepProcessor)
+        {
+            return ((LazyStepProcessor) stepProcessor).getStepProcessor().getClass();
+        }
+
+        return stepProcessor.getClass();
+    }
+
+    private static final class LazyStepProcessor implements StepProcessor
+    {
+        private final QName stepType;
+        private final String className;
+        private volatile StepProcessor stepProcessor;
+
+        public LazyStepProcessor(final QName stepType, final String className)
+        {
+            this.stepType = Preconditions.checkNotNull(stepType);
+            this.className = Preconditions.checkNotNull(className);
+        }
+
+        private StepProcessor getStepProcessor()
+        {
+            StepProcessor currentStepProcessor = stepProcessor;
+            if (currentStepProcessor == null)
+            {
+                synchronized (this)
+                {
+                    currentStepProcessor = stepProcessor;
+                    if (currentStepProcessor == null)
+                    {
+                        LOG.trace("{@method} {} -> {}", stepType, className);
+                        try
+                        {
+                            currentStepProcessor = (StepProcessor) Class.forName(className).newInstance();
+                        }
+                        catch (final Exception e)
+                        {
+                            throw new IllegalStateException("cannot instantiate step processor: " + className, e);
+                        }
+                        stepProcessor = currentStepProcessor;
+                    }
+                }
+            }
+
+            return currentStepProcessor;
+        }
+
+        @Override
+        public QName getStepType()
+        {
+            return stepType;
+        }
+
+        @Override
+        public Environment run(final Step step, final Environment environment)
+        {
+            return getStepProcessor().run(step, environment);
+        }
+
+        @Override
+        public String toString()
+        {
+            return className;
+        }
+    }
+
     private StepProcessors()
     {
         // No instantiation
@@ -0,0 +1,620 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.type.Type;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.Location;
+import org.trancecode.xproc.Environment;
+
+/**
+ * Records the resources used by each step execution.
+ * <p>
+ * Executions are aggregated by step path, that is the names of the step and of
+ * its ancestors. For each path the profiler records the number of executions,
+ * the wall-clock time, the CPU time and the bytes allocated by the executing
+ * thread, and the number and size (in nodes) of the documents read and
+ * written. Documents are only counted for atomic steps, as they are read and
+ * written by the step itself, so that the profiler never reads a port the
+ * pipeline would not read. Only documents held in a Saxon tiny tree are sized,
+ * as their size is known without walking them.
+ * <p>
+ * The results can be written as collapsed stacks, to be rendered as a flame
+ * graph, or as an XML or JSON summary.
+ * 
+ * @author Herve Quiroz
+ * @see org.trancecode.xproc.PipelineConfiguration#setProfiler(StepProfiler)
+ */
+public final class StepProfiler
+{
+    private static final Logger LOG = Logger.getLogger(StepProfiler.class);
+    private static final String PATH_SEPARATOR = ";";
+    // not available on every JVM, hence accessed through reflection
+    private static final String EXTENDED_THREAD_MX_BEAN = "com.sun.management.ThreadMXBean";
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported;
+    private final boolean allocatedBytesSupported;
+    private final Method getThreadAllocatedBytes;
+    private final ConcurrentMap<String, StepProfile> profiles = new MapMaker().makeMap();
+    // the steps of a subpipeline are run after their parent, possibly by
+    // another thread
+    private final Map<Step, String> paths = new MapMaker().weakKeys().makeMap();
+    private final ThreadLocal<StepProfile> currentProfile = new ThreadLocal<StepProfile>();
+
+    /**
+     * Aggregated measures of the executions of a step.
+     */
+    public static final class StepProfile
+    {
+        private final String path;
+        private final String name;
+        private final String type;
+        private final Location location;
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong wallTime = new AtomicLong();
+        private final AtomicLong cpuTime = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+        private final AtomicLong inputDocuments = new AtomicLong();
+        private final AtomicLong inputNodes = new AtomicLong();
+        private final AtomicLong outputDocuments = new AtomicLong();
+        private final AtomicLong outputNodes = new AtomicLong();
+
+        private StepProfile(final String path, final Step step)
+        {
+            this.path = path;
+            name = step.getName();
+            type = step.getType().toString();
+            location = step.getLocation();
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        @ReturnsNullable
+        public Location getLocation()
+        {
+            return location;
+        }
+
+        public long getExecutions()
+        {
+            return executions.get();
+        }
+
+        /**
+         * Returns the wall-clock time of all executions, in nanoseconds.
+         */
+        public long getWallTime()
+        {
+            return wallTime.get();
+        }
+
+        /**
+         * Returns the CPU time of all executions in the thread running the
+         * step, in nanoseconds, or {@code -1} if not supported by the JVM.
+         */
+        public long getCpuTime()
+        {
+            return cpuTime.get();
+        }
+
+        /**
+         * Returns the bytes allocated by all executions in the thread running
+         * the step, or {@code -1} if not supported by the JVM.
+         */
+        public long getAllocatedBytes()
+        {
+            return allocatedBytes.get();
+        }
+
+        public long getInputDocuments()
+        {
+            return inputDocuments.get();
+        }
+
+        public long getInputNodes()
+        {
+            return inputNodes.get();
+        }
+
+        public long getOutputDocuments()
+        {
+            return outputDocuments.get();
+        }
+
+        public long getOutputNodes()
+        {
+            return outputNodes.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return path + "[executions=" + executions + " ; wallTime=" + wallTime + "]";
+        }
+    }
+
+    public StepProfiler()
+    {
+        cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+        if (cpuTimeSupported && !threads.isThreadCpuTimeEnabled())
+        {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        getThreadAllocatedBytes = getThreadAllocatedBytesMethod(threads);
+        allocatedBytesSupported = getThreadAllocatedBytes != null;
+        LOG.trace("{@method} cpuTime = {} ; allocatedBytes = {}", cpuTimeSupported, allocatedBytesSupported);
+    }
+
+    /**
+     * Returns the {@code getThreadAllocatedBytes(long)} method of the thread
+     * MX bean after enabling it, or {@code null} if the JVM does not support
+     * allocated memory measurement, in which case only the CPU time is
+     * recorded.
+     */
+    @ReturnsNullable
+    private static Method getThreadAllocatedBytesMethod(final ThreadMXBean threads)
+    {
+        try
+        {
+            final Class<?> extendedThreads = Class.forName(EXTENDED_THREAD_MX_BEAN);
+            if (!extendedThreads.isInstance(threads)
+                    || !(Boolean) extendedThreads.getMethod("isThreadAllocatedMemorySupported").invoke(threads))
+            {
+                return null;
+            }
+            if (!(Boolean) extendedThreads.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads))
+            {
+                extendedThreads.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threads, true);
+            }
+
+            return extendedThreads.getMethod("getThreadAllocatedBytes", long.class);
+        }
+        catch (final Exception e)
+        {
+            LOG.debug("allocated bytes not supported: {}", e);
+            return null;
+        }
+    }
+
+    Environment run(final Step step, final StepProcessor stepProcessor, final Environment environment)
+    {
+        final String path = getPath(step);
+        StepProfile profile = profiles.get(path);
+        if (profile == null)
+        {
+            profiles.putIfAbsent(path, new StepProfile(path, step));
+            profile = profiles.get(path);
+        }
+
+        for (final Step substep : step.getSubpipeline())
+        {
+            paths.put(substep, path + PATH_SEPARATOR + substep.getName());
+        }
+
+        final StepProfile previousProfile = currentProfile.get();
+        currentProfile.set(profile);
+        final long startCpuTime = getCpuTime();
+        final long startAllocatedBytes = getAllocatedBytes();
+        final long startTime = System.nanoTime();
+        try
+        {
+            return stepProcessor.run(step, environment);
+        }
+        finally
+        {
+            final long endTime = System.nanoTime();
+            final long endCpuTime = getCpuTime();
+            final long endAllocatedBytes = getAllocatedBytes();
+            profile.wallTime.addAndGet(endTime - startTime);
+            profile.cpuTime.addAndGet(cpuTimeSupported ? endCpuTime - startCpuTime : 0);
+            profile.allocatedBytes.addAndGet(allocatedBytesSupported ? endAllocatedBytes - startAllocatedBytes : 0);
+            profile.executions.incrementAndGet();
+            currentProfile.set(previousProfile);
+        }
+    }
+
+    private String getPath(final Step step)
+    {
+        final String path = paths.get(step);
+        if (path != null)
+        {
+            return path;
+        }
+
+        return step.getName();
+    }
+
+    private long getCpuTime()
+    {
+        if (cpuTimeSupported)
+        {
+            return threads.getCurrentThreadCpuTime();
+        }
+
+        return 0;
+    }
+
+    private long getAllocatedBytes()
+    {
+        if (allocatedBytesSupported)
+        {
+            try
+            {
+                return (Long) getThreadAllocatedBytes.invoke(threads, Thread.currentThread().getId());
+            }
+            catch (final InvocationTargetException e)
+            {
+                throw Throwables.propagate(e.getCause());
+            }
+            catch (final IllegalAccessException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Records a document read by the step being executed by the current
+     * thread.
+     */
+    void recordInput(final XdmNode node)
+    {
+        final StepProfile profile = currentProfile.get();
+        if (profile != null && node != null)
+        {
+            profile.inputDocuments.incrementAndGet();
+            profile.inputNodes.addAndGet(getSize(node));
+        }
+    }
+
+    /**
+     * Returns a view of the specified documents that records them as they are
+     * read by the step being executed by the current thread.
+     */
+    Iterable<XdmNode> recordInputs(final Iterable<XdmNode> nodes)
+    {
+        final StepProfile profile = currentProfile.get();
+        if (profile == null)
+        {
+            return nodes;
+        }
+
+        return Iterables.transform(nodes, new Function<XdmNode, XdmNode>()
+        {
+            @Override
+            public XdmNode apply(final XdmNode node)
+            {
+                profile.inputDocuments.incrementAndGet();
+                profile.inputNodes.addAndGet(getSize(node));
+                return node;
+            }
+        });
+    }
+
+    /**
+     * Records the documents written by the step being executed by the current
+     * thread.
+     */
+    void recordOutputs(final Iterable<XdmNode> nodes)
+    {
+        final StepProfile profile = currentProfile.get();
+        if (profile != null)
+        {
+            for (final XdmNode node : nodes)
+            {
+                profile.outputDocuments.incrementAndGet();
+                profile.outputNodes.addAndGet(getSize(node));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of nodes of the specified document if it is held in a
+     * tiny tree, or {@code 0} otherwise.
+     */
+    private static long getSize(final XdmNode node)
+    {
+        final NodeInfo nodeInfo = node.getUnderlyingNode();
+        if (nodeInfo instanceof TinyNodeImpl && nodeInfo.getNodeKind() == Type.DOCUMENT)
+        {
+            return ((TinyNodeImpl) nodeInfo).getTree().getNumberOfNodes();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the profiles of the steps executed so far, sorted by path.
+     */
+    public List<StepProfile> getProfiles()
+    {
+        return Ordering.natural().onResultOf(new Function<StepProfile, String>()
+        {
+            @Override
+            public String apply(final StepProfile profile)
+            {
+                return profile.getPath();
+            }
+        }).immutableSortedCopy(profiles.values());
+    }
+
+    public void reset()
+    {
+        profiles.clear();
+    }
+
+    /**
+     * Writes one line per step path with its self wall-clock time in
+     * microseconds, that is the time not spent in the steps of its
+     * subpipeline, in the format expected by flame graph tools.
+     */
+    public void writeCollapsedStacks(final Writer writer) throws IOException
+    {
+        final List<StepProfile> sortedProfiles = getProfiles();
+        final Map<String, Long> childrenWallTimes = Maps.newHashMap();
+        for (final StepProfile profile : sortedProfiles)
+        {
+            final int separatorIndex = profile.getPath().lastIndexOf(PATH_SEPARATOR);
+            if (separatorIndex >= 0)
+            {
+                final String parentPath = profile.getPath().substring(0, separatorIndex);
+                final Long childrenWallTime = childrenWallTimes.get(parentPath);
+                childrenWallTimes.put(parentPath, (childrenWallTime == null ? 0 : childrenWallTime)
+                        + profile.getWallTime());
+            }
+        }
+
+        for (final StepProfile profile : sortedProfiles)
+        {
+            final Long childrenWallTime = childrenWallTimes.get(profile.getPath());
+            // children running concurrently may take longer than their parent
+            final long selfWallTime = Math.max(0, profile.getWallTime()
+                    - (childrenWallTime == null ? 0 : childrenWallTime));
+            writer.write(profile.getPath());
+            writer.write(' ');
+            writer.write(Long.toString(selfWallTime / 1000));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    public void writeXmlSummary(final Writer writer) throws IOException
+    {
+        try
+        {
+            final XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+            xml.writeStartDocument();
+            xml.writeStartElement("profile");
+            for (final StepProfile profile : getProfiles())
+            {
+                xml.writeCharacters("\n  ");
+                xml.writeEmptyElement("step");
+                xml.writeAttribute("path", profile.getPath());
+                xml.writeAttribute("name", profile.getName());
+                xml.writeAttribute("type", profile.getType());
+                if (profile.getLocation() != null && profile.getLocation().getSystemId() != null)
+                {
+                    xml.writeAttribute("location", toString(profile.getLocation()));
+                }
+                xml.writeAttribute("executions", Long.toString(profile.getExecutions()));
+                xml.writeAttribute("wall-time", Long.toString(profile.getWallTime()));
+                if (cpuTimeSupported)
+                {
+                    xml.writeAttribute("cpu-time", Long.toString(profile.getCpuTime()));
+                }
+                if (allocatedBytesSupported)
+                {
+                    xml.writeAttribute("allocated-bytes", Long.toString(profile.getAllocatedBytes()));
+                }
+                xml.writeAttribute("input-documents", Long.toString(profile.getInputDocuments()));
+                xml.writeAttribute("input-nodes", Long.toString(profile.getInputNodes()));
+                xml.writeAttribute("output-documents", Long.toString(profile.getOutputDocuments()));
+                xml.writeAttribute("output-nodes", Long.toString(profile.getOutputNodes()));
+            }
+            xml.writeCharacters("\n");
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.flush();
+        }
+        catch (final XMLStreamException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public void writeJsonSummary(final Writer writer) throws IOException
+    {
+        writer.write("{\"steps\": [");
+        boolean first = true;
+        for (final StepProfile profile : getProfiles())
+        {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("  {\"path\": ");
+            writeJsonString(profile.getPath(), writer);
+            writer.write(", \"name\": ");
+            writeJsonString(profile.getName(), writer);
+            writer.write(", \"type\": ");
+            writeJsonString(profile.getType(), writer);
+            if (profile.getLocation() != null && profile.getLocation().getSystemId() != null)
+            {
+                writer.write(", \"location\": ");
+                writeJsonString(toString(profile.getLocation()), writer);
+            }
+            writer.write(", \"executions\": " + profile.getExecutions());
+            writer.write(", \"wallTime\": " + profile.getWallTime());
+            if (cpuTimeSupported)
+            {
+                writer.write(", \"cpuTime\": " + profile.getCpuTime());
+            }
+            if (allocatedBytesSupported)
+            {
+                writer.write(", \"allocatedBytes\": " + profile.getAllocatedBytes());
+            }
+            writer.write(", \"inputDocuments\": " + profile.getInputDocuments());
+            writer.write(", \"inputNodes\": " + profile.getInputNodes());
+            writer.write(", \"outputDocuments\": " + profile.getOutputDocuments());
+            writer.write(", \"outputNodes\": " + profile.getOutputNodes());
+            writer.write("}");
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    /**
+     * Writes the collapsed stacks, the XML summary and the JSON summary to
+     * files named after the specified prefix, with the {@code .collapsed},
+     * {@code .xml} and {@code .json} extensions respectively.
+     */
+    public void writeReports(final String prefix) throws IOException
+    {
+        Preconditions.checkNotNull(prefix);
+        Writer writer = newWriter(new File(prefix + ".collapsed"));
+        try
+        {
+            writeCollapsedStacks(writer);
+        }
+        finally
+        {
+            Closeables.closeQuietly(writer);
+        }
+
+        writer = newWriter(new File(prefix + ".xml"));
+        try
+        {
+            writeXmlSummary(writer);
+        }
+        finally
+        {
+            Closeables.closeQuietly(writer);
+        }
+
+        writer = newWriter(new File(prefix + ".json"));
+        try
+        {
+            writeJsonSummary(writer);
+        }
+        finally
+        {
+            Closeables.closeQuietly(writer);
+        }
+    }
+
+    private static Writer newWriter(final File file) throws IOException
+    {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+
+    private static String toString(final Location location)
+    {
+        return location.getSystemId() + ":" + location.getLineNumber();
+    }
+
+    private static void writeJsonString(final String value, final Writer writer) throws IOException
+    {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + ImmutableList.copyOf(profiles.keySet());
+    }
+}
@@ -34,12 +34,7 @@ import java.util.Map;
 import java.util.Set;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.ParseException;
-import javax.xml.transform.Result;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.stream.StreamResult;
 import net.iharder.Base64;
-import net.sf.saxon.TransformerFactoryImpl;
-import net.sf.saxon.lib.OutputURIResolver;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmNode;
@@ -50,6 +45,7 @@ import org.trancecode.logging.Logger;
 import org.trancecode.xml.Location;
 import org.trancecode.xml.XmlException;
 import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.PipelineContext;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.EnvironmentPort;
 import org.trancecode.xproc.port.PortReference;
@@ -299,6 +295,7 @@ public final class Steps
     public static void writeLogs(final Step step, final Environment environment)
     {
         LOG.trace("{@method} step = {}", step.getName());
+        final PipelineContext context = environment.getPipelineContext();
         for (final Log log : step.getLogs())
         {
             LOG.trace("  write {}/{} to {}", step.getName(), log.getPort(), log.getHref());
@@ -306,51 +303,16 @@ public final class Steps
                     log.getPort()));
             for (final XdmNode node : port.readNodes())
             {
-                final OutputURIResolver resolver = environment.getPipelineContext().getProcessor()
-                        .getUnderlyingConfiguration().getOutputURIResolver();
-                final Result result;
                 try
                 {
-                    if (log.getHref() != null)
-                    {
-                        result = resolver.resolve(log.getHref(), environment.getBaseUri().toString());
-                    }
-                    else
-                    {
-                        result = new StreamResult(System.err);
-                    }
+                    context.getLogWriter().write(context.getEpisode(), log.getHref(), environment.getBaseUri(), node,
+                            context.getProcessor(), context.getOutputResolver());
                 }
-                catch (final TransformerException e)
+                catch (final RuntimeException e)
                 {
                     throw new XmlException(e, "cannot write node from port %s/%s to %s", step.getName(), log.getPort(),
                             log.getHref());
                 }
-                LOG.trace("  output URI = %s", result.getSystemId());
-
-                try
-                {
-                    new TransformerFactoryImpl().newTransformer().transform(node.asSource(), result);
-                }
-                catch (final TransformerException e)
-                {
-                    throw new XmlException(e, "cannot write node from port %s/%s to %s", step.getName(), log.getPort(),
-                            log.getHref());
-                }
-                finally
-                {
-                    if (log.getHref() != null)
-                    {
-                        try
-                        {
-                            resolver.close(result);
-                        }
-                        catch (final TransformerException e)
-                        {
-                            LOG.error("{}", e);
-                            LOG.trace("{stackTrace}", e);
-                        }
-                    }
-                }
             }
         }
     }
@@ -22,8 +22,8 @@ package org.trancecode.xproc.step;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.net.URI;
 
@@ -31,14 +31,26 @@ import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.Serializer.Property;
 import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.io.AtomicFileOutputStream;
 import org.trancecode.io.MediaTypes;
 import org.trancecode.logging.Logger;
+import org.trancecode.xml.Location;
+import org.trancecode.xproc.PipelineContext;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
 
 /**
+ * Step processor for the p:store standard XProc step.
+ * <p>
+ * Documents are serialized through a buffer. Files are written to a temporary
+ * file in the target directory which then replaces the target file, so that
+ * readers never see a partially written file. The writes are performed by
+ * the {@link StoreWriter} of the pipeline context, possibly in the
+ * background.
+ * 
  * @author Herve Quiroz
+ * @see <a href="http://www.w3.org/TR/xproc/#c.store">p:store</a>
  */
 @ExternalResources(read = false, write = true)
 public final class StoreStepProcessor extends AbstractStepProcessor
@@ -89,6 +101,42 @@ public final class StoreStepProcessor extends AbstractStepProcessor
         LOG.debug("Storing document to: {} ; mime-type: {} ; encoding: {} ; doctype-public = {} ; doctype-system = {}",
                 href, mimeType, encoding, doctypePublicId, doctypeSystemId);
 
+        final Serializer serializer = new Serializer();
+        if (doctypePublicId != null)
+        {
+            serializer.setOutputProperty(Property.DOCTYPE_PUBLIC, doctypePublicId);
+        }
+        if (doctypeSystemId != null)
+        {
+            serializer.setOutputProperty(Property.DOCTYPE_SYSTEM, doctypeSystemId);
+        }
+        if (method != null)
+        {
+            LOG.debug("method = {}", method);
+            serializer.setOutputProperty(Property.METHOD, method);
+        }
+        serializer.setOutputProperty(Property.ENCODING, encoding);
+        serializer.setOutputProperty(Property.MEDIA_TYPE, mimeType);
+        serializer.setOutputProperty(Property.OMIT_XML_DECLARATION, omitXmlDeclaration ? "yes" : "no");
+        serializer.setOutputProperty(Property.INDENT, indent ? "yes" : "no");
+
+        final PipelineContext context = input.getPipelineContext();
+        final Location location = input.getLocation();
+        context.getStoreWriter().write(context.getEpisode(), outputUri, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                store(node, outputUri, href, baseUri, serializer, context, location);
+            }
+        });
+
+        output.writeNodes(XProcPorts.RESULT, input.newResultElement(outputUri.toString()));
+    }
+
+    private static void store(final XdmNode node, final URI outputUri, final String href, final URI baseUri,
+            final Serializer serializer, final PipelineContext context, final Location location)
+    {
         final OutputStream targetOutputStream;
         try
         {
@@ -99,54 +147,38 @@ public final class StoreStepProcessor extends AbstractStepProcessor
                 {
                     Files.createParentDirs(oFile);
                 }
-                targetOutputStream = new FileOutputStream(oFile);
+                targetOutputStream = new AtomicFileOutputStream(oFile);
             }
             else
             {
-                targetOutputStream = input.getPipelineContext().getOutputResolver()
-                        .resolveOutputStream(href, input.getBaseUri().toString());
+                targetOutputStream = new BufferedOutputStream(context.getOutputResolver().resolveOutputStream(href,
+                        baseUri.toString()), AtomicFileOutputStream.DEFAULT_BUFFER_SIZE);
             }
         }
         catch (final Exception e)
         {
-            throw XProcExceptions.xc0050(input.getLocation());
+            throw XProcExceptions.xc0050(location);
         }
 
-        final Serializer serializer = new Serializer();
         serializer.setOutputStream(targetOutputStream);
-        if (doctypePublicId != null)
-        {
-            serializer.setOutputProperty(Property.DOCTYPE_PUBLIC, doctypePublicId);
-        }
-        if (doctypeSystemId != null)
-        {
-            serializer.setOutputProperty(Property.DOCTYPE_SYSTEM, doctypeSystemId);
-        }
-        serializer.setOutputProperty(Property.DOCTYPE_SYSTEM, doctypeSystemId);
-        if (method != null)
-        {
-            LOG.debug("method = {}", method);
-            serializer.setOutputProperty(Property.METHOD, method);
-        }
-        serializer.setOutputProperty(Property.ENCODING, encoding);
-        serializer.setOutputProperty(Property.MEDIA_TYPE, mimeType);
-        serializer.setOutputProperty(Property.OMIT_XML_DECLARATION, omitXmlDeclaration ? "yes" : "no");
-        serializer.setOutputProperty(Property.INDENT, indent ? "yes" : "no");
-
         try
         {
-            input.getPipelineContext().getProcessor().writeXdmValue(node, serializer);
+            context.getProcessor().writeXdmValue(node, serializer);
             targetOutputStream.close();
         }
         catch (final Exception e)
         {
-            throw XProcExceptions.xc0050(input.getLocation());
+            if (targetOutputStream instanceof AtomicFileOutputStream)
+            {
+                ((AtomicFileOutputStream) targetOutputStream).abort();
+            }
+            throw XProcExceptions.xc0050(location);
         }
         finally
         {
             Closeables.closeQuietly(targetOutputStream);
         }
 
-        output.writeNodes(XProcPorts.RESULT, input.newResultElement(outputUri.toString()));
+        context.getDocumentCache().invalidate(outputUri);
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.trancecode.concurrent.RuntimeExecutionException;
+import org.trancecode.concurrent.RuntimeInterruptedException;
+import org.trancecode.logging.Logger;
+import org.trancecode.xproc.Episode;
+
+/**
+ * Performs the writes of the {@code p:store} steps, either synchronously or on
+ * a bounded pool of background threads.
+ * <p>
+ * In the background mode, the step completes as soon as its write has been
+ * queued. When the queue is full, the write is performed by the thread
+ * executing the step, which slows down the pipeline until the writer threads
+ * catch up. The writes of a pipeline run are awaited, and their errors
+ * raised, by {@link #flush(Episode)} at the end of the run. Reads of a
+ * document being written wait for the write through {@link #await(URI)}, and
+ * then read whatever the write left, so that a failed write is reported by
+ * the reader as a document it cannot load and by the {@code p:store} step
+ * when the run is flushed.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StoreWriter
+{
+    private static final Logger LOG = Logger.getLogger(StoreWriter.class);
+    private static final int IDLE_TIMEOUT = 60;
+
+    private final ThreadPoolExecutor executor;
+    private final Map<Episode, Queue<Future<?>>> pendingWritesByEpisode = new MapMaker().weakKeys().makeMap();
+    private final ConcurrentMap<URI, Future<?>> pendingWritesByUri = new MapMaker().makeMap();
+
+    /**
+     * Creates a writer that performs the writes synchronously.
+     */
+    public StoreWriter()
+    {
+        executor = null;
+    }
+
+    /**
+     * Creates a writer that performs the writes on {@code threads} background
+     * threads, with up to {@code capacity} writes waiting for a thread.
+     */
+    public StoreWriter(final int threads, final int capacity)
+    {
+        Preconditions.checkArgument(threads > 0, "threads = %s", threads);
+        Preconditions.checkArgument(capacity > 0, "capacity = %s", capacity);
+        executor = new ThreadPoolExecutor(threads, threads, IDLE_TIMEOUT, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("tubular-store-writer-%d").build(), new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isAsynchronous()
+    {
+        return executor != null;
+    }
+
+    /**
+     * Performs the specified write of the document identified by {@code uri}
+     * on behalf of the pipeline run identified by {@code episode}.
+     */
+    public void write(final Episode episode, final URI uri, final Runnable write)
+    {
+        if (executor == null)
+        {
+            write.run();
+            return;
+        }
+
+        await(uri);
+        final FutureTask<?> pendingWrite = new FutureTask<Object>(write, null)
+        {
+            @Override
+            protected void done()
+            {
+                pendingWritesByUri.remove(uri, this);
+            }
+        };
+        pendingWritesByUri.put(uri, pendingWrite);
+        getPendingWrites(episode).add(pendingWrite);
+        executor.execute(pendingWrite);
+        LOG.trace("{@method} uri = {} ; queued = {}", uri, executor.getQueue().size());
+    }
+
+    private Queue<Future<?>> getPendingWrites(final Episode episode)
+    {
+        synchronized (pendingWritesByEpisode)
+        {
+            Queue<Future<?>> pendingWrites = pendingWritesByEpisode.get(episode);
+            if (pendingWrites == null)
+            {
+                pendingWrites = new ConcurrentLinkedQueue<Future<?>>();
+                pendingWritesByEpisode.put(episode, pendingWrites);
+            }
+
+            return pendingWrites;
+        }
+    }
+
+    /**
+     * Waits for the pending write of the document identified by {@code uri},
+     * if any. The error of a failed write is not raised here but by
+     * {@link #flush(Episode)}.
+     */
+    public void await(final URI uri)
+    {
+        final Future<?> pendingWrite = pendingWritesByUri.get(uri);
+        if (pendingWrite == null)
+        {
+            return;
+        }
+
+        try
+        {
+            pendingWrite.get();
+        }
+        catch (final InterruptedException e)
+        {
+            throw new RuntimeInterruptedException(e);
+        }
+        catch (final ExecutionException e)
+        {
+            LOG.trace("{@method} uri = {} ; failed write = {}", uri, e.getCause());
+        }
+        pendingWritesByUri.remove(uri, pendingWrite);
+    }
+
+    boolean hasPendingWrite(final URI uri)
+    {
+        return pendingWritesByUri.containsKey(uri);
+    }
+
+    /**
+     * Waits for all the writes of the pipeline run identified by
+     * {@code episode} and raises the error of the first failed write, if any.
+     */
+    public void flush(final Episode episode)
+    {
+        final Queue<Future<?>> pendingWrites;
+        synchronized (pendingWritesByEpisode)
+        {
+            pendingWrites = pendingWritesByEpisode.remove(episode);
+        }
+
+        if (pendingWrites == null)
+        {
+            return;
+        }
+
+        LOG.trace("{@method} episode = {} ; writes = {}", episode.getId(), pendingWrites.size());
+        RuntimeException error = null;
+        for (final Future<?> pendingWrite : pendingWrites)
+        {
+            try
+            {
+                get(pendingWrite);
+            }
+            catch (final RuntimeException e)
+            {
+                if (error == null)
+                {
+                    error = e;
+                }
+            }
+        }
+
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+
+    private static void get(final Future<?> future)
+    {
+        try
+        {
+            future.get();
+        }
+        catch (final InterruptedException e)
+        {
+            throw new RuntimeInterruptedException(e);
+        }
+        catch (final ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error)
+            {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeExecutionException(e);
+        }
+    }
+}
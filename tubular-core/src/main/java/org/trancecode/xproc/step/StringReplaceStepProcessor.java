@@ -20,10 +20,17 @@
 package org.trancecode.xproc.step;
 
 import java.util.EnumSet;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
+import org.trancecode.api.ReturnsNullable;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.saxon.AbstractSaxonProcessorDelegate;
 import org.trancecode.xml.saxon.CopyingSaxonProcessorDelegate;
@@ -45,6 +52,8 @@ import org.trancecode.xproc.variable.XProcOptions;
 public final class StringReplaceStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(StringReplaceStepProcessor.class);
+    private static final Pattern STRING_LITERAL = Pattern
+            .compile("\\s*(?:\"((?:[^\"]|\"\")*)\"|'((?:[^']|'')*)')\\s*");
 
     @Override
     public QName getStepType()
@@ -61,12 +70,46 @@ public final class StringReplaceStepProcessor extends AbstractStepProcessor
         final String replace = input.getOptionValue(XProcOptions.REPLACE);
         LOG.trace("replace = {}", replace);
 
+        final String literalReplacement = getLiteralReplacement(replace);
+        LOG.trace("literalReplacement = {}", literalReplacement);
+
         final SaxonProcessorDelegate stringReplace = new AbstractSaxonProcessorDelegate()
         {
+            private XPathSelector replaceSelector;
+
+            private String evaluateReplace(final XdmNode node)
+            {
+                if (literalReplacement != null)
+                {
+                    return literalReplacement;
+                }
+
+                try
+                {
+                    if (replaceSelector == null)
+                    {
+                        final Map<QName, XdmItem> variables = input.getXPathVariables(null);
+                        replaceSelector = input.loadXPath(input.compileXPath(replace, variables.keySet()), variables);
+                    }
+
+                    return input.evaluateXPath(replaceSelector, node).toString();
+                }
+                catch (final SaxonApiException e)
+                {
+                    final String exceptionMessage = e.getMessage();
+                    if (exceptionMessage != null && exceptionMessage.contains("context item is undefined"))
+                    {
+                        throw new IllegalStateException(exceptionMessage, e);
+                    }
+
+                    throw new IllegalStateException("error while evaluating XPath query: " + replace, e);
+                }
+            }
+
             private void replace(final XdmNode node, final SaxonBuilder builder)
             {
                 LOG.trace("{@method} node = {}", node.getNodeName());
-                final String text = input.evaluateXPath(replace, node).toString();
+                final String text = evaluateReplace(node);
                 LOG.trace("result = {}", text);
                 if (node.getNodeKind() == XdmNodeKind.ATTRIBUTE)
                 {
@@ -121,4 +164,26 @@ public final class StringReplaceStepProcessor extends AbstractStepProcessor
         final XdmNode result = matchProcessor.apply(sourceDocument);
         output.writeNodes(XProcPorts.RESULT, result);
     }
+
+    /**
+     * Returns the value of a replacement expression that is a single string
+     * literal, which needs no XPath evaluation, or {@code null} for any other
+     * expression.
+     */
+    @ReturnsNullable
+    static String getLiteralReplacement(final String replace)
+    {
+        final Matcher matcher = STRING_LITERAL.matcher(replace);
+        if (!matcher.matches())
+        {
+            return null;
+        }
+
+        if (matcher.group(1) != null)
+        {
+            return matcher.group(1).replace("\"\"", "\"");
+        }
+
+        return matcher.group(2).replace("''", "'");
+    }
 }
@@ -20,29 +20,23 @@
 package org.trancecode.xproc.step;
 
 import com.google.common.collect.Iterables;
-import java.io.ByteArrayOutputStream;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
-import javax.xml.XMLConstants;
-import javax.xml.transform.sax.SAXResult;
-import javax.xml.transform.sax.SAXSource;
+
+import java.net.URI;
+
 import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
 import net.sf.saxon.s9api.BuildingContentHandler;
+import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.Serializer;
-import net.sf.saxon.s9api.XQueryCompiler;
-import net.sf.saxon.s9api.XQueryEvaluator;
 import net.sf.saxon.s9api.XdmNode;
 import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonSources;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
-import org.xml.sax.InputSource;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
+import org.xml.sax.SAXException;
 
 /**
  * Step processor for the p:validate-with-xml-schema standard XProc step.
@@ -55,9 +49,6 @@ import org.xml.sax.helpers.XMLReaderFactory;
 public final class ValidateWithSchemaStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(ValidateWithSchemaStepProcessor.class);
-    private static final String EXTERNAL_SCHEMALOCATION = "http://apache.org/xml/properties/schema/external-schemaLocation";
-    private static final String EXTERNAL_NONAMESPACESCHEMALOCATION = "http://apache.org/xml/properties/schema/external-noNamespaceSchemaLocation";
-    private static final String DEFAULT_PARSER_NAME = "org.apache.xerces.parsers.SAXParser";
 
     @Override
     public QName getStepType()
@@ -71,47 +62,38 @@ public final class ValidateWithSchemaStepProcessor extends AbstractStepProcessor
         final XdmNode sourceDoc = input.readNode(XProcPorts.SOURCE);
         final boolean useLocalHints = Boolean.parseBoolean(input.getOptionValue(XProcOptions.USE_LOCATION_HINTS,
                 "false"));
-        final boolean tryNamespaces = Boolean.parseBoolean(input.getOptionValue(XProcOptions.TRY_NAMESPACES, "false"));
         final boolean assertValid = Boolean.parseBoolean(input.getOptionValue(XProcOptions.ASSERT_VALID, "true"));
-        final String mode = input.getOptionValue(XProcOptions.MODE, "strict");
-        final Iterable<XdmNode> shemas = input.readNodes(XProcPorts.SCHEMA);
+        final Iterable<XdmNode> schemas = input.readNodes(XProcPorts.SCHEMA);
         XdmNode resultNode = sourceDoc;
         boolean valid = false;
-        try
+        if (!Iterables.isEmpty(schemas) || useLocalHints)
         {
-            final StringReader reader = new StringReader(getXmlDocument(sourceDoc));
-            final InputSource source = new InputSource(reader);
-            source.setSystemId(sourceDoc.getBaseURI().toASCIIString());
-            final BuildingContentHandler handler = input.getPipelineContext().getProcessor().newDocumentBuilder()
-                    .newBuildingContentHandler();
-            final SAXResult result = new SAXResult(handler);
-            final SAXSource saxSource = new SAXSource(source);
-            final XMLReader xmlReader = XMLReaderFactory.createXMLReader(DEFAULT_PARSER_NAME);
-            saxSource.setXMLReader(xmlReader);
-            final InputSource sourceSchema = new InputSource();
-            if (Iterables.size(shemas) > 0)
+            try
             {
-                final XdmNode schema = shemas.iterator().next();
-                final StringReader stringSchema = new StringReader(getXmlDocument(schema));
-                sourceSchema.setCharacterStream(stringSchema);
-                sourceSchema.setSystemId(schema.getBaseURI().toASCIIString());
+                final Schema schema = input.getPipelineContext().getXmlSchemaCache().compile(schemas);
+                final DocumentBuilder documentBuilder = input.getPipelineContext().getProcessor()
+                        .newDocumentBuilder();
+                final URI baseUri = sourceDoc.getBaseURI();
+                if (baseUri != null && baseUri.isAbsolute())
+                {
+                    documentBuilder.setBaseURI(baseUri);
+                }
+                final BuildingContentHandler handler = documentBuilder.newBuildingContentHandler();
+                final ValidatorHandler validatorHandler = schema.newValidatorHandler();
+                validatorHandler.setContentHandler(handler);
+                SaxonSources.writeEvents(sourceDoc, validatorHandler);
+                resultNode = handler.getDocumentNode();
+                valid = true;
             }
-            else
+            catch (final SAXException e)
             {
-                sourceSchema.setCharacterStream(new StringReader(""));
+                LOG.trace("{@method} invalid document: {}", e.getMessage());
             }
-
-            final SAXSource saxSchema = new SAXSource(sourceSchema);
-            valid = validate(saxSource, saxSchema, result, useLocalHints, tryNamespaces);
-            if (valid)
+            catch (final SaxonApiException e)
             {
-                resultNode = handler.getDocumentNode();
+                LOG.trace("{@method} invalid document: {}", e.getMessage());
             }
         }
-        catch (Exception e)
-        {
-            valid = false;
-        }
 
         if (assertValid && !valid)
         {
@@ -119,47 +101,4 @@ public final class ValidateWithSchemaStepProcessor extends AbstractStepProcessor
         }
         output.writeNodes(XProcPorts.RESULT, resultNode);
     }
-
-    private boolean validate(final SAXSource saxSource, final SAXSource saxSchema, final SAXResult result,
-            final boolean useLocalHints, final boolean tryNamespaces)
-    {
-        try
-        {
-            final SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            // factory.setProperty(EXTERNAL_SCHEMALOCATION, useLocalHints);
-            // factory.setProperty(EXTERNAL_NONAMESPACESCHEMALOCATION,
-            // tryNamespaces);
-            final Schema schema = factory.newSchema(saxSchema);
-            final Validator validator = schema.newValidator();
-            validator.validate(saxSource, result);
-            return true;
-        }
-        catch (final Exception e)
-        {
-            return false;
-        }
-    }
-
-    private static String getXmlDocument(final XdmNode node) throws SaxonApiException
-    {
-        final Serializer serializer = new Serializer();
-
-        final XQueryCompiler xqcomp = node.getProcessor().newXQueryCompiler();
-        final XQueryEvaluator xqeval = xqcomp.compile(".").load();
-        xqeval.setContextItem(node);
-
-        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        serializer.setOutputStream(stream);
-        xqeval.setDestination(serializer);
-        xqeval.run();
-
-        try
-        {
-            return stream.toString("UTF-8");
-        }
-        catch (final UnsupportedEncodingException uee)
-        {
-            throw new IllegalStateException(uee);
-        }
-    }
 }
@@ -19,26 +19,32 @@
  */
 package org.trancecode.xproc.step;
 
-import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
+import org.trancecode.concurrent.TcFutures;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.saxon.AbstractSaxonProcessorDelegate;
 import org.trancecode.xml.saxon.CopyingSaxonProcessorDelegate;
+import org.trancecode.xml.saxon.MatchSaxonProcessorDelegate;
+import org.trancecode.xml.saxon.SaxonAxis;
 import org.trancecode.xml.saxon.SaxonBuilder;
+import org.trancecode.xml.saxon.SaxonPatternMatcher;
 import org.trancecode.xml.saxon.SaxonProcessor;
-import org.trancecode.xml.saxon.SaxonProcessorDelegate;
-import org.trancecode.xml.saxon.SaxonProcessorDelegates;
 import org.trancecode.xproc.Environment;
-import org.trancecode.xproc.api.XProcException;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.binding.InlinePortBinding;
 import org.trancecode.xproc.port.EnvironmentPort;
@@ -91,114 +97,190 @@ public final class ViewportStepProcessor extends AbstractCompoundStepProcessor i
         final String match = viewportEnvironment.getVariable(XProcOptions.MATCH);
         LOG.trace("match = {}", match);
 
-        final int iterationSize = evaluateIterationSize(step, match, sourceDocument, viewportEnvironment);
+        final Processor processor = environment.getPipelineContext().getProcessor();
+        final List<XdmNode> matchingNodes = Lists.newArrayList();
+        collectMatchingNodes(sourceDocument, new SaxonPatternMatcher(processor, match, step.getNode()),
+                matchingNodes);
+        final int iterationSize = matchingNodes.size();
         LOG.trace("iterationSize = {}", iterationSize);
 
-        final SaxonProcessorDelegate runSubpipeline = new AbstractSaxonProcessorDelegate()
+        final List<Callable<Iterable<XdmNode>>> tasks = Lists.newArrayListWithCapacity(iterationSize);
+        for (int i = 0; i < iterationSize; i++)
         {
-            private int iterationPosition = 1;
-
-            private void runSubpipeline(final XdmNode node, final SaxonBuilder builder)
+            final int iterationPosition = i + 1;
+            final XdmNode node = matchingNodes.get(i);
+            tasks.add(new Callable<Iterable<XdmNode>>()
             {
-                LOG.trace("run subpipeline on:\n{}", node);
-                Environment subpipelineEnvironment = viewportEnvironment.newChildStepEnvironment();
-                final Port currentPort = Port.newInputPort(step.getName(), "current", step.getLocation())
-                        .setPortBindings(new InlinePortBinding(node, step.getLocation()));
-                final EnvironmentPort currentEnvironmentPort = EnvironmentPort.newEnvironmentPort(currentPort,
-                        viewportEnvironment);
-                subpipelineEnvironment = subpipelineEnvironment.addPorts(currentEnvironmentPort);
-                subpipelineEnvironment = subpipelineEnvironment.setDefaultReadablePort(currentEnvironmentPort);
-                subpipelineEnvironment = subpipelineEnvironment.setXPathContextPort(currentEnvironmentPort);
-                final int previousIterationPosition = IterationPositionXPathExtensionFunction
-                        .setIterationPosition(iterationPosition++);
-                subpipelineEnvironment = subpipelineEnvironment.setupVariables(step);
-                subpipelineEnvironment.setCurrentEnvironment();
-                Environment resultEnvironment;
-                try
-                {
-                    resultEnvironment = runSteps(step.getSubpipeline(), subpipelineEnvironment);
-                }
-                finally
+                @Override
+                public Iterable<XdmNode> call()
                 {
-                    IterationPositionXPathExtensionFunction.setIterationPosition(previousIterationPosition);
+                    return runIteration(step, viewportEnvironment, node, iterationPosition, iterationSize);
                 }
-                resultEnvironment = resultEnvironment.setupOutputPorts(step, resultEnvironment);
-                final Iterable<XdmNode> resultNodes = resultEnvironment.getDefaultReadablePort().readNodes();
-                LOG.trace("resultNodes = {}", resultNodes);
-                builder.nodes(resultNodes);
-            }
+            });
+        }
 
-            @Override
-            public boolean startDocument(final XdmNode node, final SaxonBuilder builder)
-            {
-                runSubpipeline(node, builder);
-                return false;
-            }
+        LOG.trace("  {}: submitting {size} iteration tasks...", step, tasks);
+        // submit all the iterations before waiting for any of them
+        final Iterable<Future<Iterable<XdmNode>>> futureResults = ImmutableList.copyOf(TcFutures.submit(
+                environment.getPipelineContext().getExecutor(), tasks));
+        final List<Iterable<XdmNode>> results;
+        try
+        {
+            results = ImmutableList.copyOf(TcFutures.get(futureResults, true));
+        }
+        catch (final ExecutionException e)
+        {
+            throw Throwables.propagate(e.getCause());
+        }
+        catch (final InterruptedException e)
+        {
+            throw new IllegalStateException(e);
+        }
 
-            @Override
-            public void endDocument(final XdmNode node, final SaxonBuilder builder)
-            {
-                // document has been started and ended
-            }
+        final NextMatchingNodePredicate isNextMatchingNode = new NextMatchingNodePredicate(matchingNodes);
+        final SaxonProcessor spliceProcessor = new SaxonProcessor(processor, new MatchSaxonProcessorDelegate(
+                isNextMatchingNode, new SpliceResultsProcessorDelegate(isNextMatchingNode, results),
+                new CopyingSaxonProcessorDelegate()));
+        final XdmNode resultDocument = spliceProcessor.apply(sourceDocument);
 
-            @Override
-            public EnumSet<NextSteps> startElement(final XdmNode node, final SaxonBuilder builder)
-            {
-                runSubpipeline(node, builder);
-                return EnumSet.noneOf(NextSteps.class);
-            }
+        LOG.trace("resultDocument = {}", resultDocument);
+        Environment resultEnvironment = viewportEnvironment;
+        final Port resultPort = Port.newOutputPort(step.getName(), XProcPorts.RESULT, step.getLocation())
+                .setPrimary(true).setPortBindings(new InlinePortBinding(resultDocument, step.getLocation()));
+        final EnvironmentPort resultEnvironmentPort = EnvironmentPort.newEnvironmentPort(resultPort, resultEnvironment);
+        resultEnvironment = resultEnvironment.addPorts(resultEnvironmentPort);
+        resultEnvironment = resultEnvironment.setDefaultReadablePort(resultEnvironmentPort);
+        return resultEnvironment;
+    }
 
-            @Override
-            public void endElement(final XdmNode node, final SaxonBuilder builder)
+    /**
+     * Collects the nodes matched by the pattern in document order, without
+     * looking into the matched subtrees.
+     */
+    private static void collectMatchingNodes(final XdmNode node, final SaxonPatternMatcher matcher,
+            final List<XdmNode> matchingNodes)
+    {
+        if (matcher.apply(node))
+        {
+            final XdmNodeKind nodeKind = node.getNodeKind();
+            if (nodeKind != XdmNodeKind.DOCUMENT && nodeKind != XdmNodeKind.ELEMENT)
             {
-                // element has been started and ended
+                throw XProcExceptions.xd0010(node);
             }
-        };
-        final SaxonProcessorDelegate runSubpipelineForElements = SaxonProcessorDelegates.forNodeKinds(
-                ImmutableSet.of(XdmNodeKind.DOCUMENT, XdmNodeKind.ELEMENT), runSubpipeline,
-                SaxonProcessorDelegates.error(new Function<XdmNode, XProcException>()
-                {
-                    @Override
-                    public XProcException apply(final XdmNode node)
-                    {
-                        return XProcExceptions.xd0010(node);
-                    }
-                }));
 
-        final SaxonProcessor matchProcessor = new SaxonProcessor(environment.getPipelineContext().getProcessor(),
-                SaxonProcessorDelegates.forXsltMatchPattern(environment.getPipelineContext().getProcessor(), match,
-                        step.getNode(), runSubpipelineForElements, new CopyingSaxonProcessorDelegate()));
+            matchingNodes.add(node);
+            return;
+        }
 
+        for (final XdmNode child : SaxonAxis.childNodes(node))
+        {
+            collectMatchingNodes(child, matcher, matchingNodes);
+        }
+    }
+
+    private Iterable<XdmNode> runIteration(final Step step, final Environment viewportEnvironment,
+            final XdmNode node, final int iterationPosition, final int iterationSize)
+    {
+        LOG.trace("iteration {}/{}: {}", iterationPosition, iterationSize, node);
+
+        final int previousIterationPosition = IterationPositionXPathExtensionFunction
+                .setIterationPosition(iterationPosition);
         final int previousIterationSize = IterationSizeXPathExtensionFunction.setIterationSize(iterationSize);
-        final XdmNode resultDocument;
         try
         {
-            resultDocument = matchProcessor.apply(sourceDocument);
+            Environment subpipelineEnvironment = viewportEnvironment.newChildStepEnvironment();
+            final Port currentPort = Port.newInputPort(step.getName(), "current", step.getLocation())
+                    .setPortBindings(new InlinePortBinding(node, step.getLocation()));
+            final EnvironmentPort currentEnvironmentPort = EnvironmentPort.newEnvironmentPort(currentPort,
+                    viewportEnvironment);
+            subpipelineEnvironment = subpipelineEnvironment.addPorts(currentEnvironmentPort);
+            subpipelineEnvironment = subpipelineEnvironment.setDefaultReadablePort(currentEnvironmentPort);
+            subpipelineEnvironment = subpipelineEnvironment.setXPathContextPort(currentEnvironmentPort);
+            subpipelineEnvironment = subpipelineEnvironment.setupVariables(step);
+            subpipelineEnvironment.setCurrentEnvironment();
+            Environment resultEnvironment = runSteps(step.getSubpipeline(), subpipelineEnvironment);
+            resultEnvironment = resultEnvironment.setupOutputPorts(step, resultEnvironment);
+            final Iterable<XdmNode> resultNodes = ImmutableList.copyOf(resultEnvironment.getDefaultReadablePort()
+                    .readNodes());
+            LOG.trace("resultNodes = {}", resultNodes);
+            return resultNodes;
         }
         finally
         {
+            IterationPositionXPathExtensionFunction.setIterationPosition(previousIterationPosition);
             IterationSizeXPathExtensionFunction.setIterationSize(previousIterationSize);
         }
+    }
 
-        LOG.trace("resultDocument = {}", resultDocument);
-        Environment resultEnvironment = viewportEnvironment;
-        final Port resultPort = Port.newOutputPort(step.getName(), XProcPorts.RESULT, step.getLocation())
-                .setPrimary(true).setPortBindings(new InlinePortBinding(resultDocument, step.getLocation()));
-        final EnvironmentPort resultEnvironmentPort = EnvironmentPort.newEnvironmentPort(resultPort, resultEnvironment);
-        resultEnvironment = resultEnvironment.addPorts(resultEnvironmentPort);
-        resultEnvironment = resultEnvironment.setDefaultReadablePort(resultEnvironmentPort);
-        return resultEnvironment;
+    /**
+     * Matches the collected nodes one after the other, as the document is
+     * copied in the same order as they were collected.
+     */
+    private static final class NextMatchingNodePredicate implements Predicate<XdmNode>
+    {
+        private final Iterator<XdmNode> matchingNodes;
+        private XdmNode nextMatchingNode;
+
+        public NextMatchingNodePredicate(final Iterable<XdmNode> matchingNodes)
+        {
+            this.matchingNodes = matchingNodes.iterator();
+            next();
+        }
+
+        public void next()
+        {
+            nextMatchingNode = matchingNodes.hasNext() ? matchingNodes.next() : null;
+        }
+
+        @Override
+        public boolean apply(final XdmNode node)
+        {
+            return nextMatchingNode != null
+                    && node.getUnderlyingNode().isSameNodeInfo(nextMatchingNode.getUnderlyingNode());
+        }
     }
 
-    private static int evaluateIterationSize(final Step step, final String match, final XdmNode sourceDocument,
-            final Environment environment)
+    /**
+     * Replaces each matched node with the result of its iteration.
+     */
+    private static final class SpliceResultsProcessorDelegate extends AbstractSaxonProcessorDelegate
     {
-        final AtomicInteger count = new AtomicInteger(0);
-        final SaxonProcessor matchProcessor = new SaxonProcessor(environment.getPipelineContext().getProcessor(),
-                SaxonProcessorDelegates.forXsltMatchPattern(environment.getPipelineContext().getProcessor(), match,
-                        step.getNode(), SaxonProcessorDelegates.countMatchingNodes(count),
-                        new CopyingSaxonProcessorDelegate()));
-        matchProcessor.apply(sourceDocument);
-        return count.get();
+        private final NextMatchingNodePredicate matchingNodes;
+        private final Iterator<Iterable<XdmNode>> results;
+
+        public SpliceResultsProcessorDelegate(final NextMatchingNodePredicate matchingNodes,
+                final Iterable<Iterable<XdmNode>> results)
+        {
+            this.matchingNodes = matchingNodes;
+            this.results = results.iterator();
+        }
+
+        @Override
+        public boolean startDocument(final XdmNode node, final SaxonBuilder builder)
+        {
+            builder.nodes(results.next());
+            return false;
+        }
+
+        @Override
+        public void endDocument(final XdmNode node, final SaxonBuilder builder)
+        {
+            // document has been started and ended
+            matchingNodes.next();
+        }
+
+        @Override
+        public EnumSet<NextSteps> startElement(final XdmNode node, final SaxonBuilder builder)
+        {
+            builder.nodes(results.next());
+            return EnumSet.noneOf(NextSteps.class);
+        }
+
+        @Override
+        public void endElement(final XdmNode node, final SaxonBuilder builder)
+        {
+            // element has been started and ended
+            matchingNodes.next();
+        }
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XQueryExecutable;
+import org.trancecode.collection.LruCache;
+import org.trancecode.logging.Logger;
+
+/**
+ * Bounded cache of compiled XQuery queries, keyed by query text.
+ * <p>
+ * Queries are compiled with the default static context of the processor, so
+ * the query text is enough to identify a compiled query.
+ * 
+ * @author Herve Quiroz
+ */
+public final class XQueryExecutableCache
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 100;
+
+    private static final Logger LOG = Logger.getLogger(XQueryExecutableCache.class);
+
+    private final LruCache<String, XQueryExecutable> executables;
+
+    public XQueryExecutableCache()
+    {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public XQueryExecutableCache(final int maximumSize)
+    {
+        executables = LruCache.newCache(maximumSize);
+    }
+
+    /**
+     * Returns the compiled form of the query, compiling it with the specified
+     * processor if it is not cached yet.
+     */
+    public XQueryExecutable compile(final Processor processor, final String query) throws SaxonApiException
+    {
+        final XQueryExecutable cachedExecutable = executables.getIfPresent(query);
+        if (cachedExecutable != null)
+        {
+            return cachedExecutable;
+        }
+
+        LOG.trace("{@method} query = {}", query);
+        final XQueryExecutable executable = processor.newXQueryCompiler().compile(query);
+        executables.put(query, executable);
+        return executable;
+    }
+
+    public int size()
+    {
+        return executables.size();
+    }
+
+    public long getHitCount()
+    {
+        return executables.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return executables.getMissCount();
+    }
+
+    public void clear()
+    {
+        executables.invalidateAll();
+    }
+
+    @Override
+    public String toString()
+    {
+        return executables.toString();
+    }
+}
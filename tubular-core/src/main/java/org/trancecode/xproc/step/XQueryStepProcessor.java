@@ -26,8 +26,10 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import net.sf.saxon.Configuration;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.CollectionURIResolver;
 import net.sf.saxon.om.Item;
@@ -35,7 +37,6 @@ import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryEvaluator;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmItem;
@@ -74,14 +75,12 @@ public final class XQueryStepProcessor extends AbstractStepProcessor
         LOG.trace("query = {}", queryNode.getStringValue());
 
         final Processor processor = input.getPipelineContext().getProcessor();
-        final CollectionURIResolver oldCollResolver = processor.getUnderlyingConfiguration().getCollectionURIResolver();
-        final XQCollectionResolver collResolver = new XQCollectionResolver(oldCollResolver);
-        collResolver.addToCollection(sourcesDoc);
-        processor.getUnderlyingConfiguration().setCollectionURIResolver(collResolver);
-        final XQueryCompiler xQueryCompiler = processor.newXQueryCompiler();
+        DefaultCollectionResolver.install(processor.getUnderlyingConfiguration());
+        final List<Item> previousDefaultCollection = DefaultCollectionResolver.setDefaultCollection(sourcesDoc);
         try
         {
-            final XQueryEvaluator xQueryEvaluator = xQueryCompiler.compile(queryNode.getStringValue()).load();
+            final XQueryEvaluator xQueryEvaluator = input.getPipelineContext().getXQueryCache()
+                    .compile(processor, queryNode.getStringValue()).load();
             xQueryEvaluator.setContextItem(Iterables.getFirst(sourcesDoc, null));
             final Map<QName, String> params = getParameters(input);
             for (final Map.Entry<QName, String> param : params.entrySet())
@@ -105,7 +104,7 @@ public final class XQueryStepProcessor extends AbstractStepProcessor
         }
         finally
         {
-            processor.getUnderlyingConfiguration().setCollectionURIResolver(oldCollResolver);
+            DefaultCollectionResolver.restoreDefaultCollection(previousDefaultCollection);
         }
     }
 
@@ -135,36 +134,76 @@ public final class XQueryStepProcessor extends AbstractStepProcessor
         return builder.build();
     }
 
-    private final class XQCollectionResolver implements CollectionURIResolver
+    /**
+     * Resolves the default collection to the documents bound to the
+     * {@code source} port of the {@code p:xquery} step being evaluated on the
+     * current thread, and delegates everything else to the resolver previously
+     * registered with the configuration.
+     * <p>
+     * It is installed once per configuration instead of being swapped for each
+     * evaluation, so that concurrent {@code p:xquery} steps sharing the same
+     * processor do not see each other's collections.
+     */
+    private static final class DefaultCollectionResolver implements CollectionURIResolver
     {
         private static final long serialVersionUID = -482974065657067566L;
 
-        private final CollectionURIResolver oldCollResolver;
-        private final Builder<Item> collectionBuilder;
+        private static final ThreadLocal<List<Item>> DEFAULT_COLLECTION = new ThreadLocal<List<Item>>();
 
-        private XQCollectionResolver(final CollectionURIResolver oldCollResolver)
+        private final CollectionURIResolver delegate;
+
+        public static void install(final Configuration configuration)
         {
-            this.oldCollResolver = oldCollResolver;
-            collectionBuilder = ImmutableList.builder();
+            synchronized (configuration)
+            {
+                final CollectionURIResolver resolver = configuration.getCollectionURIResolver();
+                if (!(resolver instanceof DefaultCollectionResolver))
+                {
+                    configuration.setCollectionURIResolver(new DefaultCollectionResolver(resolver));
+                }
+            }
         }
 
-        public void addToCollection(final Iterable<XdmNode> nodes)
+        public static List<Item> setDefaultCollection(final Iterable<XdmNode> nodes)
         {
+            final Builder<Item> collectionBuilder = ImmutableList.builder();
             for (final XdmNode node : nodes)
             {
                 collectionBuilder.add(node.getUnderlyingNode());
             }
+
+            final List<Item> previousDefaultCollection = DEFAULT_COLLECTION.get();
+            DEFAULT_COLLECTION.set(collectionBuilder.build());
+            return previousDefaultCollection;
+        }
+
+        public static void restoreDefaultCollection(final List<Item> defaultCollection)
+        {
+            if (defaultCollection == null)
+            {
+                DEFAULT_COLLECTION.remove();
+            }
+            else
+            {
+                DEFAULT_COLLECTION.set(defaultCollection);
+            }
+        }
+
+        private DefaultCollectionResolver(final CollectionURIResolver delegate)
+        {
+            this.delegate = delegate;
         }
 
         @Override
         public SequenceIterator resolve(final String href, final String base, final XPathContext context)
                 throws XPathException
         {
-            if (Strings.isNullOrEmpty(href))
+            final List<Item> defaultCollection = DEFAULT_COLLECTION.get();
+            if (Strings.isNullOrEmpty(href) && defaultCollection != null)
             {
-                return new NodeListIterator(collectionBuilder.build());
+                return new NodeListIterator(defaultCollection);
             }
-            return oldCollResolver.resolve(href, base, context);
+            return delegate.resolve(href, base, context);
         }
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.collection.LruCache;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonSources;
+import org.xml.sax.SAXException;
+
+/**
+ * Bounded cache of compiled W3C XML schemas, evicting the least recently used
+ * schemas first.
+ * <p>
+ * Schemas are keyed by the base URI and a digest of the content of each of
+ * their documents, the same way as {@link XsltExecutableCache}. Compiled
+ * {@link Schema} objects are immutable and can be shared by concurrent
+ * validations.
+ * 
+ * @author Herve Quiroz
+ */
+public final class XmlSchemaCache
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 100;
+
+    private static final Logger LOG = Logger.getLogger(XmlSchemaCache.class);
+
+    private final LruCache<List<ContentKey>, Schema> schemas;
+    private final ContentKeys keys = new ContentKeys();
+
+    public XmlSchemaCache()
+    {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public XmlSchemaCache(final int maximumSize)
+    {
+        schemas = LruCache.newCache(maximumSize);
+    }
+
+    /**
+     * Returns the schema made of the specified schema documents, compiling it
+     * if it is not cached yet. The schema documents are read from their trees
+     * directly, without being serialized. An empty sequence of schema
+     * documents yields a schema relying on location hints.
+     */
+    public Schema compile(final Iterable<XdmNode> schemaDocuments) throws SAXException
+    {
+        final ImmutableList.Builder<ContentKey> keyBuilder = ImmutableList.builder();
+        for (final XdmNode schemaDocument : schemaDocuments)
+        {
+            keyBuilder.add(keys.getKey(schemaDocument));
+        }
+        final List<ContentKey> key = keyBuilder.build();
+
+        final Schema cachedSchema = schemas.getIfPresent(key);
+        if (cachedSchema != null)
+        {
+            return cachedSchema;
+        }
+
+        LOG.trace("{@method} schema = {}", key);
+        final Source[] sources = new Source[key.size()];
+        int index = 0;
+        for (final XdmNode schemaDocument : schemaDocuments)
+        {
+            sources[index++] = SaxonSources.newSAXSource(schemaDocument);
+        }
+
+        // SchemaFactory instances are not thread-safe
+        final SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        final Schema schema;
+        if (sources.length == 0)
+        {
+            // Schema relying on the location hints of the validated documents
+            schema = factory.newSchema();
+        }
+        else
+        {
+            schema = factory.newSchema(sources);
+        }
+        schemas.put(key, schema);
+        return schema;
+    }
+
+    public int size()
+    {
+        return schemas.size();
+    }
+
+    public long getHitCount()
+    {
+        return schemas.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return schemas.getMissCount();
+    }
+
+    public void clear()
+    {
+        schemas.invalidateAll();
+    }
+
+    @Override
+    public String toString()
+    {
+        return schemas.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.transform.URIResolver;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FopFactory;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonSources;
+import org.xml.sax.SAXException;
+
+/**
+ * Renders XSL-FO documents with a long-lived {@link FopFactory}, so that font
+ * metrics, the font cache and the image cache are set up once and shared by
+ * all the {@code p:xsl-formatter} steps of the pipelines using the same
+ * configuration.
+ * <p>
+ * The number of documents rendered concurrently is bounded, as rendering is
+ * both CPU and memory intensive.
+ * 
+ * @author Herve Quiroz
+ */
+public final class XslFormatter
+{
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_RENDERINGS = Runtime.getRuntime().availableProcessors();
+
+    private static final Logger LOG = Logger.getLogger(XslFormatter.class);
+
+    private final File configurationFile;
+    private final File fontCacheFile;
+    private final Supplier<FopFactory> fopFactory;
+    private final Semaphore renderings;
+
+    public XslFormatter()
+    {
+        this(null, null, DEFAULT_MAXIMUM_CONCURRENT_RENDERINGS);
+    }
+
+    /**
+     * @param configurationFile
+     *            the FOP user configuration file, or {@code null} for the
+     *            default configuration.
+     * @param fontCacheFile
+     *            the file where the FOP font cache is persisted, or
+     *            {@code null} for the default location.
+     * @param maximumConcurrentRenderings
+     *            the maximum number of documents rendered at the same time.
+     */
+    public XslFormatter(final File configurationFile, final File fontCacheFile,
+            final int maximumConcurrentRenderings)
+    {
+        Preconditions.checkArgument(maximumConcurrentRenderings > 0, "maximumConcurrentRenderings = %s",
+                maximumConcurrentRenderings);
+        this.configurationFile = configurationFile;
+        this.fontCacheFile = fontCacheFile;
+        renderings = new Semaphore(maximumConcurrentRenderings, true);
+        fopFactory = Suppliers.memoize(new Supplier<FopFactory>()
+        {
+            @Override
+            public FopFactory get()
+            {
+                return newFopFactory();
+            }
+        });
+    }
+
+    private FopFactory newFopFactory()
+    {
+        LOG.trace("{@method} configuration = {} ; font cache = {}", configurationFile, fontCacheFile);
+        final FopFactory factory = FopFactory.newInstance();
+        if (configurationFile != null)
+        {
+            try
+            {
+                factory.setUserConfig(configurationFile);
+            }
+            catch (final SAXException e)
+            {
+                throw new IllegalStateException("cannot parse FOP configuration: " + configurationFile, e);
+            }
+            catch (final IOException e)
+            {
+                throw new IllegalStateException("cannot read FOP configuration: " + configurationFile, e);
+            }
+        }
+
+        factory.getFontManager().setUseCache(true);
+        if (fontCacheFile != null)
+        {
+            factory.getFontManager().setCacheFile(fontCacheFile);
+        }
+
+        return factory;
+    }
+
+    public FopFactory getFopFactory()
+    {
+        return fopFactory.get();
+    }
+
+    /**
+     * Renders the XSL-FO document to the output stream, waiting for a
+     * rendering slot to be available first.
+     */
+    public void render(final XdmNode source, final String contentType, final OutputStream outputStream,
+            final URIResolver uriResolver) throws Exception
+    {
+        final FopFactory factory = getFopFactory();
+        final FOUserAgent userAgent = factory.newFOUserAgent();
+        userAgent.setURIResolver(uriResolver);
+        userAgent.setBaseURL(source.getBaseURI().toString());
+
+        renderings.acquire();
+        try
+        {
+            final Fop fop = factory.newFop(contentType, userAgent, outputStream);
+            SaxonSources.writeEvents(source, fop.getDefaultHandler());
+        }
+        finally
+        {
+            renderings.release();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[configuration = " + configurationFile + " ; font cache = "
+                + fontCacheFile + "]";
+    }
+}
@@ -26,18 +26,12 @@ import java.io.OutputStream;
 import java.net.URI;
 
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.URIResolver;
-import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.stream.StreamSource;
 
-import net.sf.saxon.TransformerFactoryImpl;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
-import org.apache.fop.apps.Fop;
-import org.apache.fop.apps.FopFactory;
 import org.trancecode.io.Uris;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.port.XProcPorts;
@@ -74,27 +68,18 @@ public final class XslFormatterStepProcessor extends AbstractStepProcessor
         try
         {
             final String contentType = input.getOptionValue(XProcOptions.CONTENT_TYPE, DEFAULT_CONTENT_TYPE);
-            final FopFactory fopFactory = FopFactory.newInstance();
-            final Fop fop = fopFactory.newFop(contentType, resultOutputStream);
-            fop.getUserAgent().setURIResolver(new URIResolver()
-            {
-                @Override
-                public Source resolve(final String href, final String base) throws TransformerException
-                {
-                    final URI uri = Uris.resolve(href, base);
-                    final InputStream inputStream = input.getPipelineContext().getInputResolver()
-                            .resolveInputStream(href, base);
-                    return new StreamSource(inputStream, uri.toString());
-                }
-            });
-            fop.getUserAgent().setBaseURL(source.getBaseURI().toString());
-
-            final TransformerFactory factory = new TransformerFactoryImpl();
-            final Transformer transformer = factory.newTransformer();
-
-            final SAXResult fopResult = new SAXResult(fop.getDefaultHandler());
-
-            transformer.transform(source.asSource(), fopResult);
+            input.getPipelineContext().getXslFormatter().render(source, contentType, resultOutputStream,
+                    new URIResolver()
+                    {
+                        @Override
+                        public Source resolve(final String href, final String base) throws TransformerException
+                        {
+                            final URI uri = Uris.resolve(href, base);
+                            final InputStream inputStream = input.getPipelineContext().getInputResolver()
+                                    .resolveInputStream(href, base);
+                            return new StreamSource(inputStream, uri.toString());
+                        }
+                    });
         }
         finally
         {
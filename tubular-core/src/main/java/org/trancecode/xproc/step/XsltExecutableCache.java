@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.trancecode.collection.LruCache;
+import org.trancecode.logging.Logger;
+
+/**
+ * Bounded cache of compiled XSLT stylesheets, evicting the least recently used
+ * stylesheets first.
+ * <p>
+ * Stylesheets are keyed by their base URI, against which imports and includes
+ * get resolved, and a digest of their content. A stylesheet loaded from a URI
+ * is therefore compiled again only if the resource has changed, while an
+ * inline or piped stylesheet is compiled once whatever the number of copies of
+ * its tree. Digests are themselves memoized for each tree so that a stylesheet
+ * document read repeatedly is only hashed once.
+ * 
+ * @author Herve Quiroz
+ */
+public final class XsltExecutableCache
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 100;
+
+    private static final Logger LOG = Logger.getLogger(XsltExecutableCache.class);
+
+    private final LruCache<ContentKey, XsltExecutable> executables;
+    private final ContentKeys keys = new ContentKeys();
+
+    public XsltExecutableCache()
+    {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public XsltExecutableCache(final int maximumSize)
+    {
+        executables = LruCache.newCache(maximumSize);
+    }
+
+    /**
+     * Returns the compiled form of the stylesheet, compiling it with the
+     * specified processor if it is not cached yet.
+     */
+    public XsltExecutable compile(final Processor processor, final XdmNode stylesheet) throws SaxonApiException
+    {
+        final ContentKey key = keys.getKey(stylesheet);
+        final XsltExecutable cachedExecutable = executables.getIfPresent(key);
+        if (cachedExecutable != null)
+        {
+            return cachedExecutable;
+        }
+
+        LOG.trace("{@method} stylesheet = {}", key);
+        final XsltExecutable executable = processor.newXsltCompiler().compile(stylesheet.asSource());
+        executables.put(key, executable);
+        return executable;
+    }
+
+    public int size()
+    {
+        return executables.size();
+    }
+
+    public long getHitCount()
+    {
+        return executables.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return executables.getMissCount();
+    }
+
+    public void clear()
+    {
+        executables.invalidateAll();
+    }
+
+    @Override
+    public String toString()
+    {
+        return executables.toString();
+    }
+}
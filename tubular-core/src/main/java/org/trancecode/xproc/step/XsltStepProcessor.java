@@ -45,8 +45,13 @@ import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltTransformer;
 import org.trancecode.io.Uris;
 import org.trancecode.logging.Logger;
+import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.PipelineContext;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.api.PipelineException;
+import org.trancecode.xproc.binding.DocumentPortBinding;
+import org.trancecode.xproc.binding.InlinePortBinding;
+import org.trancecode.xproc.binding.PortBinding;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
 
@@ -61,6 +66,46 @@ public final class XsltStepProcessor extends AbstractStepProcessor
 
     private static final Logger LOG = Logger.getLogger(XsltStepProcessor.class);
 
+    /**
+     * Compiles the stylesheets bound with {@code p:inline} or
+     * {@code p:document} to the {@code p:xslt} steps among the specified
+     * steps, so that the first executions of those steps get them from the
+     * cache.
+     */
+    public static void precompileStylesheets(final Step pipeline, final Iterable<Step> steps,
+            final PipelineContext context)
+    {
+        final Environment environment = Environment.newEnvironment(pipeline, context);
+        for (final Step step : steps)
+        {
+            if (!XProcSteps.XSLT.equals(step.getType()) || !step.hasPortDeclared(XProcPorts.STYLESHEET))
+            {
+                continue;
+            }
+
+            for (final PortBinding portBinding : step.getPort(XProcPorts.STYLESHEET).getPortBindings())
+            {
+                if (portBinding instanceof InlinePortBinding || portBinding instanceof DocumentPortBinding)
+                {
+                    try
+                    {
+                        for (final XdmNode stylesheet : portBinding.newEnvironmentPortBinding(environment)
+                                .readNodes())
+                        {
+                            context.getXsltCache().compile(context.getProcessor(), stylesheet);
+                        }
+                    }
+                    catch (final Exception e)
+                    {
+                        // the error will be reported if the step gets executed
+                        LOG.debug("cannot precompile stylesheet {} for step {}: {}", portBinding, step.getName(),
+                                e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public QName getStepType()
     {
@@ -113,7 +158,7 @@ public final class XsltStepProcessor extends AbstractStepProcessor
         final XsltTransformer transformer;
         try
         {
-            transformer = processor.newXsltCompiler().compile(stylesheet.asSource()).load();
+            transformer = input.getPipelineContext().getXsltCache().compile(processor, stylesheet).load();
             if (sourceDocument != null)
             {
                 transformer.setInitialContextNode(sourceDocument);
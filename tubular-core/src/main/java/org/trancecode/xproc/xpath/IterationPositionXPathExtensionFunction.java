@@ -33,11 +33,18 @@ import org.trancecode.xproc.XProcXmlModel;
 public final class IterationPositionXPathExtensionFunction extends AbstractXPathExtensionFunction
 {
     private static final Logger LOG = Logger.getLogger(IterationPositionXPathExtensionFunction.class);
-    private static final ThreadLocal<Integer> ITERATION_POSITION = new ThreadLocal<Integer>();
+    private static final ThreadLocal<Integer> ITERATION_POSITION = new ThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            return 1;
+        }
+    };
 
-    static
+    public static int getIterationPosition()
     {
-        ITERATION_POSITION.set(1);
+        return ITERATION_POSITION.get();
     }
 
     public static int setIterationPosition(final int value)
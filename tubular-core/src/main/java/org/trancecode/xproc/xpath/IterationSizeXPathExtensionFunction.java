@@ -33,11 +33,18 @@ import org.trancecode.xproc.XProcXmlModel;
 public final class IterationSizeXPathExtensionFunction extends AbstractXPathExtensionFunction
 {
     private static final Logger LOG = Logger.getLogger(IterationSizeXPathExtensionFunction.class);
-    private static final ThreadLocal<Integer> ITERATION_SIZE = new ThreadLocal<Integer>();
+    private static final ThreadLocal<Integer> ITERATION_SIZE = new ThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            return 1;
+        }
+    };
 
-    static
+    public static int getIterationSize()
     {
-        ITERATION_SIZE.set(1);
+        return ITERATION_SIZE.get();
     }
 
     public static int setIterationSize(final int value)
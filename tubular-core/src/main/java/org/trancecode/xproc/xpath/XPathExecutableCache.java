@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.xpath;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import org.trancecode.api.Nullable;
+import org.trancecode.collection.LruCache;
+import org.trancecode.logging.Logger;
+
+/**
+ * Bounded cache of compiled XPath expressions.
+ * <p>
+ * Entries are keyed by the expression text together with the static context
+ * used to compile it: declared variable names, in-scope namespaces and base
+ * URI. {@link XPathExecutable} instances are thread-safe, so a cached
+ * expression only needs to be {@link XPathExecutable#load() loaded} for each
+ * evaluation.
+ * 
+ * @author Herve Quiroz
+ */
+public final class XPathExecutableCache
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private static final Logger LOG = Logger.getLogger(XPathExecutableCache.class);
+
+    private final LruCache<Key, XPathExecutable> executables;
+
+    private static final class Key
+    {
+        private final String expression;
+        private final ImmutableSet<QName> variables;
+        private final ImmutableMap<String, String> namespaces;
+        private final URI baseUri;
+        private final int hashCode;
+
+        public Key(final String expression, final Iterable<QName> variables, final Map<String, String> namespaces,
+                final URI baseUri)
+        {
+            this.expression = Preconditions.checkNotNull(expression);
+            this.variables = ImmutableSet.copyOf(variables);
+            this.namespaces = ImmutableMap.copyOf(namespaces);
+            this.baseUri = baseUri;
+            hashCode = Objects.hashCode(expression, this.variables, this.namespaces, baseUri);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (o == this)
+            {
+                return true;
+            }
+
+            if (o == null || o.getClass() != getClass())
+            {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return hashCode == other.hashCode && expression.equals(other.expression)
+                    && variables.equals(other.variables) && namespaces.equals(other.namespaces)
+                    && Objects.equal(baseUri, other.baseUri);
+        }
+
+        @Override
+        public String toString()
+        {
+            return expression;
+        }
+    }
+
+    public XPathExecutableCache()
+    {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public XPathExecutableCache(final int maximumSize)
+    {
+        executables = LruCache.newCache(maximumSize);
+    }
+
+    /**
+     * Returns the compiled form of the XPath expression, compiling it with the
+     * specified processor if it is not cached yet.
+     */
+    public XPathExecutable compile(final Processor processor, final String expression,
+            final Iterable<QName> variables, final Map<String, String> namespaces, @Nullable final URI baseUri)
+            throws SaxonApiException
+    {
+        final Key key = new Key(expression, variables, namespaces, baseUri);
+        final XPathExecutable cachedExecutable = executables.getIfPresent(key);
+        if (cachedExecutable != null)
+        {
+            return cachedExecutable;
+        }
+
+        LOG.trace("{@method} expression = {}", expression);
+        final XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        if (baseUri != null)
+        {
+            xpathCompiler.setBaseURI(baseUri);
+        }
+        for (final QName variable : key.variables)
+        {
+            xpathCompiler.declareVariable(variable);
+        }
+        for (final Entry<String, String> namespace : key.namespaces.entrySet())
+        {
+            xpathCompiler.declareNamespace(namespace.getKey(), namespace.getValue());
+        }
+
+        final XPathExecutable executable = xpathCompiler.compile(expression);
+        executables.put(key, executable);
+        return executable;
+    }
+
+    public int size()
+    {
+        return executables.size();
+    }
+
+    public long getHitCount()
+    {
+        return executables.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return executables.getMissCount();
+    }
+
+    public void clear()
+    {
+        executables.invalidateAll();
+    }
+
+    @Override
+    public String toString()
+    {
+        return executables.toString();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.QName;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xproc.step.StepProcessor;
+import org.trancecode.xproc.step.StepProcessors;
+
+/**
+ * Tests for {@link DefaultLibrarySnapshot}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class DefaultLibrarySnapshotTest extends AbstractTest
+{
+    @Test
+    public void snapshot() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        DefaultLibrarySnapshot.write(directory);
+        final DefaultLibrarySnapshot snapshot = DefaultLibrarySnapshot.load(new File(directory,
+                DefaultLibrarySnapshot.RESOURCE_PATH_REGISTRY).toURI().toURL(), new File(directory,
+                DefaultLibrarySnapshot.RESOURCE_PATH_LIBRARY).toURI().toURL());
+
+        final Map<QName, StepProcessor> stepProcessors = snapshot.getStepProcessors();
+        final Set<QName> stepTypes = Sets.newHashSet();
+        for (final StepProcessor stepProcessor : ServiceLoader.load(StepProcessor.class))
+        {
+            stepTypes.add(stepProcessor.getStepType());
+            Assert.assertEquals(StepProcessors.getStepProcessorClass(stepProcessors.get(stepProcessor.getStepType())),
+                    stepProcessor.getClass());
+        }
+        Assert.assertEquals(stepProcessors.keySet(), stepTypes);
+
+        final PipelineContext context = new PipelineConfiguration();
+        final PipelineLibrary coreLibrary = new PipelineLibrary(URI.create("test:core-library.xpl"),
+                snapshot.getCoreLibrary(), ImmutableSet.<URI> of(), null);
+        final URL libraryUrl = getClass().getResource(PipelineConfiguration.RESOURCE_PATH_XPROC_LIBRARY_1_0);
+        final PipelineLibrary library = PipelineParser.parseLibrary(context,
+                new StreamSource(libraryUrl.toString()), coreLibrary);
+        final PipelineLibrary snapshotLibrary = PipelineParser.parseLibrary(context, snapshot.getLibrarySource(),
+                coreLibrary);
+        Assert.assertEquals(snapshotLibrary.getStepTypes(), library.getStepTypes());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.charset.Charset;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link DocumentCache}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class DocumentCacheTest extends AbstractTest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static XdmNode newDocument(final String xml) throws SaxonApiException
+    {
+        return new Processor(false).newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    @Test
+    public void disabledByDefault() throws SaxonApiException
+    {
+        final DocumentCache documentCache = new PipelineConfiguration().getDocumentCache();
+        Assert.assertFalse(documentCache.isEnabled());
+
+        final URI uri = URI.create("http://example.org/doc.xml");
+        documentCache.put(uri, newDocument("<doc/>"));
+        Assert.assertNull(documentCache.getIfPresent(uri));
+        Assert.assertEquals(documentCache.size(), 0);
+    }
+
+    @Test
+    public void cacheAbsoluteUris() throws SaxonApiException
+    {
+        final DocumentCache documentCache = new DocumentCache(100, DocumentCache.Scope.RUN);
+        final XdmNode document = newDocument("<doc/>");
+        final URI uri = URI.create("http://example.org/doc.xml");
+        documentCache.put(uri, document);
+        Assert.assertSame(documentCache.getIfPresent(uri), document);
+        Assert.assertEquals(documentCache.getWeight(), 2);
+
+        documentCache.invalidate(uri);
+        Assert.assertNull(documentCache.getIfPresent(uri));
+
+        final URI relativeUri = URI.create("doc.xml");
+        documentCache.put(relativeUri, document);
+        Assert.assertNull(documentCache.getIfPresent(relativeUri));
+    }
+
+    @Test
+    public void invalidateModifiedFiles() throws SaxonApiException, IOException
+    {
+        final File file = File.createTempFile("document-cache", ".xml");
+        try
+        {
+            Files.write("<doc/>", file, UTF_8);
+            final DocumentCache documentCache = new DocumentCache(100, DocumentCache.Scope.RUN);
+            final XdmNode document = newDocument("<doc/>");
+            documentCache.put(file.toURI(), document);
+            Assert.assertSame(documentCache.getIfPresent(file.toURI()), document);
+
+            Files.write("<doc><item/></doc>", file, UTF_8);
+            Assert.assertNull(documentCache.getIfPresent(file.toURI()));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws SaxonApiException
+    {
+        // each document weighs 2 nodes
+        final DocumentCache documentCache = new DocumentCache(3, DocumentCache.Scope.RUN);
+        final URI uri1 = URI.create("http://example.org/doc1.xml");
+        final URI uri2 = URI.create("http://example.org/doc2.xml");
+        documentCache.put(uri1, newDocument("<doc1/>"));
+        documentCache.put(uri2, newDocument("<doc2/>"));
+        Assert.assertNull(documentCache.getIfPresent(uri1));
+        Assert.assertNotNull(documentCache.getIfPresent(uri2));
+    }
+
+    @Test
+    public void scope() throws SaxonApiException
+    {
+        final URI uri = URI.create("http://example.org/doc.xml");
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+
+        configuration.setDocumentCache(100, DocumentCache.Scope.RUN);
+        final ImmutablePipelineContext runContext = ImmutablePipelineContext.copyOf(configuration);
+        runContext.getDocumentCache().put(uri, newDocument("<doc/>"));
+        Assert.assertNull(runContext.withNewEpisode().getDocumentCache().getIfPresent(uri));
+
+        configuration.setDocumentCache(100, DocumentCache.Scope.PIPELINE);
+        final ImmutablePipelineContext pipelineContext = ImmutablePipelineContext.copyOf(configuration);
+        pipelineContext.getDocumentCache().put(uri, newDocument("<doc/>"));
+        Assert.assertNotNull(pipelineContext.withNewEpisode().getDocumentCache().getIfPresent(uri));
+        Assert.assertNull(pipelineContext.withNewDocumentCache().getDocumentCache().getIfPresent(uri));
+    }
+}
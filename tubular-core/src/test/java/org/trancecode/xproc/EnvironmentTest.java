@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.collect.ImmutableMap;
+
+import net.sf.saxon.s9api.QName;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xproc.port.EnvironmentPort;
+import org.trancecode.xproc.port.Port;
+import org.trancecode.xproc.step.Step;
+import org.trancecode.xproc.step.StepProcessors;
+
+/**
+ * Tests for {@link Environment}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class EnvironmentTest extends AbstractTest
+{
+    private static final int CHAIN_LENGTH = 1000;
+
+    private static Environment buildEnvironmentChain(final Environment rootEnvironment, final int length)
+    {
+        Environment environment = rootEnvironment;
+        for (int i = 0; i < length; i++)
+        {
+            final String stepName = "step" + i;
+            environment = environment.newFollowingStepEnvironment();
+            final EnvironmentPort port = EnvironmentPort.newEnvironmentPort(
+                    Port.newOutputPort(stepName, "result", null), environment);
+            environment = environment.addPorts(port);
+            environment = environment.setDefaultReadablePort(port);
+            environment = environment.setLocalVariables(ImmutableMap.of(new QName("variable" + i), stepName));
+            if (i % 100 == 0)
+            {
+                environment = environment.newChildStepEnvironment();
+            }
+        }
+
+        return environment;
+    }
+
+    @Test
+    public void buildEnvironmentChain()
+    {
+        final Step pipeline = Step.newStep(new QName("test"),
+                StepProcessors.unsupportedStepProcessor(new QName("test")), true);
+        final Environment rootEnvironment = Environment.newEnvironment(pipeline, new PipelineConfiguration());
+        final Environment environment = buildEnvironmentChain(rootEnvironment, CHAIN_LENGTH);
+
+        Assert.assertEquals(environment.getPorts().size(), CHAIN_LENGTH);
+        Assert.assertEquals(environment.getDefaultReadablePort().getPortReference().getStepName(), "step"
+                + (CHAIN_LENGTH - 1));
+        Assert.assertEquals(environment.getVariable(new QName("variable0")), "step0");
+        Assert.assertEquals(environment.getVariable(new QName("variable" + (CHAIN_LENGTH - 1))), "step"
+                + (CHAIN_LENGTH - 1));
+        Assert.assertNull(environment.getVariable(new QName("variable" + CHAIN_LENGTH)));
+    }
+}
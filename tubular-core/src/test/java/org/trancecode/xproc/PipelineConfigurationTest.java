@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import org.apache.http.client.HttpClient;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.event.AsynchronousEventDispatcher;
+import org.trancecode.event.EventObserver;
+import org.trancecode.xproc.event.XProcEvent;
+import org.trancecode.xproc.step.HttpConnectionPool;
+
+/**
+ * Tests for {@link PipelineConfiguration}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineConfigurationTest extends AbstractTest
+{
+    @Test
+    public void shareExecutorPerParallelism()
+    {
+        final PipelineConfiguration configuration1 = new PipelineConfiguration();
+        final PipelineConfiguration configuration2 = new PipelineConfiguration();
+
+        configuration1.setParallelism(3);
+        configuration2.setParallelism(3);
+        Assert.assertSame(configuration1.getExecutor(), configuration2.getExecutor());
+
+        configuration1.setParallelism(5);
+        Assert.assertNotSame(configuration1.getExecutor(), configuration2.getExecutor());
+        configuration1.setParallelism(3);
+        Assert.assertSame(configuration1.getExecutor(), configuration2.getExecutor());
+    }
+
+    @Test
+    public void setAsynchronousEventDispatch()
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        Assert.assertFalse(configuration.getEventDispatcher() instanceof AsynchronousEventDispatcher);
+        configuration.setAsynchronousEventDispatch(16);
+        Assert.assertTrue(configuration.getEventDispatcher() instanceof AsynchronousEventDispatcher);
+        configuration.setAsynchronousEventDispatch(0);
+        Assert.assertFalse(configuration.getEventDispatcher() instanceof AsynchronousEventDispatcher);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void setAsynchronousEventDispatchWithObservers()
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.getEventDispatcher().addObserver(new EventObserver<XProcEvent>()
+        {
+            @Override
+            public void notify(final XProcEvent event)
+            {
+                // Ignore
+            }
+        });
+        configuration.setAsynchronousEventDispatch(16);
+    }
+
+    @Test
+    public void setHttpConnectionPool()
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final HttpConnectionPool httpConnectionPool = new HttpConnectionPool();
+        try
+        {
+            final HttpClient httpClient = httpConnectionPool.getHttpClient();
+            configuration.setHttpConnectionPool(httpConnectionPool);
+            configuration.setHttpConnectionPool(new HttpConnectionPool());
+            configuration.shutdown();
+            // the pool was not shut down, as it would create a new client
+            Assert.assertSame(httpConnectionPool.getHttpClient(), httpClient);
+        }
+        finally
+        {
+            httpConnectionPool.shutdown();
+            configuration.getHttpConnectionPool().shutdown();
+        }
+    }
+}
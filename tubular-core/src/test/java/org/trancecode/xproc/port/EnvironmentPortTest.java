@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.port;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.PipelineConfiguration;
+import org.trancecode.xproc.step.Step;
+import org.trancecode.xproc.step.StepProcessors;
+
+/**
+ * Tests for {@link EnvironmentPort}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class EnvironmentPortTest extends AbstractTest
+{
+    private static XdmNode newDocument(final PipelineConfiguration configuration, final String xml)
+            throws SaxonApiException
+    {
+        return configuration.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    @Test
+    public void countNodes() throws SaxonApiException
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final Step pipeline = Step.newStep(new QName("test"),
+                StepProcessors.unsupportedStepProcessor(new QName("test")), true);
+        final Environment environment = Environment.newEnvironment(pipeline, configuration);
+        final XdmNode document = newDocument(configuration, "<doc><item/><item/></doc>");
+
+        final EnvironmentPort result = EnvironmentPort.newEnvironmentPort(
+                Port.newOutputPort("step1", "result", null), environment).writeNodes(document, document, document);
+        Assert.assertEquals(result.countNodes(0), 3);
+        Assert.assertEquals(result.countNodes(2), 2);
+        Assert.assertEquals(result.countNodes(5), 3);
+
+        final EnvironmentPort source = EnvironmentPort.newEnvironmentPort(
+                Port.newInputPort("step2", "source", null), environment).pipe(result);
+        Assert.assertEquals(source.countNodes(0), 3);
+        Assert.assertEquals(source.countNodes(1), 1);
+
+        final EnvironmentPort selectedSource = EnvironmentPort.newEnvironmentPort(
+                Port.newInputPort("step3", "source", null).setSelect("/doc/item"), environment).pipe(result);
+        Assert.assertEquals(selectedSource.countNodes(0), 6);
+        Assert.assertEquals(selectedSource.countNodes(4), 4);
+    }
+
+    private static int readFromConsumers(final boolean portReadCacheEnabled, final int consumers)
+            throws Exception
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setPortReadCacheEnabled(portReadCacheEnabled);
+        final Step pipeline = Step.newStep(new QName("test"),
+                StepProcessors.unsupportedStepProcessor(new QName("test")), true);
+        final Environment environment = Environment.newEnvironment(pipeline, configuration);
+        final XdmNode document = newDocument(configuration, "<doc><item/><item/></doc>");
+        final EnvironmentPort result = EnvironmentPort.newEnvironmentPort(
+                Port.newOutputPort("step1", "result", null), environment).writeNodes(document);
+        final EnvironmentPort source = EnvironmentPort.newEnvironmentPort(
+                Port.newInputPort("step2", "source", null).setSelect("/doc/item"), environment).pipe(result);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(consumers);
+        try
+        {
+            final List<Callable<Iterable<XdmNode>>> reads = Lists.newArrayList();
+            for (int i = 0; i < consumers; i++)
+            {
+                reads.add(new Callable<Iterable<XdmNode>>()
+                {
+                    @Override
+                    public Iterable<XdmNode> call()
+                    {
+                        return ImmutableList.copyOf(source.readNodes());
+                    }
+                });
+            }
+            for (final Future<Iterable<XdmNode>> nodes : executor.invokeAll(reads))
+            {
+                Assert.assertEquals(Iterables.size(nodes.get()), 2);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        return source.getRawReadCount();
+    }
+
+    @Test
+    public void readOnceWithCache() throws Exception
+    {
+        Assert.assertEquals(readFromConsumers(true, 2), 1);
+    }
+
+    @Test
+    public void readEachTimeWithoutCache() throws Exception
+    {
+        Assert.assertEquals(readFromConsumers(false, 2), 2);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.collect.Iterables;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xproc.PipelineConfiguration;
+import org.trancecode.xproc.PipelineProcessor;
+import org.trancecode.xproc.RunnablePipeline;
+import org.trancecode.xproc.port.XProcPorts;
+
+/**
+ * Tests for {@link ForEachStepProcessor}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class ForEachStepProcessorTest extends AbstractTest
+{
+    private static final int ITEMS = 20;
+    private static final String FOR_EACH = "<p:for-each name=\"loop\">"
+            + "<p:iteration-source select=\"/doc/item\"/>"
+            + "<p:identity><p:input port=\"source\"><p:inline><entry/></p:inline></p:input></p:identity>"
+            + "</p:for-each>";
+
+    private static RunnablePipeline newStreamingPipeline(final String subpipeline)
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setStreamingPortCapacity(2);
+        final PipelineProcessor pipelineProcessor = new PipelineProcessor(configuration);
+        final RunnablePipeline pipeline = pipelineProcessor.buildPipeline(
+                new StreamSource(new StringReader("<p:pipeline version=\"1.0\""
+                        + " xmlns:p=\"http://www.w3.org/ns/xproc\" xmlns:t=\"urn:test\">" + subpipeline
+                        + "</p:pipeline>"), "file:///test/streaming.xpl")).load();
+        final StringBuilder source = new StringBuilder("<doc>");
+        for (int i = 0; i < ITEMS; i++)
+        {
+            source.append("<item/>");
+        }
+        source.append("</doc>");
+        pipeline.bindSourcePort(XProcPorts.SOURCE, new StreamSource(new StringReader(source.toString()),
+                "file:///test/source.xml"));
+        return pipeline;
+    }
+
+    private static boolean hasCause(final Throwable error, final String message)
+    {
+        for (Throwable cause = error; cause != null; cause = cause.getCause())
+        {
+            if (cause.getMessage() != null && cause.getMessage().contains(message))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void assertNoActiveProducer() throws InterruptedException
+    {
+        // the producers of the failed runs may still be unwinding
+        for (int i = 0; i < 100 && ForEachStepProcessor.getActiveProducers() > 0; i++)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(ForEachStepProcessor.getActiveProducers(), 0);
+    }
+
+    private static XdmNode parse(final String forEach) throws SaxonApiException
+    {
+        return new Processor(false).newDocumentBuilder().build(
+                new StreamSource(new StringReader("<p:for-each xmlns:p=\"http://www.w3.org/ns/xproc\">" + forEach
+                        + "</p:for-each>")));
+    }
+
+    @Test
+    public void callsIterationSize() throws SaxonApiException
+    {
+        Assert.assertTrue(ForEachStepProcessor.callsIterationSize(parse("<p:identity><p:input port=\"source\""
+                + " select=\"/doc[p:iteration-size() gt 1]\"/></p:identity>")));
+        Assert.assertTrue(ForEachStepProcessor.callsIterationSize(parse("<p:group><p:variable name=\"size\""
+                + " select=\"xproc:iteration-size ()\" xmlns:xproc=\"http://www.w3.org/ns/xproc\"/></p:group>")));
+    }
+
+    @Test
+    public void doesNotCallIterationSize() throws SaxonApiException
+    {
+        Assert.assertFalse(ForEachStepProcessor.callsIterationSize(parse("<p:identity/>"
+                + "<!-- p:iteration-size() -->")));
+        Assert.assertFalse(ForEachStepProcessor.callsIterationSize(parse("<p:identity><p:input port=\"source\">"
+                + "<p:inline><doc>p:iteration-size()</doc></p:inline></p:input></p:identity>")));
+        Assert.assertFalse(ForEachStepProcessor.callsIterationSize(parse("<p:identity name=\"iteration-size\"/>")));
+    }
+
+    @Test(timeOut = 10000)
+    public void streamForEachOutput() throws InterruptedException
+    {
+        final XdmNode result = newStreamingPipeline(FOR_EACH + "<p:wrap-sequence wrapper=\"entries\"/>").run()
+                .readNode(XProcPorts.RESULT);
+        Assert.assertEquals(Iterables.size(SaxonAxis.childElements(SaxonAxis.childElement(result))), ITEMS);
+        assertNoActiveProducer();
+    }
+
+    @Test(timeOut = 10000)
+    public void readStreamedPortTwice() throws InterruptedException
+    {
+        final RunnablePipeline pipeline = newStreamingPipeline(FOR_EACH
+                + "<p:wrap-sequence name=\"first\" wrapper=\"first\"/><p:sink/>"
+                + "<p:wrap-sequence name=\"second\" wrapper=\"second\">"
+                + "<p:input port=\"source\"><p:pipe step=\"loop\" port=\"result\"/></p:input>"
+                + "</p:wrap-sequence>");
+        try
+        {
+            pipeline.run();
+            Assert.fail("a streamed port was read twice");
+        }
+        catch (final RuntimeException e)
+        {
+            Assert.assertTrue(hasCause(e, "already being read"), e.toString());
+        }
+        assertNoActiveProducer();
+    }
+
+    @Test(timeOut = 10000)
+    public void failingIteration() throws InterruptedException
+    {
+        final RunnablePipeline pipeline = newStreamingPipeline("<p:for-each name=\"loop\">"
+                + "<p:iteration-source select=\"/doc/item\"/><p:choose>"
+                + "<p:when test=\"p:iteration-position() = 5\"><p:error code=\"t:iteration\">"
+                + "<p:input port=\"source\"><p:inline><message/></p:inline></p:input></p:error></p:when>"
+                + "<p:otherwise><p:identity><p:input port=\"source\"><p:inline><entry/></p:inline></p:input>"
+                + "</p:identity></p:otherwise></p:choose></p:for-each>"
+                + "<p:wrap-sequence wrapper=\"entries\"/>");
+        try
+        {
+            pipeline.run();
+            Assert.fail("the iteration did not fail");
+        }
+        catch (final RuntimeException e)
+        {
+            // expected
+        }
+        assertNoActiveProducer();
+    }
+
+    @Test(timeOut = 10000)
+    public void failingStepNextToStreamedPort() throws InterruptedException
+    {
+        // the output of the p:for-each is never read
+        final RunnablePipeline pipeline = newStreamingPipeline(FOR_EACH + "<p:error code=\"t:failure\">"
+                + "<p:input port=\"source\"><p:inline><message/></p:inline></p:input></p:error>");
+        try
+        {
+            pipeline.run();
+            Assert.fail("the step did not fail");
+        }
+        catch (final RuntimeException e)
+        {
+            // expected
+        }
+        assertNoActiveProducer();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.protocol.HttpContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link HttpConnectionPool} against an in-process HTTP server.
+ * 
+ * @author Herve Quiroz
+ */
+public final class HttpConnectionPoolTest extends AbstractTest
+{
+    private static final byte[] RESPONSE = "<response/>".getBytes();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String uri;
+    // remote ports seen by the server, one per client connection
+    private final Set<Integer> clientPorts = Sets.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    // Cookie headers received by the server
+    private final List<String> cookies = new CopyOnWriteArrayList<String>();
+
+    @BeforeMethod
+    public void startServer() throws IOException
+    {
+        clientPorts.clear();
+        cookies.clear();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                if (exchange.getRequestHeaders().containsKey("Cookie"))
+                {
+                    cookies.addAll(exchange.getRequestHeaders().get("Cookie"));
+                }
+                exchange.getResponseHeaders().set("Set-Cookie", "session=" + cookies.size() + "; Path=/");
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(RESPONSE);
+                out.close();
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        uri = "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    @AfterMethod
+    public void stopServer()
+    {
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    @Test
+    public void reuseConnection() throws Exception
+    {
+        final HttpConnectionPool pool = new HttpConnectionPool();
+        try
+        {
+            final HttpClient client = pool.getHttpClient();
+            Assert.assertSame(pool.getHttpClient(), client);
+            for (int i = 0; i < 20; i++)
+            {
+                Assert.assertEquals(client.execute(new HttpGet(uri), new BasicResponseHandler()), "<response/>");
+            }
+            Assert.assertEquals(clientPorts.size(), 1);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void limitConnectionsPerRoute() throws Exception
+    {
+        final HttpConnectionPool pool = new HttpConnectionPool(10, 2, 5000, 5000, 0, 0);
+        final ExecutorService clients = Executors.newFixedThreadPool(8);
+        try
+        {
+            final HttpClient client = pool.getHttpClient();
+            final List<Future<String>> responses = Lists.newArrayList();
+            for (int i = 0; i < 40; i++)
+            {
+                responses.add(clients.submit(new Callable<String>()
+                {
+                    @Override
+                    public String call() throws Exception
+                    {
+                        return client.execute(new HttpGet(uri), new BasicResponseHandler());
+                    }
+                }));
+            }
+            for (final Future<String> response : responses)
+            {
+                Assert.assertEquals(response.get(), "<response/>");
+            }
+            Assert.assertTrue(clientPorts.size() <= 2, clientPorts.toString());
+        }
+        finally
+        {
+            clients.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void evictIdleConnections() throws Exception
+    {
+        final HttpConnectionPool pool = new HttpConnectionPool(10, 2, 5000, 5000, 100, 0);
+        try
+        {
+            final HttpClient client = pool.getHttpClient();
+            client.execute(new HttpGet(uri), new BasicResponseHandler());
+            Thread.sleep(500);
+            client.execute(new HttpGet(uri), new BasicResponseHandler());
+            Assert.assertEquals(clientPorts.size(), 2);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void isolateCookies() throws Exception
+    {
+        final HttpConnectionPool pool = new HttpConnectionPool();
+        try
+        {
+            final HttpClient client = pool.getHttpClient();
+            final HttpContext context = pool.newHttpContext();
+            client.execute(new HttpGet(uri), new BasicResponseHandler(), context);
+            client.execute(new HttpGet(uri), new BasicResponseHandler(), pool.newHttpContext());
+            Assert.assertTrue(cookies.isEmpty(), cookies.toString());
+
+            // the cookies are still handled within a single context
+            client.execute(new HttpGet(uri), new BasicResponseHandler(), context);
+            Assert.assertEquals(cookies.size(), 1);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void requestExecutor()
+    {
+        Assert.assertNull(new HttpConnectionPool().getRequestExecutor());
+        final HttpConnectionPool pool = new HttpConnectionPool(10, 2, 0, 0, 0, 4);
+        Assert.assertNotNull(pool.getRequestExecutor());
+        Assert.assertSame(pool.getRequestExecutor(), pool.getRequestExecutor());
+    }
+}
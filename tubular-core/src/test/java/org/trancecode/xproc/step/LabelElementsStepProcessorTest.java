@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link LabelElementsStepProcessor}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class LabelElementsStepProcessorTest extends AbstractTest
+{
+    @Test
+    public void getLabelPrefix()
+    {
+        Assert.assertEquals(LabelElementsStepProcessor.getLabelPrefix("concat(\"_\",$p:index)"), "_");
+        Assert.assertEquals(LabelElementsStepProcessor.getLabelPrefix(" concat( 'id-' , $p:index ) "), "id-");
+        Assert.assertEquals(LabelElementsStepProcessor.getLabelPrefix("concat('it''s',$p:index)"), "it's");
+        Assert.assertEquals(LabelElementsStepProcessor.getLabelPrefix("concat(\"\",$p:index)"), "");
+    }
+
+    @Test
+    public void getLabelPrefixNotLiteral()
+    {
+        Assert.assertNull(LabelElementsStepProcessor.getLabelPrefix("concat(local-name(),$p:index)"));
+        Assert.assertNull(LabelElementsStepProcessor.getLabelPrefix("concat('_',$p:index,'_')"));
+        Assert.assertNull(LabelElementsStepProcessor.getLabelPrefix("concat('_',$index)"));
+        Assert.assertNull(LabelElementsStepProcessor.getLabelPrefix("$p:index"));
+    }
+}
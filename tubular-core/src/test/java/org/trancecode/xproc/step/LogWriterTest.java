@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.URI;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.io.AbstractOutputResolver;
+import org.trancecode.xproc.Episode;
+
+/**
+ * Tests for {@link LogWriter}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class LogWriterTest extends AbstractTest
+{
+    private static final class CountingOutputResolver extends AbstractOutputResolver
+    {
+        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        private int resolved;
+
+        @Override
+        public OutputStream resolveOutputStream(final URI uri)
+        {
+            resolved++;
+            return outputStream;
+        }
+    }
+
+    @Test
+    public void appendDocuments() throws Exception
+    {
+        final Processor processor = new Processor(false);
+        final XdmNode document1 = processor.newDocumentBuilder().build(new StreamSource(new StringReader("<a/>")));
+        final XdmNode document2 = processor.newDocumentBuilder().build(new StreamSource(new StringReader("<b/>")));
+        final CountingOutputResolver outputResolver = new CountingOutputResolver();
+        final LogWriter logWriter = new LogWriter();
+        final Episode episode = new Episode();
+        final URI baseUri = URI.create("file:/tmp/");
+
+        logWriter.write(episode, "log.xml", baseUri, document1, processor, outputResolver);
+        logWriter.write(episode, "log.xml", baseUri, document2, processor, outputResolver);
+        logWriter.close(episode);
+
+        Assert.assertEquals(outputResolver.resolved, 1);
+        Assert.assertEquals(outputResolver.outputStream.toString("UTF-8"), "<a/>\n<b/>\n");
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.PipelineConfiguration;
+
+/**
+ * Tests for {@link StepProfiler}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StepProfilerTest extends AbstractTest
+{
+    private static final QName TYPE = new QName("test");
+
+    private static final StepProcessor SUBPIPELINE_STEP_PROCESSOR = new StepProcessor()
+    {
+        @Override
+        public QName getStepType()
+        {
+            return TYPE;
+        }
+
+        @Override
+        public Environment run(final Step step, final Environment environment)
+        {
+            Environment resultEnvironment = environment;
+            for (final Step substep : step.getSubpipeline())
+            {
+                resultEnvironment = substep.run(resultEnvironment);
+            }
+
+            return resultEnvironment;
+        }
+    };
+
+    @Test
+    public void profileSubpipeline() throws IOException
+    {
+        final Step leaf1 = Step.newStep(TYPE, SUBPIPELINE_STEP_PROCESSOR, false).setName("leaf1");
+        final Step leaf2 = Step.newStep(TYPE, SUBPIPELINE_STEP_PROCESSOR, false).setName("leaf2");
+        final Step pipeline = Step.newStep(TYPE, SUBPIPELINE_STEP_PROCESSOR, true).setName("pipeline")
+                .setSubpipeline(ImmutableList.of(leaf1, leaf2));
+
+        final StepProfiler profiler = new StepProfiler();
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setProfiler(profiler);
+        final Environment environment = Environment.newEnvironment(pipeline, configuration);
+        pipeline.run(environment);
+        pipeline.run(environment);
+
+        final List<StepProfiler.StepProfile> profiles = profiler.getProfiles();
+        Assert.assertEquals(profiles.size(), 3);
+        Assert.assertEquals(profiles.get(0).getPath(), "pipeline");
+        Assert.assertEquals(profiles.get(1).getPath(), "pipeline;leaf1");
+        Assert.assertEquals(profiles.get(2).getPath(), "pipeline;leaf2");
+        for (final StepProfiler.StepProfile profile : profiles)
+        {
+            Assert.assertEquals(profile.getExecutions(), 2);
+        }
+        Assert.assertTrue(profiles.get(0).getWallTime() >= profiles.get(1).getWallTime()
+                + profiles.get(2).getWallTime());
+
+        final StringWriter collapsedStacks = new StringWriter();
+        profiler.writeCollapsedStacks(collapsedStacks);
+        final String[] lines = collapsedStacks.toString().split("\n");
+        Assert.assertEquals(lines.length, 3);
+        Assert.assertTrue(lines[0].matches("pipeline \\d+"), lines[0]);
+        Assert.assertTrue(lines[1].matches("pipeline;leaf1 \\d+"), lines[1]);
+        Assert.assertTrue(lines[2].matches("pipeline;leaf2 \\d+"), lines[2]);
+
+        profiler.reset();
+        Assert.assertTrue(profiler.getProfiles().isEmpty());
+    }
+
+    @Test
+    public void recordDocuments() throws SaxonApiException
+    {
+        final XdmNode document = new Processor(false).newDocumentBuilder().build(
+                new StreamSource(new StringReader("<a><b/>text</a>")));
+        final StepProcessor stepProcessor = new StepProcessor()
+        {
+            @Override
+            public QName getStepType()
+            {
+                return TYPE;
+            }
+
+            @Override
+            public Environment run(final Step step, final Environment environment)
+            {
+                final StepProfiler profiler = environment.getPipelineContext().getProfiler();
+                for (final XdmNode node : profiler.recordInputs(ImmutableList.of(document, document)))
+                {
+                    Assert.assertSame(node, document);
+                }
+                profiler.recordOutputs(ImmutableList.of(document));
+                return environment;
+            }
+        };
+        final Step step = Step.newStep(TYPE, stepProcessor, false).setName("step");
+
+        final StepProfiler profiler = new StepProfiler();
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setProfiler(profiler);
+        step.run(Environment.newEnvironment(step, configuration));
+
+        final StepProfiler.StepProfile profile = Iterables.getOnlyElement(profiler.getProfiles());
+        Assert.assertEquals(profile.getInputDocuments(), 2);
+        Assert.assertEquals(profile.getInputNodes(), 8);
+        Assert.assertEquals(profile.getOutputDocuments(), 1);
+        Assert.assertEquals(profile.getOutputNodes(), 4);
+    }
+}
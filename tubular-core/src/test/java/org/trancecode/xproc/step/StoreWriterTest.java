@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xproc.Episode;
+
+/**
+ * Tests for {@link StoreWriter}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StoreWriterTest extends AbstractTest
+{
+    private static final URI URI1 = URI.create("file:/tmp/1.xml");
+    private static final URI URI2 = URI.create("file:/tmp/2.xml");
+
+    @Test
+    public void flush()
+    {
+        final StoreWriter storeWriter = new StoreWriter(2, 1);
+        final Episode episode = new Episode();
+        final AtomicInteger writes = new AtomicInteger();
+        for (int i = 0; i < 10; i++)
+        {
+            storeWriter.write(episode, URI.create("file:/tmp/" + i + ".xml"), new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    writes.incrementAndGet();
+                }
+            });
+        }
+        storeWriter.flush(episode);
+        Assert.assertEquals(writes.get(), 10);
+    }
+
+    @Test
+    public void flushRaisesError()
+    {
+        final StoreWriter storeWriter = new StoreWriter(1, 10);
+        final Episode episode = new Episode();
+        final Episode otherEpisode = new Episode();
+        storeWriter.write(episode, URI1, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new IllegalStateException("write error");
+            }
+        });
+        storeWriter.flush(otherEpisode);
+
+        try
+        {
+            storeWriter.flush(episode);
+            Assert.fail();
+        }
+        catch (final IllegalStateException e)
+        {
+            Assert.assertEquals(e.getMessage(), "write error");
+        }
+
+        storeWriter.flush(episode);
+    }
+
+    @Test
+    public void await() throws InterruptedException
+    {
+        final StoreWriter storeWriter = new StoreWriter(1, 10);
+        final Episode episode = new Episode();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger writes = new AtomicInteger();
+        storeWriter.write(episode, URI1, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    Thread.sleep(100);
+                }
+                catch (final InterruptedException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                writes.incrementAndGet();
+            }
+        });
+        started.await();
+        storeWriter.await(URI2);
+        storeWriter.await(URI1);
+        Assert.assertEquals(writes.get(), 1);
+        Assert.assertFalse(storeWriter.hasPendingWrite(URI1));
+        storeWriter.flush(episode);
+    }
+
+    @Test
+    public void awaitFailedWrite()
+    {
+        final StoreWriter storeWriter = new StoreWriter(1, 10);
+        final Episode episode = new Episode();
+        storeWriter.write(episode, URI1, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new IllegalStateException("write error");
+            }
+        });
+        storeWriter.await(URI1);
+        Assert.assertFalse(storeWriter.hasPendingWrite(URI1));
+
+        try
+        {
+            storeWriter.flush(episode);
+            Assert.fail();
+        }
+        catch (final IllegalStateException e)
+        {
+            Assert.assertEquals(e.getMessage(), "write error");
+        }
+    }
+}
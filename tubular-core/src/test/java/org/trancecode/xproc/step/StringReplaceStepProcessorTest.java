@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.step;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link StringReplaceStepProcessor}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StringReplaceStepProcessorTest extends AbstractTest
+{
+    @Test
+    public void getLiteralReplacement()
+    {
+        Assert.assertEquals(StringReplaceStepProcessor.getLiteralReplacement("'***'"), "***");
+        Assert.assertEquals(StringReplaceStepProcessor.getLiteralReplacement(" \"masked\" "), "masked");
+        Assert.assertEquals(StringReplaceStepProcessor.getLiteralReplacement("'it''s'"), "it's");
+        Assert.assertEquals(StringReplaceStepProcessor.getLiteralReplacement("\"say \"\"hi\"\"\""), "say \"hi\"");
+        Assert.assertEquals(StringReplaceStepProcessor.getLiteralReplacement("''"), "");
+    }
+
+    @Test
+    public void getLiteralReplacementNotLiteral()
+    {
+        Assert.assertNull(StringReplaceStepProcessor.getLiteralReplacement("upper-case(.)"));
+        Assert.assertNull(StringReplaceStepProcessor.getLiteralReplacement("'a' || 'b'"));
+        Assert.assertNull(StringReplaceStepProcessor.getLiteralReplacement("concat('a', 'b')"));
+        Assert.assertNull(StringReplaceStepProcessor.getLiteralReplacement("'a', 'b'"));
+        Assert.assertNull(StringReplaceStepProcessor.getLiteralReplacement("$replacement"));
+    }
+}